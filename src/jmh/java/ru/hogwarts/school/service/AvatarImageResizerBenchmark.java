@@ -0,0 +1,55 @@
+package ru.hogwarts.school.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AvatarImageResizerBenchmark {
+
+    @Param({"1600x1200", "4000x3000"})
+    private String sourceSize;
+
+    @Param({"100", "256"})
+    private int targetWidth;
+
+    @Param({"NEAREST", "BILINEAR", "PROGRESSIVE_BILINEAR", "AREA_AVERAGING"})
+    private AvatarImageResizer.Algorithm algorithm;
+
+    private BufferedImage source;
+    private int targetHeight;
+
+    @Setup
+    public void setUp() {
+        String[] size = sourceSize.split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+        source = createPhoto(width, height);
+        targetHeight = Math.max(1, Math.round((float) height * targetWidth / width));
+    }
+
+    @Benchmark
+    public BufferedImage resize() {
+        return AvatarImageResizer.resize(source, targetWidth, targetHeight, algorithm);
+    }
+
+    // градиент с шумом и мелкими деталями ближе к фотографии, чем однотонная заливка
+    private static BufferedImage createPhoto(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, new Color(30, 60, 120), width, height, new Color(230, 190, 140)));
+        graphics.fillRect(0, 0, width, height);
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            graphics.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 120));
+            graphics.fillOval(random.nextInt(width), random.nextInt(height), 5 + random.nextInt(60), 5 + random.nextInt(60));
+        }
+        graphics.dispose();
+        return image;
+    }
+}
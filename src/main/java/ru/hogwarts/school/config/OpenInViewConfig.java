@@ -0,0 +1,32 @@
+package ru.hogwarts.school.config;
+
+import jakarta.persistence.EntityManagerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.orm.jpa.support.OpenEntityManagerInViewInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+// вместо spring.jpa.open-in-view: сессия на весь запрос нужна эндпоинтам, которые отдают сущности
+// с ленивыми связями (факультет со студентами), но не /avatar/** - там соединение, однажды взятое
+// сессией, держалось бы до конца передачи файла медленному клиенту
+@Configuration
+public class OpenInViewConfig implements WebMvcConfigurer {
+
+    private final ObjectProvider<EntityManagerFactory> entityManagerFactory;
+
+    public OpenInViewConfig(ObjectProvider<EntityManagerFactory> entityManagerFactory) {
+        this.entityManagerFactory = entityManagerFactory;
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        EntityManagerFactory factory = entityManagerFactory.getIfAvailable();
+        if (factory == null) {
+            return;
+        }
+        OpenEntityManagerInViewInterceptor interceptor = new OpenEntityManagerInViewInterceptor();
+        interceptor.setEntityManagerFactory(factory);
+        registry.addWebRequestInterceptor(interceptor).excludePathPatterns("/avatar/**");
+    }
+}
@@ -0,0 +1,29 @@
+package ru.hogwarts.school.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class UploadAdmissionConfig {
+
+    // фильтр стоит только на /avatar/*, остальные эндпоинты очередь загрузок не затрагивает
+    @Bean
+    public FilterRegistrationBean<UploadAdmissionFilter> uploadAdmissionFilter(
+            MeterRegistry meterRegistry,
+            @Value("${avatar.upload.gate.max-concurrent:4}") int maxConcurrent,
+            @Value("${avatar.upload.gate.max-in-flight-bytes:67108864}") long maxInFlightBytes,
+            @Value("${avatar.upload.max-bytes:10485760}") long maxUploadBytes,
+            @Value("${avatar.import.max-bytes:536870912}") long maxImportBytes,
+            @Value("${avatar.upload.gate.wait-ms:0}") long waitMs,
+            @Value("${avatar.upload.gate.retry-after-seconds:1}") int retryAfterSeconds) {
+        FilterRegistrationBean<UploadAdmissionFilter> registration = new FilterRegistrationBean<>(
+                new UploadAdmissionFilter(maxConcurrent, maxInFlightBytes, maxUploadBytes, maxImportBytes,
+                        waitMs, retryAfterSeconds, meterRegistry));
+        registration.addUrlPatterns("/avatar/*");
+        registration.setName("uploadAdmissionFilter");
+        return registration;
+    }
+}
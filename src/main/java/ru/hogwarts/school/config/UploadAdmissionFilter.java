@@ -0,0 +1,202 @@
+package ru.hogwarts.school.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.filter.OncePerRequestFilter;
+import ru.hogwarts.school.exception.UploadTooLargeException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// пропускает ограниченное число загрузок и байт одновременно, остальным сразу отвечает 429,
+// чтобы тяжёлые загрузки не занимали все потоки Tomcat и соединения с БД
+@Slf4j
+public class UploadAdmissionFilter extends OncePerRequestFilter {
+
+    // байты в полёте учитываются килобайтами, иначе разрешений семафора не хватит на гигабайты
+    private static final int UNIT = 1024;
+
+    // тело несут только загрузка аватара, куски докачки и импорт архива; управляющие запросы без тела
+    // (создание сессии докачки, /complete, запуск регенерации превью) очередь загрузок не занимают
+    private static final Pattern POST_BODY_ROUTES = Pattern.compile("/avatar/(\\d+/avatar|import)");
+    private static final Pattern PATCH_BODY_ROUTES = Pattern.compile("/avatar/\\d+/uploads/[^/]+");
+
+    private final long maxUploadBytes;
+    private final long maxImportBytes;
+    private final long waitMs;
+    private final String retryAfterSeconds;
+    private final int maxConcurrent;
+    private final int maxInFlightUnits;
+
+    private final Semaphore slots;
+    private final Semaphore bytes;
+    private final Counter rejectedBusy;
+    private final Counter rejectedTooLarge;
+
+    public UploadAdmissionFilter(int maxConcurrent, long maxInFlightBytes, long maxUploadBytes, long maxImportBytes,
+                                 long waitMs, int retryAfterSeconds, MeterRegistry meterRegistry) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxInFlightUnits = (int) Math.min(Integer.MAX_VALUE, maxInFlightBytes / UNIT);
+        this.maxUploadBytes = maxUploadBytes;
+        this.maxImportBytes = maxImportBytes;
+        this.waitMs = waitMs;
+        this.retryAfterSeconds = Integer.toString(retryAfterSeconds);
+        this.slots = new Semaphore(maxConcurrent);
+        this.bytes = new Semaphore(maxInFlightUnits);
+        this.rejectedBusy = meterRegistry.counter("avatar.upload.gate.rejected", "reason", "busy");
+        this.rejectedTooLarge = meterRegistry.counter("avatar.upload.gate.rejected", "reason", "too_large");
+        meterRegistry.gauge("avatar.upload.gate.active", slots, s -> this.maxConcurrent - s.availablePermits());
+        meterRegistry.gauge("avatar.upload.gate.bytes", bytes,
+                s -> (double) (this.maxInFlightUnits - s.availablePermits()) * UNIT);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return switch (request.getMethod()) {
+            case "POST" -> !POST_BODY_ROUTES.matcher(path).matches();
+            case "PATCH" -> !PATCH_BODY_ROUTES.matcher(path).matches();
+            default -> true;
+        };
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long limit = request.getRequestURI().endsWith("/import") ? maxImportBytes : maxUploadBytes;
+        long declared = request.getContentLengthLong();
+        if (declared > limit) {
+            rejectedTooLarge.increment();
+            log.warn("Загрузка {} байт на {} отклонена: лимит {} байт", declared, request.getRequestURI(), limit);
+            reject(response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "Ошибка: размер загрузки превышает допустимый (" + limit + " байт)");
+            return;
+        }
+
+        // без Content-Length резервируется весь лимит, тело всё равно не сможет его превысить
+        int units = (int) Math.min(maxInFlightUnits, ((declared >= 0 ? declared : limit) + UNIT - 1) / UNIT);
+        if (!tryAcquire(slots, 1)) {
+            rejectBusy(request, response);
+            return;
+        }
+        try {
+            if (!tryAcquire(bytes, units)) {
+                rejectBusy(request, response);
+                return;
+            }
+            try {
+                chain.doFilter(new LimitedRequest(request, limit), response);
+            } finally {
+                bytes.release(units);
+            }
+        } finally {
+            slots.release();
+        }
+    }
+
+    private boolean tryAcquire(Semaphore semaphore, int permits) {
+        try {
+            return semaphore.tryAcquire(permits, waitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void rejectBusy(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        rejectedBusy.increment();
+        log.warn("Загрузка на {} отклонена: достигнут предел одновременных загрузок", request.getRequestURI());
+        response.setHeader(HttpHeaders.RETRY_AFTER, retryAfterSeconds);
+        reject(response, 429, "Ошибка: сервер занят обработкой других загрузок, повторите позже");
+    }
+
+    private static void reject(HttpServletResponse response, int status, String message) throws IOException {
+        response.setStatus(status);
+        response.setContentType("text/plain;charset=UTF-8");
+        response.getOutputStream().write(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // тело без Content-Length (chunked) обрывается, как только превысит лимит, не дожидаясь конца
+    private static final class LimitedRequest extends HttpServletRequestWrapper {
+
+        private final long limit;
+        private ServletInputStream stream;
+
+        private LimitedRequest(HttpServletRequest request, long limit) {
+            super(request);
+            this.limit = limit;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (stream == null) {
+                stream = new LimitedInputStream(super.getInputStream(), limit);
+            }
+            return stream;
+        }
+    }
+
+    private static final class LimitedInputStream extends ServletInputStream {
+
+        private final ServletInputStream in;
+        private final long limit;
+        private long read;
+
+        private LimitedInputStream(ServletInputStream in, long limit) {
+            this.in = in;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) {
+            read += n;
+            if (read > limit) {
+                throw new UploadTooLargeException(limit);
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return in.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return in.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            in.setReadListener(readListener);
+        }
+    }
+}
@@ -1,26 +1,43 @@
 package ru.hogwarts.school.controller;
 
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.data.domain.Page;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import ru.hogwarts.school.dto.AvatarCursorPage;
+import ru.hogwarts.school.dto.AvatarImportReport;
+import ru.hogwarts.school.dto.AvatarInfo;
+import ru.hogwarts.school.dto.AvatarPreviewItem;
+import ru.hogwarts.school.dto.AvatarSimilarItem;
+import ru.hogwarts.school.dto.AvatarUploadSession;
+import ru.hogwarts.school.dto.PreviewRegenerationStatus;
 import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.AvatarPreview;
+import ru.hogwarts.school.model.PreviewStatus;
 import ru.hogwarts.school.service.AvatarService;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
 
 @RestController
 @RequestMapping("avatar")
 public class AvatarController {
 
+    private static final String UPLOAD_OFFSET = "Upload-Offset";
+
     private final AvatarService avatarService;
 
     public AvatarController(AvatarService avatarService) {
@@ -34,32 +51,161 @@ public class AvatarController {
         return ResponseEntity.ok().build();
     }
 
+    // докачиваемая загрузка: создать сессию, отправлять куски PATCH со смещения Upload-Offset,
+    // после обрыва узнать принятое смещение GET/HEAD и продолжить, в конце - complete
+    @PostMapping("/{id}/uploads")
+    public ResponseEntity<AvatarUploadSession> createUpload(@PathVariable Long id) throws IOException {
+        AvatarUploadSession session = avatarService.createUpload(id);
+        return ResponseEntity.created(URI.create("/avatar/" + id + "/uploads/" + session.uploadId()))
+                .header(UPLOAD_OFFSET, "0")
+                .body(session);
+    }
+
+    @GetMapping("/{id}/uploads/{uploadId}")
+    public ResponseEntity<AvatarUploadSession> getUpload(@PathVariable Long id, @PathVariable String uploadId)
+            throws IOException {
+        AvatarUploadSession session = avatarService.getUpload(id, uploadId);
+        return ResponseEntity.ok()
+                .header(UPLOAD_OFFSET, Long.toString(session.offset()))
+                .header(HttpHeaders.CACHE_CONTROL, "no-store")
+                .body(session);
+    }
+
+    @PatchMapping(value = "/{id}/uploads/{uploadId}",
+            consumes = {"application/offset+octet-stream", MediaType.APPLICATION_OCTET_STREAM_VALUE})
+    public ResponseEntity<Void> appendUpload(@PathVariable Long id, @PathVariable String uploadId,
+                                             @RequestHeader(UPLOAD_OFFSET) long offset,
+                                             HttpServletRequest request) throws IOException {
+        AvatarUploadSession session = avatarService.appendUpload(id, uploadId, offset, request.getInputStream());
+        return ResponseEntity.noContent()
+                .header(UPLOAD_OFFSET, Long.toString(session.offset()))
+                .build();
+    }
+
+    @PostMapping("/{id}/uploads/{uploadId}/complete")
+    public ResponseEntity<Void> completeUpload(@PathVariable Long id, @PathVariable String uploadId)
+            throws IOException {
+        avatarService.completeUpload(id, uploadId);
+        return ResponseEntity.ok().build();
+    }
+
+    @DeleteMapping("/{id}/uploads/{uploadId}")
+    public ResponseEntity<Void> abortUpload(@PathVariable Long id, @PathVariable String uploadId) throws IOException {
+        avatarService.abortUpload(id, uploadId);
+        return ResponseEntity.noContent().build();
+    }
+
+    // архив передаётся телом запроса и читается потоком, файлы внутри называются по id студента: 42.jpg
+    @PostMapping(value = "/import", consumes = {"application/zip", "application/x-zip-compressed",
+            "application/x-tar", "application/gzip", "application/x-gtar"})
+    public ResponseEntity<AvatarImportReport> importAvatars(HttpServletRequest request) throws IOException {
+        return ResponseEntity.ok(avatarService.importAvatars(request.getInputStream(), request.getContentType()));
+    }
+
+    // since/sinceId позволяют выгрузить только изменения после предыдущей выгрузки
+    @GetMapping(value = "/export", produces = "application/x-tar")
+    public void exportAvatars(@RequestParam(required = false) Long sinceId,
+                              @RequestParam(required = false)
+                              @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant since,
+                              HttpServletResponse response) throws IOException {
+        avatarService.exportAvatars(sinceId, since, response);
+    }
+
     @GetMapping(value = "/{id}/avatar/preview")
     public ResponseEntity<byte[]> downloadAvatar(@PathVariable Long id) {
-        Avatar avatar = avatarService.findAvatar(id);
+        Optional<AvatarPreview> preview = avatarService.findPreview(id);
+        if (preview.isEmpty()) {
+            Avatar avatar = avatarService.findAvatar(id);
+            if (avatar.getPreviewStatus() == PreviewStatus.PENDING) {
+                return ResponseEntity.accepted()
+                        .header(HttpHeaders.RETRY_AFTER, "1")
+                        .build();
+            }
+            // превью могло появиться между двумя запросами
+            preview = avatar.getPreviewStatus() == PreviewStatus.READY ? avatarService.findPreview(id) : preview;
+            if (preview.isEmpty()) {
+                return ResponseEntity.notFound().build();
+            }
+        }
 
         HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.parseMediaType(avatar.getMediaType()));
-        headers.setContentLength(avatar.getData().length);
+        headers.setContentType(MediaType.parseMediaType(preview.get().getMediaType()));
+        headers.setContentLength(preview.get().getData().length);
 
         return ResponseEntity
                 .status(HttpStatus.OK)
                 .headers(headers)
-                .body(avatar.getData());
+                .body(preview.get().getData());
+    }
+
+    @GetMapping("/previews")
+    public ResponseEntity<List<AvatarPreviewItem>> getPreviews(@RequestParam(required = false) List<Long> studentIds,
+                                                               @RequestParam(required = false) Long facultyId,
+                                                               @RequestParam(defaultValue = "0") int page) {
+        if (facultyId != null) {
+            return ResponseEntity.ok(avatarService.findFacultyPreviews(facultyId, page));
+        }
+        if (studentIds == null || studentIds.isEmpty()) {
+            throw new IllegalArgumentException("Нужно указать studentIds или facultyId");
+        }
+        return ResponseEntity.ok(avatarService.findPreviews(studentIds));
+    }
+
+    // перегенерация всех превью после смены их размера; идёт в фоне, ход виден по GET
+    @PostMapping("/previews/regeneration")
+    public ResponseEntity<PreviewRegenerationStatus> startPreviewRegeneration(
+            @RequestParam(defaultValue = "true") boolean resume) throws IOException {
+        return ResponseEntity.accepted().body(avatarService.startPreviewRegeneration(resume));
+    }
+
+    @GetMapping("/previews/regeneration")
+    public ResponseEntity<PreviewRegenerationStatus> getPreviewRegeneration() {
+        return ResponseEntity.ok(avatarService.getPreviewRegeneration());
+    }
+
+    @DeleteMapping("/previews/regeneration")
+    public ResponseEntity<PreviewRegenerationStatus> stopPreviewRegeneration() {
+        return ResponseEntity.accepted().body(avatarService.stopPreviewRegeneration());
     }
 
+    // с ?v= из списка аватаров ответ кешируется навсегда, без него - проверяется по ETag
     @GetMapping(value = "/{id}/avatar")
-    public void downloadAvatar(@PathVariable Long id, HttpServletResponse response) throws IOException {
-        avatarService.writeAvatarToResponse(id, response);
+    public void downloadAvatar(@PathVariable Long id,
+                               @RequestParam(required = false) String v,
+                               @RequestParam(required = false) Integer w,
+                               @RequestParam(required = false) Integer h,
+                               @RequestParam(defaultValue = "contain") String fit,
+                               HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+        if (w == null && h == null) {
+            avatarService.writeAvatarToResponse(id, v, request, response);
+        } else {
+            avatarService.writeAvatarVariantToResponse(id, v, w, h, fit, request, response);
+        }
 
     }
 
     @GetMapping("List-avatars")
-    public ResponseEntity<Page<Avatar>> getAvatars(@RequestParam(defaultValue = "0") int page,
+    public ResponseEntity<Page<AvatarInfo>> getAvatars(@RequestParam(defaultValue = "0") int page,
                                                    @RequestParam(defaultValue = "2") int size
     ) {
-        Page<Avatar> avatars = avatarService.getAvatars(page, size);
+        Page<AvatarInfo> avatars = avatarService.getAvatars(page, size);
         return ResponseEntity.ok(avatars);
     }
 
+    // постраничный обход всех аватаров по курсору из предыдущего ответа
+    @GetMapping("/list")
+    public ResponseEntity<AvatarCursorPage> getAvatarsAfter(@RequestParam(required = false) String cursor,
+                                                            @RequestParam(defaultValue = "50") int size) {
+        return ResponseEntity.ok(avatarService.getAvatarsAfter(cursor, size));
+    }
+
+    // аватары других студентов, перцептивный хэш которых отличается не больше чем на maxDistance бит
+    @GetMapping("/{id}/similar")
+    public ResponseEntity<List<AvatarSimilarItem>> getSimilar(@PathVariable Long id,
+                                                              @RequestParam(defaultValue = "8") int maxDistance)
+            throws IOException {
+        return ResponseEntity.ok(avatarService.findSimilar(id, maxDistance));
+    }
+
 }
@@ -1,7 +1,14 @@
 package ru.hogwarts.school.controller;
 
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import ru.hogwarts.school.dto.StudentExportFormat;
+import ru.hogwarts.school.dto.StudentSearchFilter;
+import ru.hogwarts.school.dto.StudentSearchPage;
+import ru.hogwarts.school.dto.StudentStats;
 import ru.hogwarts.school.exception.StudentNotFoundException;
 import ru.hogwarts.school.model.Faculty;
 import ru.hogwarts.school.model.Student;
@@ -17,9 +24,12 @@ import java.util.stream.Stream;
 public class StudentController {
 
     private final StudentService studentService;
+    private final long exportTimeoutMs;
 
-    public StudentController(StudentService studentService) {
+    public StudentController(StudentService studentService,
+                             @Value("${student.export.timeout-ms:1800000}") long exportTimeoutMs) {
         this.studentService = studentService;
+        this.exportTimeoutMs = exportTimeoutMs;
     }
 
     @PostMapping
@@ -48,6 +58,19 @@ public class StudentController {
         return studentService.getAllStudents();
     }
 
+    // в отличие от GET /student список не собирается в памяти: строки пишутся в ответ по мере чтения курсора;
+    // выгрузка идёт дольше стандартного таймаута асинхронных запросов, поэтому таймаут у неё свой
+    @GetMapping("/export")
+    public WebAsyncTask<Void> exportStudents(@RequestParam(defaultValue = "ndjson") String format,
+                                             HttpServletResponse response) {
+        StudentExportFormat exportFormat = StudentExportFormat.parse(format);
+        return new WebAsyncTask<>(exportTimeoutMs, () -> {
+            response.setContentType(exportFormat.mediaType() + ";charset=UTF-8");
+            studentService.exportStudents(exportFormat, response.getOutputStream());
+            return null;
+        });
+    }
+
     @GetMapping("/filter/by-age")
     public Collection<Student> getStudentByAge(@RequestParam int age) {
         return studentService.findByAge(age);
@@ -58,6 +81,27 @@ public class StudentController {
         return studentService.findByAgeBetween(min, max);
     }
 
+    // фильтры комбинируются через AND, незаданные не участвуют
+    @GetMapping("/search")
+    public StudentSearchPage searchStudents(@RequestParam(required = false) Integer age,
+                                            @RequestParam(required = false) Integer minAge,
+                                            @RequestParam(required = false) Integer maxAge,
+                                            @RequestParam(required = false) String name,
+                                            @RequestParam(required = false) Long facultyId,
+                                            @RequestParam(defaultValue = "0") int page,
+                                            @RequestParam(defaultValue = "20") int size) {
+        return studentService.search(new StudentSearchFilter(age, minAge, maxAge, name, facultyId), page, size);
+    }
+
+    @GetMapping("/search/stats")
+    public StudentStats getSearchStats(@RequestParam(required = false) Integer age,
+                                       @RequestParam(required = false) Integer minAge,
+                                       @RequestParam(required = false) Integer maxAge,
+                                       @RequestParam(required = false) String name,
+                                       @RequestParam(required = false) Long facultyId) {
+        return studentService.getSearchStats(new StudentSearchFilter(age, minAge, maxAge, name, facultyId));
+    }
+
     @GetMapping("{id}/faculty")
     public Faculty getFacultyByStudentsId(@PathVariable Long id) {
         if (studentService.getStudent(id) == null) {
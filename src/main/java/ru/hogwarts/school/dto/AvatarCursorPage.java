@@ -0,0 +1,7 @@
+package ru.hogwarts.school.dto;
+
+import java.util.List;
+
+// nextCursor передаётся в следующий запрос как есть, null - элементов больше нет
+public record AvatarCursorPage(List<AvatarListItem> items, String nextCursor) {
+}
@@ -0,0 +1,7 @@
+package ru.hogwarts.school.dto;
+
+import java.time.Instant;
+
+public record AvatarExportRow(Long id, Long studentId, String filePath, String contentHash, String mediaType,
+                              long fileSize, Instant updatedAt) {
+}
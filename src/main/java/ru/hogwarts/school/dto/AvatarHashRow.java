@@ -0,0 +1,4 @@
+package ru.hogwarts.school.dto;
+
+public record AvatarHashRow(Long id, Long studentId, String contentHash, Long perceptualHash) {
+}
@@ -0,0 +1,13 @@
+package ru.hogwarts.school.dto;
+
+import java.util.List;
+
+public record AvatarImportReport(int total, int imported, int failed, List<AvatarImportResult> results) {
+
+    public static AvatarImportReport of(List<AvatarImportResult> results) {
+        int imported = (int) results.stream()
+                .filter(result -> result.status() == AvatarImportResult.Status.IMPORTED)
+                .count();
+        return new AvatarImportReport(results.size(), imported, results.size() - imported, results);
+    }
+}
@@ -0,0 +1,17 @@
+package ru.hogwarts.school.dto;
+
+public record AvatarImportResult(String entry, Long studentId, Status status, String message) {
+
+    public enum Status {
+        IMPORTED,
+        FAILED
+    }
+
+    public static AvatarImportResult imported(String entry, Long studentId) {
+        return new AvatarImportResult(entry, studentId, Status.IMPORTED, null);
+    }
+
+    public static AvatarImportResult failed(String entry, Long studentId, String message) {
+        return new AvatarImportResult(entry, studentId, Status.FAILED, message);
+    }
+}
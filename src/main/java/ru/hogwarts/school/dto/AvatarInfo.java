@@ -0,0 +1,4 @@
+package ru.hogwarts.school.dto;
+
+public record AvatarInfo(Long id, Long studentId, String mediaType, long fileSize) {
+}
@@ -0,0 +1,5 @@
+package ru.hogwarts.school.dto;
+
+public record AvatarListItem(Long id, Long studentId, String mediaType, long fileSize, String avatarUrl,
+                             String previewUrl) {
+}
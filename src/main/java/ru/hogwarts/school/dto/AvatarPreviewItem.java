@@ -0,0 +1,7 @@
+package ru.hogwarts.school.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+// data сериализуется Jackson-ом в base64
+public record AvatarPreviewItem(Long studentId, @JsonIgnore String contentHash, String mediaType, byte[] data) {
+}
@@ -0,0 +1,5 @@
+package ru.hogwarts.school.dto;
+
+// distance - число различающихся бит перцептивного хэша из 64, 0 - то же изображение
+public record AvatarSimilarItem(Long studentId, int distance, String previewUrl) {
+}
@@ -0,0 +1,5 @@
+package ru.hogwarts.school.dto;
+
+// offset - сколько байт уже принято, следующий кусок отправляется с этого места
+public record AvatarUploadSession(String uploadId, Long studentId, long offset) {
+}
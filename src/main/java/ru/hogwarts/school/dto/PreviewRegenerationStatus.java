@@ -0,0 +1,13 @@
+package ru.hogwarts.school.dto;
+
+import java.time.Instant;
+
+// processed считает строки avatar, etaSeconds - оценка по средней скорости с начала запуска
+public record PreviewRegenerationStatus(State state, long total, long processed, long failed, long lastAvatarId,
+                                        double ratePerSecond, Long etaSeconds, Instant startedAt,
+                                        Instant finishedAt) {
+
+    public enum State {
+        IDLE, RUNNING, STOPPING, STOPPED, FINISHED, FAILED
+    }
+}
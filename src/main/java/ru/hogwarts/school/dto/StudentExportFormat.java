@@ -0,0 +1,27 @@
+package ru.hogwarts.school.dto;
+
+import java.util.Locale;
+
+public enum StudentExportFormat {
+
+    NDJSON("application/x-ndjson"),
+    CSV("text/csv");
+
+    private final String mediaType;
+
+    StudentExportFormat(String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public String mediaType() {
+        return mediaType;
+    }
+
+    public static StudentExportFormat parse(String format) {
+        try {
+            return valueOf(format.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Недопустимый формат выгрузки " + format + ", разрешены: ndjson, csv");
+        }
+    }
+}
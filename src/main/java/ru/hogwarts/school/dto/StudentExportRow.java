@@ -0,0 +1,4 @@
+package ru.hogwarts.school.dto;
+
+public record StudentExportRow(Long id, String name, int age, Long facultyId) {
+}
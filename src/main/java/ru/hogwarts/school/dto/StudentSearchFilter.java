@@ -0,0 +1,9 @@
+package ru.hogwarts.school.dto;
+
+// незаданные поля не участвуют в поиске; namePrefix сравнивается без учёта регистра
+public record StudentSearchFilter(Integer age, Integer minAge, Integer maxAge, String namePrefix, Long facultyId) {
+
+    public static StudentSearchFilter all() {
+        return new StudentSearchFilter(null, null, null, null, null);
+    }
+}
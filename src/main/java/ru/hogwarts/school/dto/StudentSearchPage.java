@@ -0,0 +1,15 @@
+package ru.hogwarts.school.dto;
+
+import org.springframework.data.domain.Page;
+import ru.hogwarts.school.model.Student;
+
+import java.util.List;
+
+// страница поиска со стабильным JSON: PageImpl отдавать как есть Spring Data не гарантирует
+public record StudentSearchPage(List<Student> content, int page, int size, long totalElements, int totalPages) {
+
+    public static StudentSearchPage of(Page<Student> page) {
+        return new StudentSearchPage(page.getContent(), page.getNumber(), page.getSize(),
+                page.getTotalElements(), page.getTotalPages());
+    }
+}
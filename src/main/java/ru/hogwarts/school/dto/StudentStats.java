@@ -0,0 +1,5 @@
+package ru.hogwarts.school.dto;
+
+// averageAge, minAge и maxAge равны null, если под фильтр не попал ни один студент
+public record StudentStats(long count, Double averageAge, Integer minAge, Integer maxAge) {
+}
@@ -0,0 +1,20 @@
+package ru.hogwarts.school.exception;
+
+public class UploadOffsetConflictException extends RuntimeException {
+
+    private final long offset;
+
+    public UploadOffsetConflictException(long expected, long offset) {
+        super("Кусок отправлен со смещения " + expected + ", а принято уже " + offset + " байт");
+        this.offset = offset;
+    }
+
+    public UploadOffsetConflictException(long offset) {
+        super("В сессию загрузки сейчас пишет другой запрос, принято " + offset + " байт");
+        this.offset = offset;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+}
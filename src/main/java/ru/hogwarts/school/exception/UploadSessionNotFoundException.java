@@ -0,0 +1,7 @@
+package ru.hogwarts.school.exception;
+
+public class UploadSessionNotFoundException extends RuntimeException {
+    public UploadSessionNotFoundException(String uploadId) {
+        super("Сессия загрузки " + uploadId + " не найдена или истекла");
+    }
+}
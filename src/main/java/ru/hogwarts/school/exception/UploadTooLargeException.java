@@ -0,0 +1,7 @@
+package ru.hogwarts.school.exception;
+
+public class UploadTooLargeException extends RuntimeException {
+    public UploadTooLargeException(long maxBytes) {
+        super("Размер загрузки превышает допустимый (" + maxBytes + " байт)");
+    }
+}
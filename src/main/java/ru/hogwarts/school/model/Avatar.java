@@ -4,10 +4,14 @@ package ru.hogwarts.school.model;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.*;
 
+import java.time.Instant;
 import java.util.Objects;
 
 
+// у студента одна строка аватара: это держит база, JVM-блокировка не видит другие экземпляры приложения
 @Entity
+@Table(indexes = @Index(name = "avatar_content_hash_idx", columnList = "content_hash"),
+        uniqueConstraints = @UniqueConstraint(name = "avatar_student_id_key", columnNames = "student_id"))
 public class Avatar {
 
     @Id
@@ -17,22 +21,30 @@ public class Avatar {
     private long fileSize;
     private String mediaType;
 
-    @JsonIgnore
-    @Lob
-    private byte[] data;
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
+
+    // перцептивный хэш (dHash) для поиска похожих изображений
+    @Column(name = "perceptual_hash")
+    private Long perceptualHash;
+
+    private Instant updatedAt;
 
-    @OneToOne
+    @Enumerated(EnumType.STRING)
+    private PreviewStatus previewStatus;
+
+    @JsonIgnore
+    @OneToOne(fetch = FetchType.LAZY)
     private Student student;
 
     public Avatar() {
     }
 
-    public Avatar(Long id, String filePath, long fileSize, String mediaType, byte[] data, Student student) {
+    public Avatar(Long id, String filePath, long fileSize, String mediaType, Student student) {
         this.id = id;
         this.filePath = filePath;
         this.fileSize = fileSize;
         this.mediaType = mediaType;
-        this.data = data;
         this.student = student;
     }
 
@@ -68,12 +80,36 @@ public class Avatar {
         this.mediaType = mediaType;
     }
 
-    public byte[] getData() {
-        return data;
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public Long getPerceptualHash() {
+        return perceptualHash;
+    }
+
+    public void setPerceptualHash(Long perceptualHash) {
+        this.perceptualHash = perceptualHash;
+    }
+
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(Instant updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    public PreviewStatus getPreviewStatus() {
+        return previewStatus;
     }
 
-    public void setData(byte[] data) {
-        this.data = data;
+    public void setPreviewStatus(PreviewStatus previewStatus) {
+        this.previewStatus = previewStatus;
     }
 
     public Student getStudent() {
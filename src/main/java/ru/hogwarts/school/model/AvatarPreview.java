@@ -0,0 +1,67 @@
+package ru.hogwarts.school.model;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+
+import java.util.Objects;
+
+@Entity
+public class AvatarPreview {
+
+    @Id
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
+
+    private String mediaType;
+
+    // bytea, а не большой объект: строки превью удаляются и перезаписываются, и oid оставлял бы
+    // за каждой из них мусор в pg_largeobject
+    @JdbcTypeCode(SqlTypes.LONG32VARBINARY)
+    private byte[] data;
+
+    public AvatarPreview() {
+    }
+
+    public AvatarPreview(String contentHash, String mediaType, byte[] data) {
+        this.contentHash = contentHash;
+        this.mediaType = mediaType;
+        this.data = data;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    public void setMediaType(String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public void setData(byte[] data) {
+        this.data = data;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || getClass() != o.getClass()) return false;
+        AvatarPreview that = (AvatarPreview) o;
+        return Objects.equals(contentHash, that.contentHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(contentHash);
+    }
+}
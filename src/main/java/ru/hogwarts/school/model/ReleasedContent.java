@@ -0,0 +1,57 @@
+package ru.hogwarts.school.model;
+
+import jakarta.persistence.*;
+
+import java.time.Instant;
+import java.util.Objects;
+
+// содержимое общего хранилища, на которое перестали ссылаться; удаляется после паузы,
+// чтобы загрузка того же содержимого на другом экземпляре успела закоммитить свою строку
+@Entity
+@Table(name = "avatar_released_content",
+        indexes = @Index(name = "avatar_released_content_released_at_idx", columnList = "released_at"))
+public class ReleasedContent {
+
+    @Id
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
+
+    @Column(nullable = false)
+    private Instant releasedAt;
+
+    public ReleasedContent() {
+    }
+
+    public ReleasedContent(String contentHash, Instant releasedAt) {
+        this.contentHash = contentHash;
+        this.releasedAt = releasedAt;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public Instant getReleasedAt() {
+        return releasedAt;
+    }
+
+    public void setReleasedAt(Instant releasedAt) {
+        this.releasedAt = releasedAt;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || getClass() != o.getClass()) return false;
+        ReleasedContent that = (ReleasedContent) o;
+        return Objects.equals(contentHash, that.contentHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(contentHash);
+    }
+}
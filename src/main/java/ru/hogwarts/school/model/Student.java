@@ -7,6 +7,10 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import jakarta.persistence.*;
 
 @Entity
+@Table(indexes = {
+        @Index(name = "student_age_idx", columnList = "age"),
+        @Index(name = "student_faculty_id_idx", columnList = "faculty_id")
+})
 public class Student {
 
     @Id
@@ -0,0 +1,26 @@
+package ru.hogwarts.school.repository;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import ru.hogwarts.school.dto.AvatarPreviewItem;
+import ru.hogwarts.school.model.AvatarPreview;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+public interface AvatarPreviewRepository extends JpaRepository<AvatarPreview, String> {
+
+    @Query("SELECT p FROM AvatarPreview p, Avatar a WHERE p.contentHash = a.contentHash AND a.student.id = :studentId")
+    Optional<AvatarPreview> findByStudentId(@Param("studentId") Long studentId);
+
+    @Query("SELECT new ru.hogwarts.school.dto.AvatarPreviewItem(a.student.id, p.contentHash, p.mediaType, p.data) "
+            + "FROM AvatarPreview p, Avatar a WHERE p.contentHash = a.contentHash AND a.student.id IN :studentIds")
+    List<AvatarPreviewItem> findAllByStudentIds(@Param("studentIds") Collection<Long> studentIds);
+
+    @Query("SELECT s.id FROM AvatarPreview p, Avatar a JOIN a.student s WHERE p.contentHash = a.contentHash "
+            + "AND s.faculty.id = :facultyId ORDER BY s.id")
+    List<Long> findStudentIdsByFacultyId(@Param("facultyId") Long facultyId, Pageable pageable);
+}
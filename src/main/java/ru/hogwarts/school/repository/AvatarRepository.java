@@ -1,11 +1,127 @@
 package ru.hogwarts.school.repository;
 
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+import ru.hogwarts.school.dto.AvatarExportRow;
+import ru.hogwarts.school.dto.AvatarHashRow;
+import ru.hogwarts.school.dto.AvatarInfo;
 import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.PreviewStatus;
 
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 public interface AvatarRepository extends JpaRepository<Avatar, Long> {
 
     Optional<Avatar> findByStudentId(Long studentId);
+
+    List<Avatar> findAllByStudentIdIn(Collection<Long> studentIds);
+
+    Optional<Avatar> findFirstByContentHash(String contentHash);
+
+    long countByContentHash(String contentHash);
+
+    long countByIdGreaterThan(Long id);
+
+    @Query("SELECT DISTINCT a.contentHash FROM Avatar a WHERE a.contentHash IN :contentHashes")
+    Set<String> findExistingContentHashes(@Param("contentHashes") Collection<String> contentHashes);
+
+    @Query("SELECT a.filePath FROM Avatar a WHERE a.filePath IN :filePaths")
+    Set<String> findExistingFilePaths(@Param("filePaths") Collection<String> filePaths);
+
+    @Query("SELECT DISTINCT a.contentHash FROM Avatar a WHERE a.previewStatus = :status")
+    List<String> findContentHashesByPreviewStatus(@Param("status") PreviewStatus status, Pageable pageable);
+
+    @Query(value = "SELECT new ru.hogwarts.school.dto.AvatarInfo(a.id, a.student.id, a.mediaType, a.fileSize) FROM Avatar a",
+            countQuery = "SELECT COUNT(a) FROM Avatar a")
+    Page<AvatarInfo> findAllInfo(Pageable pageable);
+
+    // только поля для выгрузки файла, без загрузки сущности в контекст персистентности
+    @Query("SELECT new ru.hogwarts.school.dto.AvatarExportRow(a.id, a.student.id, a.filePath, a.contentHash, " +
+            "a.mediaType, a.fileSize, a.updatedAt) FROM Avatar a WHERE a.student.id = :studentId")
+    Optional<AvatarExportRow> findRowByStudentId(@Param("studentId") Long studentId);
+
+    // выборка по ключу (id > afterId) вместо OFFSET: каждая страница читается одинаково быстро
+    @Query("SELECT new ru.hogwarts.school.dto.AvatarExportRow(a.id, a.student.id, a.filePath, a.contentHash, " +
+            "a.mediaType, a.fileSize, a.updatedAt) FROM Avatar a WHERE a.id > :afterId ORDER BY a.id")
+    List<AvatarExportRow> findExportRows(@Param("afterId") long afterId, Pageable pageable);
+
+    @Query("SELECT new ru.hogwarts.school.dto.AvatarExportRow(a.id, a.student.id, a.filePath, a.contentHash, " +
+            "a.mediaType, a.fileSize, a.updatedAt) FROM Avatar a " +
+            "WHERE a.id > :afterId AND a.updatedAt > :since ORDER BY a.id")
+    List<AvatarExportRow> findExportRowsUpdatedAfter(@Param("afterId") long afterId, @Param("since") Instant since,
+                                                     Pageable pageable);
+
+    @Query("SELECT new ru.hogwarts.school.dto.AvatarHashRow(a.id, a.student.id, a.contentHash, a.perceptualHash) " +
+            "FROM Avatar a WHERE a.id > :afterId AND a.perceptualHash IS NOT NULL ORDER BY a.id")
+    List<AvatarHashRow> findPerceptualHashes(@Param("afterId") long afterId, Pageable pageable);
+
+    @Query("SELECT new ru.hogwarts.school.dto.AvatarHashRow(a.id, a.student.id, a.contentHash, a.perceptualHash) " +
+            "FROM Avatar a WHERE a.id > :afterId AND a.contentHash IS NOT NULL AND a.perceptualHash IS NULL " +
+            "ORDER BY a.id")
+    List<AvatarHashRow> findMissingPerceptualHashes(@Param("afterId") long afterId, Pageable pageable);
+
+    @Query("SELECT new ru.hogwarts.school.dto.AvatarHashRow(a.id, a.student.id, a.contentHash, a.perceptualHash) " +
+            "FROM Avatar a WHERE a.contentHash IN :contentHashes AND a.perceptualHash IS NOT NULL")
+    List<AvatarHashRow> findPerceptualHashesByContentHashIn(@Param("contentHashes") Collection<String> contentHashes);
+
+    @Query("SELECT new ru.hogwarts.school.dto.AvatarHashRow(a.id, a.student.id, a.contentHash, a.perceptualHash) " +
+            "FROM Avatar a WHERE a.contentHash = :contentHash AND a.perceptualHash IS NULL")
+    List<AvatarHashRow> findMissingPerceptualHashesByContentHash(@Param("contentHash") String contentHash);
+
+    @Query("SELECT new ru.hogwarts.school.dto.AvatarHashRow(a.id, a.student.id, a.contentHash, a.perceptualHash) " +
+            "FROM Avatar a WHERE a.student.id = :studentId")
+    Optional<AvatarHashRow> findHashRowByStudentId(@Param("studentId") Long studentId);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE Avatar a SET a.filePath = :filePath WHERE a.contentHash = :contentHash AND a.filePath = :oldPath")
+    int moveContent(@Param("contentHash") String contentHash, @Param("oldPath") String oldPath,
+                    @Param("filePath") String filePath);
+
+    // строка старого формата без хэша получает content-addressed файл, если её не успели перезаписать загрузкой
+    @Transactional
+    @Modifying
+    @Query("UPDATE Avatar a SET a.filePath = :filePath, a.contentHash = :contentHash, a.fileSize = :fileSize, " +
+            "a.mediaType = :mediaType, a.previewStatus = :previewStatus " +
+            "WHERE a.id = :id AND a.filePath = :oldPath AND a.contentHash IS NULL")
+    int adoptLegacyFile(@Param("id") Long id, @Param("oldPath") String oldPath, @Param("filePath") String filePath,
+                        @Param("contentHash") String contentHash, @Param("fileSize") long fileSize,
+                        @Param("mediaType") String mediaType, @Param("previewStatus") PreviewStatus previewStatus);
+
+    // строку, которую успели перезаписать новой загрузкой, не трогаем: у неё уже другое содержимое
+    @Transactional
+    @Modifying
+    @Query("UPDATE Avatar a SET a.perceptualHash = :perceptualHash " +
+            "WHERE a.id = :id AND a.contentHash = :contentHash AND a.perceptualHash IS NULL")
+    int fillPerceptualHash(@Param("id") Long id, @Param("contentHash") String contentHash,
+                           @Param("perceptualHash") long perceptualHash);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE Avatar a SET a.previewStatus = ru.hogwarts.school.model.PreviewStatus.READY " +
+            "WHERE a.contentHash = :contentHash AND a.previewStatus = ru.hogwarts.school.model.PreviewStatus.PENDING")
+    int completePreview(@Param("contentHash") String contentHash);
+
+    // перегенерация исправляет и превью, которые раньше не удалось создать
+    @Transactional
+    @Modifying
+    @Query("UPDATE Avatar a SET a.previewStatus = ru.hogwarts.school.model.PreviewStatus.READY " +
+            "WHERE a.contentHash IN :contentHashes " +
+            "AND a.previewStatus <> ru.hogwarts.school.model.PreviewStatus.READY")
+    int markPreviewsReady(@Param("contentHashes") Collection<String> contentHashes);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE Avatar a SET a.previewStatus = ru.hogwarts.school.model.PreviewStatus.FAILED " +
+            "WHERE a.contentHash = :contentHash AND a.previewStatus = ru.hogwarts.school.model.PreviewStatus.PENDING")
+    int failPreview(@Param("contentHash") String contentHash);
 }
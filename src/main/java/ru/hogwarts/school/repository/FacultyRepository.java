@@ -1,6 +1,8 @@
 package ru.hogwarts.school.repository;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import ru.hogwarts.school.model.Faculty;
 
 import java.util.List;
@@ -11,4 +13,7 @@ public interface FacultyRepository extends JpaRepository<Faculty, Long> {
 
     List<Faculty> findByNameIgnoreCaseOrColorIgnoreCase(String name, String color);
 
+    @Query("SELECT f.name FROM Faculty f ORDER BY LENGTH(f.name) DESC, f.id")
+    List<String> findNamesByLengthDesc(Pageable pageable);
+
 }
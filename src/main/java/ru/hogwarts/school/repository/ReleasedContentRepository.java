@@ -0,0 +1,29 @@
+package ru.hogwarts.school.repository;
+
+import jakarta.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import ru.hogwarts.school.model.ReleasedContent;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+public interface ReleasedContentRepository extends JpaRepository<ReleasedContent, String> {
+
+    // блокировка строки разводит удаление содержимого и его повторную загрузку на разных экземплярах
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT r FROM ReleasedContent r WHERE r.contentHash = :contentHash")
+    Optional<ReleasedContent> findForUpdate(@Param("contentHash") String contentHash);
+
+    @Modifying
+    @Query("UPDATE ReleasedContent r SET r.releasedAt = :releasedAt WHERE r.contentHash = :contentHash")
+    int touch(@Param("contentHash") String contentHash, @Param("releasedAt") Instant releasedAt);
+
+    @Query("SELECT r.contentHash FROM ReleasedContent r WHERE r.releasedAt < :before ORDER BY r.releasedAt")
+    List<String> findReleasedBefore(@Param("before") Instant before, Pageable pageable);
+}
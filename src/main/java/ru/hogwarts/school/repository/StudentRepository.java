@@ -1,14 +1,14 @@
 package ru.hogwarts.school.repository;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.data.jpa.repository.Query;
 import ru.hogwarts.school.model.Student;
 
 import java.util.List;
 
-public interface StudentRepository extends JpaRepository<Student, Long> {
-
-    List<Student> findByAgeBetween(int min, int max);
+public interface StudentRepository extends JpaRepository<Student, Long>, JpaSpecificationExecutor<Student>,
+        StudentSearchRepository {
 
     List<Student> findByFacultyId(Long facultyId);
 
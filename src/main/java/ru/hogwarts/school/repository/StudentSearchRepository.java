@@ -0,0 +1,20 @@
+package ru.hogwarts.school.repository;
+
+import org.springframework.data.jpa.domain.Specification;
+import ru.hogwarts.school.dto.StudentExportRow;
+import ru.hogwarts.school.dto.StudentStats;
+import ru.hogwarts.school.model.Student;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+// запросы по Specification, которые возвращают не сущности: агрегаты и отдельные колонки
+public interface StudentSearchRepository {
+
+    StudentStats aggregate(Specification<Student> spec);
+
+    List<String> findUpperCaseNames(Specification<Student> spec);
+
+    // поток нужно закрыть и читать внутри транзакции
+    Stream<StudentExportRow> streamExportRows(int fetchSize);
+}
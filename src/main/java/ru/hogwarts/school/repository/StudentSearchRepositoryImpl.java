@@ -0,0 +1,68 @@
+package ru.hogwarts.school.repository;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.Tuple;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Expression;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.jpa.domain.Specification;
+import ru.hogwarts.school.dto.StudentExportRow;
+import ru.hogwarts.school.dto.StudentStats;
+import ru.hogwarts.school.model.Student;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+public class StudentSearchRepositoryImpl implements StudentSearchRepository {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    // COUNT, AVG, MIN и MAX одним запросом, строки студентов в память не загружаются
+    @Override
+    public StudentStats aggregate(Specification<Student> spec) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = cb.createTupleQuery();
+        Root<Student> root = query.from(Student.class);
+        Expression<Integer> age = root.get("age");
+        query.multiselect(cb.count(root), cb.avg(age), cb.min(age), cb.max(age));
+        where(spec, root, query, cb);
+        Tuple result = entityManager.createQuery(query).getSingleResult();
+        return new StudentStats(result.get(0, Long.class), result.get(1, Double.class),
+                result.get(2, Integer.class), result.get(3, Integer.class));
+    }
+
+    @Override
+    public List<String> findUpperCaseNames(Specification<Student> spec) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<String> query = cb.createQuery(String.class);
+        Root<Student> root = query.from(Student.class);
+        Expression<String> name = cb.upper(root.get("name"));
+        query.select(name).orderBy(cb.asc(name));
+        where(spec, root, query, cb);
+        return entityManager.createQuery(query).getResultList();
+    }
+
+    // проекция вместо сущностей: контекст персистентности не растёт, факультеты не догружаются по одному;
+    // курсор только вперёд, строки приходят из БД порциями по fetchSize
+    @Override
+    public Stream<StudentExportRow> streamExportRows(int fetchSize) {
+        return entityManager.createQuery("SELECT new ru.hogwarts.school.dto.StudentExportRow(s.id, s.name, s.age, f.id) " +
+                        "FROM Student s LEFT JOIN s.faculty f ORDER BY s.id", StudentExportRow.class)
+                .setHint(HibernateHints.HINT_FETCH_SIZE, fetchSize)
+                .setHint(HibernateHints.HINT_READ_ONLY, true)
+                .getResultStream();
+    }
+
+    private static void where(Specification<Student> spec, Root<Student> root, CriteriaQuery<?> query,
+                              CriteriaBuilder cb) {
+        Predicate predicate = spec.toPredicate(root, query, cb);
+        if (predicate != null) {
+            query.where(predicate);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ru.hogwarts.school.repository;
+
+import org.springframework.data.jpa.domain.Specification;
+import ru.hogwarts.school.dto.StudentSearchFilter;
+import ru.hogwarts.school.model.Student;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// условия поиска студентов, которые собираются в один WHERE и выполняются в БД
+public final class StudentSpecifications {
+
+    private StudentSpecifications() {
+    }
+
+    public static Specification<Student> matching(StudentSearchFilter filter) {
+        List<Specification<Student>> conditions = new ArrayList<>();
+        if (filter.age() != null) {
+            conditions.add(ageEquals(filter.age()));
+        }
+        if (filter.minAge() != null || filter.maxAge() != null) {
+            conditions.add(ageBetween(filter.minAge(), filter.maxAge()));
+        }
+        if (filter.namePrefix() != null && !filter.namePrefix().isBlank()) {
+            conditions.add(nameStartsWith(filter.namePrefix()));
+        }
+        if (filter.facultyId() != null) {
+            conditions.add(inFaculty(filter.facultyId()));
+        }
+        // без условий - пустая конъюнкция, то есть все студенты
+        return Specification.allOf(conditions);
+    }
+
+    public static Specification<Student> ageEquals(int age) {
+        return (root, query, cb) -> cb.equal(root.get("age"), age);
+    }
+
+    // любая из границ может быть не задана
+    public static Specification<Student> ageBetween(Integer min, Integer max) {
+        return (root, query, cb) -> {
+            if (min != null && max != null) {
+                return cb.between(root.get("age"), min, max);
+            }
+            return min != null
+                    ? cb.greaterThanOrEqualTo(root.get("age"), min)
+                    : cb.lessThanOrEqualTo(root.get("age"), max);
+        };
+    }
+
+    // upper(name) LIKE 'ПРЕФИКС%' использует индекс по upper(name) из changelog
+    public static Specification<Student> nameStartsWith(String prefix) {
+        String pattern = prefix.toUpperCase(Locale.ROOT)
+                .replace("\\", "\\\\")
+                .replace("%", "\\%")
+                .replace("_", "\\_") + "%";
+        return (root, query, cb) -> cb.like(cb.upper(root.get("name")), pattern, '\\');
+    }
+
+    public static Specification<Student> inFaculty(Long facultyId) {
+        return (root, query, cb) -> cb.equal(root.get("faculty").get("id"), facultyId);
+    }
+}
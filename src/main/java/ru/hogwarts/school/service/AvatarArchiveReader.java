@@ -0,0 +1,234 @@
+package ru.hogwarts.school.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import ru.hogwarts.school.storage.AvatarBlobStore;
+import ru.hogwarts.school.storage.StoredBlob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+@Component
+@Slf4j
+public class AvatarArchiveReader {
+
+    public record Entry(String name, Long studentId, StoredBlob blob, String error) {
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AvatarIngestor avatarIngestor;
+    private final AvatarBlobStore avatarBlobStore;
+    private final AvatarContentGuard avatarContentGuard;
+    private final ExecutorService executor;
+    private final int maxPendingEntries;
+    private final long maxEntryBytes;
+
+    public AvatarArchiveReader(AvatarIngestor avatarIngestor, AvatarBlobStore avatarBlobStore,
+                               AvatarContentGuard avatarContentGuard,
+                               @Value("${avatar.import.workers:4}") int workers,
+                               @Value("${avatar.upload.max-bytes:10485760}") long maxEntryBytes) {
+        this.avatarIngestor = avatarIngestor;
+        this.avatarBlobStore = avatarBlobStore;
+        this.avatarContentGuard = avatarContentGuard;
+        this.maxEntryBytes = maxEntryBytes;
+        this.executor = Executors.newFixedThreadPool(workers, new CustomizableThreadFactory("avatar-import-"));
+        // сколько распакованных, но ещё не обработанных файлов может лежать на диске
+        this.maxPendingEntries = workers * 2;
+    }
+
+    // архив читается потоком: каждый файл распаковывается во временный файл и отдаётся пулу,
+    // а чтение следующего ждёт, пока очередь не освободится
+    public List<Entry> read(InputStream archive, String contentType) throws IOException {
+        List<Future<Entry>> futures = new ArrayList<>();
+        try {
+            unpack(archive, contentType, futures);
+            List<Entry> entries = new ArrayList<>(futures.size());
+            for (Future<Entry> future : futures) {
+                entries.add(await(future));
+            }
+            log.info("Из архива прочитано записей: {}", entries.size());
+            return entries;
+        } catch (IOException | RuntimeException e) {
+            // до импорта дело не дойдёт, поэтому удержанное содержимое отпускается здесь
+            discard(futures);
+            throw e;
+        }
+    }
+
+    private void unpack(InputStream archive, String contentType, List<Future<Entry>> futures) throws IOException {
+        Semaphore pending = new Semaphore(maxPendingEntries);
+        String current = null;
+        try (ArchiveInputStream<?> in = open(archive, contentType)) {
+            ArchiveEntry archiveEntry;
+            while ((archiveEntry = in.getNextEntry()) != null) {
+                current = archiveEntry.getName();
+                String fileName = fileName(current);
+                if (archiveEntry.isDirectory() || fileName.startsWith(".") || current.startsWith("__MACOSX/")) {
+                    continue;
+                }
+                Long studentId = parseStudentId(fileName);
+                if (studentId == null) {
+                    futures.add(CompletableFuture.completedFuture(new Entry(current, null, null,
+                            "Имя файла должно быть id студента, например 42.jpg")));
+                    continue;
+                }
+                if (!in.canReadEntryData(archiveEntry)) {
+                    futures.add(CompletableFuture.completedFuture(new Entry(current, studentId, null,
+                            "Формат записи архива не поддерживается")));
+                    continue;
+                }
+
+                // сжатая запись может распаковаться во много раз больше самого архива,
+                // поэтому на диск пишется не больше, чем разрешено для одной загрузки
+                Path tempFile = avatarBlobStore.createTempFile();
+                boolean copied;
+                try {
+                    copied = copy(in, tempFile);
+                } catch (IOException e) {
+                    Files.deleteIfExists(tempFile);
+                    throw e;
+                }
+                if (!copied) {
+                    Files.deleteIfExists(tempFile);
+                    log.warn("Запись {} архива больше {} байт, не распакована", current, maxEntryBytes);
+                    futures.add(CompletableFuture.completedFuture(new Entry(current, studentId, null,
+                            "Файл больше допустимого размера (" + maxEntryBytes + " байт)")));
+                    continue;
+                }
+                pending.acquireUninterruptibly();
+                String name = current;
+                try {
+                    futures.add(executor.submit(() -> {
+                        try {
+                            return new Entry(name, studentId, avatarIngestor.ingest(tempFile), null);
+                        } catch (IllegalArgumentException | IOException e) {
+                            log.debug("Файл {} из архива не принят: {}", name, e.getMessage());
+                            return new Entry(name, studentId, null, e.getMessage());
+                        } catch (RuntimeException e) {
+                            // испорченный заголовок может уронить декодер чем угодно, это ошибка одной записи
+                            log.warn("Ошибка обработки файла {} из архива", name, e);
+                            return new Entry(name, studentId, null, "Файл не удалось прочитать как изображение");
+                        } finally {
+                            pending.release();
+                        }
+                    }));
+                } catch (RuntimeException e) {
+                    pending.release();
+                    Files.deleteIfExists(tempFile);
+                    throw e;
+                }
+            }
+        } catch (IOException e) {
+            // уже распакованные файлы всё равно импортируются, остаток архива попадает в отчёт как ошибка
+            log.error("Ошибка чтения архива на записи {}", current, e);
+            futures.add(CompletableFuture.completedFuture(new Entry(current == null ? "" : current, null, null,
+                    "Архив повреждён или оборван: " + e.getMessage())));
+        }
+    }
+
+    // false, если запись больше maxEntryBytes: лишний байт читается только чтобы это заметить
+    private boolean copy(InputStream in, Path tempFile) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0;
+        try (OutputStream out = Files.newOutputStream(tempFile)) {
+            int read;
+            while ((read = in.read(buffer, 0, (int) Math.min(buffer.length, maxEntryBytes + 1 - size))) > 0) {
+                size += read;
+                if (size > maxEntryBytes) {
+                    return false;
+                }
+                out.write(buffer, 0, read);
+            }
+        }
+        return true;
+    }
+
+    // ждёт уже отданные пулу записи, чтобы они не оставили временных файлов, и отпускает принятое содержимое
+    private void discard(List<Future<Entry>> futures) {
+        boolean interrupted = false;
+        for (Future<Entry> future : futures) {
+            Entry entry = null;
+            while (true) {
+                try {
+                    entry = future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+            if (entry != null && entry.blob() != null) {
+                avatarContentGuard.release(entry.blob().hash());
+                try {
+                    avatarContentGuard.deleteIfUnreferenced(entry.blob().hash());
+                } catch (IOException | RuntimeException e) {
+                    log.error("Не удалось удалить содержимое {} после прерванного импорта", entry.blob().hash(), e);
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ArchiveInputStream<?> open(InputStream archive, String contentType) throws IOException {
+        MediaType mediaType = contentType == null ? null : MediaType.parseMediaType(contentType);
+        if (mediaType != null && ("zip".equals(mediaType.getSubtype()) || "x-zip-compressed".equals(mediaType.getSubtype()))) {
+            return new ZipArchiveInputStream(archive);
+        }
+        if (mediaType != null && "x-tar".equals(mediaType.getSubtype())) {
+            return new TarArchiveInputStream(archive);
+        }
+        if (mediaType != null && ("gzip".equals(mediaType.getSubtype()) || "x-gtar".equals(mediaType.getSubtype()))) {
+            return new TarArchiveInputStream(new GZIPInputStream(archive));
+        }
+        throw new IllegalArgumentException("Поддерживаются архивы zip, tar и tar.gz, получен " + contentType);
+    }
+
+    private static String fileName(String entryName) {
+        return entryName.substring(entryName.lastIndexOf('/') + 1);
+    }
+
+    private static Long parseStudentId(String fileName) {
+        int dot = fileName.indexOf('.');
+        String base = dot < 0 ? fileName : fileName.substring(0, dot);
+        try {
+            return Long.valueOf(base);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Entry await(Future<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Импорт прерван", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Ошибка обработки файла из архива", e.getCause());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,230 @@
+package ru.hogwarts.school.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.hogwarts.school.model.ReleasedContent;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.ReleasedContentRepository;
+import ru.hogwarts.school.storage.AvatarBlobStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+// одно содержимое делят несколько аватаров, поэтому между приёмом файла и коммитом строки avatar
+// на хэш никто в БД ещё не ссылается; принятый хэш удерживается до конца транзакции загрузки,
+// а удаление содержимого без ссылок идёт под той же полосой блокировки, что и put;
+// хранилище, общее для нескольких экземпляров, JVM-блокировкой не защитить: там освобождённое содержимое
+// помечается в avatar_released_content и удаляется после паузы под блокировкой строки этой таблицы
+@Component
+@Slf4j
+public class AvatarContentGuard {
+
+    private final AvatarRepository avatarRepository;
+    private final AvatarPreviewRepository avatarPreviewRepository;
+    private final AvatarBlobStore avatarBlobStore;
+    private final ReleasedContentRepository releasedContentRepository;
+    private final TransactionTemplate newTransaction;
+    private final Duration releaseGrace;
+    private final int sweepBatchSize;
+    private final ReentrantLock[] stripes;
+    private final Map<String, Integer> retained = new ConcurrentHashMap<>();
+
+    public AvatarContentGuard(AvatarRepository avatarRepository, AvatarPreviewRepository avatarPreviewRepository,
+                              AvatarBlobStore avatarBlobStore, ReleasedContentRepository releasedContentRepository,
+                              PlatformTransactionManager transactionManager,
+                              @Value("${avatar.content-locks.stripes:64}") int stripes,
+                              @Value("${avatar.store.release-sweep.batch-size:100}") int sweepBatchSize) {
+        this.avatarRepository = avatarRepository;
+        this.avatarPreviewRepository = avatarPreviewRepository;
+        this.avatarBlobStore = avatarBlobStore;
+        this.releasedContentRepository = releasedContentRepository;
+        this.releaseGrace = avatarBlobStore.releaseGrace();
+        this.sweepBatchSize = sweepBatchSize;
+        // удаление вызывается из afterCommit, где старая транзакция ещё привязана к потоку
+        this.newTransaction = new TransactionTemplate(transactionManager);
+        this.newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    // кладёт файл в хранилище и удерживает хэш, пока вызывающий не отпустит его через release
+    public Path put(String hash, Path tempFile) throws IOException {
+        ReentrantLock lock = stripe(hash);
+        lock.lock();
+        try {
+            retained.merge(hash, 1, Integer::sum);
+            try {
+                if (!releaseGrace.isZero()) {
+                    // снова занятое содержимое ждёт ещё одну паузу, а уже начатое на другом экземпляре
+                    // удаление держит строку до коммита, и put увидит объект уже удалённым
+                    newTransaction.executeWithoutResult(status -> releasedContentRepository.touch(hash, Instant.now()));
+                }
+                return avatarBlobStore.put(hash, tempFile);
+            } catch (IOException | RuntimeException e) {
+                release(hash);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(String hash) {
+        retained.computeIfPresent(hash, (key, count) -> count == 1 ? null : count - 1);
+    }
+
+    // строка avatar видна другим транзакциям только после коммита, до него хэш остаётся удержанным
+    public void releaseAfterCompletion(String hash) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            release(hash);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                release(hash);
+            }
+        });
+    }
+
+    // ссылки пересчитываются уже после коммита освобождающей транзакции, в новой транзакции
+    public boolean deleteIfUnreferenced(String hash) throws IOException {
+        if (!releaseGrace.isZero()) {
+            markReleased(hash);
+            return false;
+        }
+        ReentrantLock lock = stripe(hash);
+        lock.lock();
+        try {
+            if (retained.containsKey(hash)) {
+                log.debug("Содержимое {} принято незавершённой загрузкой, не удаляется", hash);
+                return false;
+            }
+            Boolean unreferenced = newTransaction.execute(status -> {
+                if (avatarRepository.countByContentHash(hash) > 0) {
+                    return false;
+                }
+                avatarPreviewRepository.deleteById(hash);
+                return true;
+            });
+            if (!Boolean.TRUE.equals(unreferenced)) {
+                return false;
+            }
+            avatarBlobStore.delete(hash);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${avatar.store.release-sweep.interval-ms:60000}")
+    public void sweepReleased() {
+        // у локальных хранилищ паузы нет и в avatar_released_content ничего не пишется, запрашивать таблицу незачем
+        if (releaseGrace.isZero()) {
+            return;
+        }
+        List<String> hashes = releasedContentRepository.findReleasedBefore(Instant.now().minus(releaseGrace),
+                PageRequest.of(0, sweepBatchSize));
+        for (String hash : hashes) {
+            try {
+                deleteReleased(hash);
+            } catch (RuntimeException e) {
+                log.error("Не удалось удалить освобождённое содержимое {}", hash, e);
+            }
+        }
+    }
+
+    private void markReleased(String hash) {
+        try {
+            newTransaction.executeWithoutResult(status -> {
+                Instant now = Instant.now();
+                if (avatarRepository.countByContentHash(hash) == 0 && releasedContentRepository.touch(hash, now) == 0) {
+                    releasedContentRepository.save(new ReleasedContent(hash, now));
+                }
+            });
+            log.debug("Содержимое {} освобождено и будет удалено через {}", hash, releaseGrace);
+        } catch (DataIntegrityViolationException e) {
+            log.debug("Содержимое {} уже освобождено другим экземпляром", hash);
+        }
+    }
+
+    // ссылки пересчитываются под блокировкой строки: загрузка того же содержимого ждёт её, а объект удаляется
+    // до коммита, поэтому загрузка после ожидания уже не найдёт его в хранилище и запишет заново
+    private void deleteReleased(String hash) {
+        ReentrantLock lock = stripe(hash);
+        lock.lock();
+        try {
+            if (retained.containsKey(hash)) {
+                log.debug("Содержимое {} принято незавершённой загрузкой, не удаляется", hash);
+                return;
+            }
+            newTransaction.executeWithoutResult(status -> {
+                Optional<ReleasedContent> released = releasedContentRepository.findForUpdate(hash);
+                if (released.isEmpty() || released.get().getReleasedAt().isAfter(Instant.now().minus(releaseGrace))) {
+                    return;
+                }
+                if (avatarRepository.countByContentHash(hash) == 0) {
+                    avatarPreviewRepository.deleteById(hash);
+                    try {
+                        avatarBlobStore.delete(hash);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                } else {
+                    log.debug("На содержимое {} снова ссылаются, удаление отменено", hash);
+                }
+                releasedContentRepository.delete(released.get());
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // запись, которая проверяет, что на содержимое ещё ссылаются (например, превью), не пересекается
+    // с удалением этого содержимого; полосы берутся по возрастанию номера
+    public <T> T locked(Collection<String> hashes, Supplier<T> action) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        hashes.forEach(hash -> indexes.add(index(hash)));
+        int locked = 0;
+        try {
+            for (Integer index : indexes) {
+                stripes[index].lock();
+                locked++;
+            }
+            return action.get();
+        } finally {
+            indexes.stream().limit(locked).forEach(index -> stripes[index].unlock());
+        }
+    }
+
+    private ReentrantLock stripe(String hash) {
+        return stripes[index(hash)];
+    }
+
+    private int index(String hash) {
+        return Math.floorMod(hash.hashCode(), stripes.length);
+    }
+}
@@ -0,0 +1,110 @@
+package ru.hogwarts.school.service;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.ServletWebRequest;
+import ru.hogwarts.school.storage.AvatarBlob;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.List;
+
+@Component
+@Slf4j
+public class AvatarDownloadWriter {
+
+    // атрибуты, через которые Tomcat отдаёт файл системным вызовом sendfile
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    // по версионному адресу содержимое никогда не меняется: новая загрузка получает новый адрес,
+    // поэтому браузер и CDN кешируют ответ навсегда и не переспрашивают сервер
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+    public void write(AvatarBlob blob, String mediaType, String etag, long lastModified, boolean immutable,
+                      HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // 304 обновляет заголовки сохранённого в кеше ответа, поэтому Cache-Control ставится и ему;
+        // ETag и Last-Modified checkNotModified выставляет сам в обоих случаях
+        response.setHeader(HttpHeaders.CACHE_CONTROL, immutable ? IMMUTABLE : "no-cache");
+        ServletWebRequest webRequest = new ServletWebRequest(request, response);
+        if (webRequest.checkNotModified(etag, lastModified)) {
+            log.debug("Аватар {} не изменился, отправлен ответ 304", etag);
+            return;
+        }
+
+        long length = blob.size();
+        long start = 0;
+        long end = length - 1;
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setContentType(mediaType);
+
+        HttpRange range = findRange(request, etag, lastModified);
+        if (range != null) {
+            start = range.getRangeStart(length);
+            if (start >= length) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            end = range.getRangeEnd(length);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        } else {
+            response.setStatus(HttpServletResponse.SC_OK);
+        }
+        long count = end - start + 1;
+        response.setContentLengthLong(count);
+
+        // sendfile возможен только для отдельного файла, кусок сегмента пишется из отображённой памяти
+        Path file = blob.file();
+        if (file != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, start + count);
+            log.debug("Аватар {} передан в sendfile, байты {}-{}", file, start, end);
+            return;
+        }
+        blob.transferTo(start, count, Channels.newChannel(response.getOutputStream()));
+        log.debug("Аватар {} отправлен, байты {}-{}", etag, start, end);
+    }
+
+    private HttpRange findRange(HttpServletRequest request, String etag, long lastModified) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null || !isIfRangeSatisfied(request, etag, lastModified)) {
+            return null;
+        }
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            log.debug("Некорректный заголовок Range: {}", rangeHeader);
+            return null;
+        }
+        // несколько диапазонов сразу не поддерживаем, отдаём файл целиком
+        return ranges.size() == 1 ? ranges.get(0) : null;
+    }
+
+    private boolean isIfRangeSatisfied(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag != null && etag.equals(ifRange);
+        }
+        try {
+            long ifRangeDate = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return lastModified >= 0 && lastModified / 1000 == ifRangeDate / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ru.hogwarts.school.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.hogwarts.school.dto.AvatarExportRow;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.storage.AvatarBlob;
+import ru.hogwarts.school.storage.AvatarBlobStore;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+
+@Component
+@Slf4j
+public class AvatarExporter {
+
+    public static final String MANIFEST_NAME = "manifest.ndjson";
+    public static final String SUMMARY_NAME = "export.json";
+
+    record ManifestLine(Long avatarId, Long studentId, String file, String contentHash, String mediaType,
+                        long fileSize, Instant updatedAt) {
+    }
+
+    // exportedAt - момент начала выгрузки, его можно передать как since в следующую инкрементальную выгрузку
+    record Summary(int count, Long lastId, Instant exportedAt) {
+    }
+
+    private final AvatarRepository avatarRepository;
+    private final AvatarBlobStore avatarBlobStore;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate readOnlyTransaction;
+    private final int pageSize;
+
+    public AvatarExporter(AvatarRepository avatarRepository, AvatarBlobStore avatarBlobStore, ObjectMapper objectMapper,
+                          PlatformTransactionManager transactionManager,
+                          @Value("${avatar.export.page-size:500}") int pageSize) {
+        this.avatarRepository = avatarRepository;
+        this.avatarBlobStore = avatarBlobStore;
+        this.objectMapper = objectMapper;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.pageSize = pageSize;
+    }
+
+    // страницы читаются по ключу в коротких транзакциях, в памяти держится только текущая страница;
+    // манифест копится во временном файле и дописывается в конец архива
+    public void export(Long sinceId, Instant since, OutputStream out) throws IOException {
+        Instant startedAt = Instant.now();
+        Path manifest = Files.createTempFile("avatar-manifest-", ".ndjson");
+        try {
+            AvatarTarWriter tar = new AvatarTarWriter(out);
+            Pageable page = PageRequest.of(0, pageSize);
+            long afterId = sinceId == null ? 0 : sinceId;
+            int count = 0;
+            Long lastId = sinceId;
+
+            try (BufferedWriter manifestWriter = Files.newBufferedWriter(manifest)) {
+                List<AvatarExportRow> rows;
+                do {
+                    long from = afterId;
+                    rows = readOnlyTransaction.execute(status -> since == null
+                            ? avatarRepository.findExportRows(from, page)
+                            : avatarRepository.findExportRowsUpdatedAfter(from, since, page));
+                    for (AvatarExportRow row : rows) {
+                        String file = "avatars/" + row.studentId() + "." + extension(row.mediaType());
+                        try (AvatarBlob blob = avatarBlobStore.open(row.contentHash(), row.filePath())) {
+                            tar.putBlob(file, blob, modified(row, startedAt));
+                        } catch (NoSuchFileException e) {
+                            log.warn("Файл аватара {} не найден в хранилище, в архив попадёт только запись манифеста",
+                                    row.filePath());
+                            file = null;
+                        }
+                        ManifestLine line = new ManifestLine(row.id(), row.studentId(), file, row.contentHash(),
+                                row.mediaType(), row.fileSize(), row.updatedAt());
+                        manifestWriter.write(objectMapper.writeValueAsString(line));
+                        manifestWriter.newLine();
+                        afterId = row.id();
+                        lastId = row.id();
+                        count++;
+                    }
+                } while (rows.size() == pageSize);
+            }
+
+            tar.putFile(MANIFEST_NAME, manifest, startedAt);
+            tar.putBytes(SUMMARY_NAME, objectMapper.writeValueAsBytes(new Summary(count, lastId, startedAt)), startedAt);
+            tar.finish();
+            log.info("Выгружено аватаров: {}, последний id = {}", count, lastId);
+        } finally {
+            Files.deleteIfExists(manifest);
+        }
+    }
+
+    private static Instant modified(AvatarExportRow row, Instant fallback) {
+        return row.updatedAt() == null ? fallback : row.updatedAt();
+    }
+
+    // расширение совпадает с тем, что понимает импорт: 42.jpg, 42.png
+    private static String extension(String mediaType) {
+        if (mediaType == null || !mediaType.startsWith("image/")) {
+            return "bin";
+        }
+        String subtype = mediaType.substring("image/".length()).toLowerCase(Locale.ROOT);
+        return "jpeg".equals(subtype) ? "jpg" : subtype;
+    }
+}
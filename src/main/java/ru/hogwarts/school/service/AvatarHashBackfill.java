@@ -0,0 +1,124 @@
+package ru.hogwarts.school.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.hogwarts.school.dto.AvatarHashRow;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.storage.AvatarBlob;
+import ru.hogwarts.school.storage.AvatarBlobStore;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// дозаполняет перцептивный хэш у аватаров, загруженных до его появления; содержимое декодируется
+// один раз на пачку, даже если на него ссылаются несколько студентов
+@Component
+@Slf4j
+public class AvatarHashBackfill {
+
+    private final AvatarRepository avatarRepository;
+    private final AvatarBlobStore avatarBlobStore;
+    private final AvatarPerceptualHasher avatarPerceptualHasher;
+    private final AvatarSimilarityIndex avatarSimilarityIndex;
+    private final AvatarWriteLocks avatarWriteLocks;
+    private final TransactionTemplate readOnlyTransaction;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean enabled;
+    private final int batchSize;
+    private final Duration idleDelay;
+
+    private long cursor;
+    private int filledInPass;
+    private Instant idleUntil = Instant.MIN;
+
+    public AvatarHashBackfill(AvatarRepository avatarRepository, AvatarBlobStore avatarBlobStore,
+                              AvatarPerceptualHasher avatarPerceptualHasher,
+                              AvatarSimilarityIndex avatarSimilarityIndex,
+                              AvatarWriteLocks avatarWriteLocks,
+                              PlatformTransactionManager transactionManager,
+                              @Value("${avatar.similarity.backfill.enabled:true}") boolean enabled,
+                              @Value("${avatar.similarity.backfill.batch-size:100}") int batchSize,
+                              @Value("${avatar.similarity.backfill.idle-ms:3600000}") long idleMs) {
+        this.avatarRepository = avatarRepository;
+        this.avatarBlobStore = avatarBlobStore;
+        this.avatarPerceptualHasher = avatarPerceptualHasher;
+        this.avatarSimilarityIndex = avatarSimilarityIndex;
+        this.avatarWriteLocks = avatarWriteLocks;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.idleDelay = Duration.ofMillis(idleMs);
+    }
+
+    @Scheduled(fixedDelayString = "${avatar.similarity.backfill.interval-ms:10000}",
+            initialDelayString = "${avatar.similarity.backfill.initial-delay-ms:30000}")
+    public void backfill() {
+        if (!enabled || Instant.now().isBefore(idleUntil)) {
+            return;
+        }
+        backfillBatch();
+    }
+
+    public synchronized int backfillBatch() {
+        List<AvatarHashRow> rows = readOnlyTransaction.execute(
+                status -> avatarRepository.findMissingPerceptualHashes(cursor, PageRequest.of(0, batchSize)));
+        Map<String, Long> hashes = new HashMap<>();
+        int filled = 0;
+        for (AvatarHashRow row : rows) {
+            cursor = row.id();
+            Long perceptualHash = hashes.computeIfAbsent(row.contentHash(), this::perceptualHash);
+            if (perceptualHash != null && fill(row, perceptualHash)) {
+                filled++;
+            }
+        }
+        filledInPass += filled;
+
+        // строки, которые не удалось декодировать, остаются без хэша; после прохода без единого
+        // заполнения задача засыпает, новые загрузки получают хэш сразу при приёме
+        if (rows.size() < batchSize) {
+            if (filledInPass == 0) {
+                idleUntil = Instant.now().plus(idleDelay);
+                log.debug("Перцептивные хэши есть у всех аватаров");
+            } else {
+                log.info("Проход заполнения перцептивных хэшей завершён, заполнено строк: {}", filledInPass);
+            }
+            cursor = 0;
+            filledInPass = 0;
+        }
+        return filled;
+    }
+
+    // строка и индекс обновляются под блокировкой записи студента: загрузка нового аватара, начатая
+    // после чтения строки, ждёт её и кладёт свой хэш в индекс позже, а не наоборот;
+    // так же хэш записывает и конвейер превью
+    boolean fill(AvatarHashRow row, long perceptualHash) {
+        return Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+            avatarWriteLocks.lockUntilCompletion(List.of(row.studentId()));
+            if (avatarRepository.fillPerceptualHash(row.id(), row.contentHash(), perceptualHash) == 0) {
+                return false;
+            }
+            avatarSimilarityIndex.put(row.studentId(), perceptualHash);
+            return true;
+        }));
+    }
+
+    private Long perceptualHash(String contentHash) {
+        try (AvatarBlob blob = avatarBlobStore.open(contentHash)) {
+            return avatarPerceptualHasher.hash(blob);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Не удалось посчитать перцептивный хэш для {}: {}", contentHash, e.getMessage());
+            return null;
+        }
+    }
+}
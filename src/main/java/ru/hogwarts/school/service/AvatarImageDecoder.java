@@ -0,0 +1,111 @@
+package ru.hogwarts.school.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.hogwarts.school.storage.AvatarBlob;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+@Component
+@Slf4j
+public class AvatarImageDecoder {
+
+    public record ImageHeader(String format, int width, int height) {
+    }
+
+    private final long maxPixels;
+    private final int maxDimension;
+
+    public AvatarImageDecoder(@Value("${avatar.image.max-pixels:40000000}") long maxPixels,
+                              @Value("${avatar.image.max-dimension:12000}") int maxDimension) {
+        this.maxPixels = maxPixels;
+        this.maxDimension = maxDimension;
+        // без дискового кэша ImageIO не создаёт временные файлы на каждое чтение
+        ImageIO.setUseCache(false);
+    }
+
+    public ImageHeader probe(Path file) throws IOException {
+        return probe(ImageIO.createImageInputStream(file.toFile()), file.getFileName().toString());
+    }
+
+    public ImageHeader probe(AvatarBlob blob) throws IOException {
+        return blob.file() != null
+                ? probe(blob.file())
+                : probe(ImageIO.createImageInputStream(blob.openStream()), "из хранилища");
+    }
+
+    private ImageHeader probe(ImageInputStream input, String name) throws IOException {
+        try (ImageInputStream iis = input) {
+            ImageReader reader = findReader(iis, name);
+            try {
+                reader.setInput(iis, true, true);
+                ImageHeader header = new ImageHeader(reader.getFormatName(), reader.getWidth(0), reader.getHeight(0));
+                checkLimits(header);
+                return header;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    public BufferedImage decodeForWidth(Path file, int targetWidth) throws IOException {
+        return decodeForWidth(ImageIO.createImageInputStream(file.toFile()), file.getFileName().toString(), targetWidth);
+    }
+
+    public BufferedImage decodeForWidth(AvatarBlob blob, int targetWidth) throws IOException {
+        return blob.file() != null
+                ? decodeForWidth(blob.file(), targetWidth)
+                : decodeForWidth(ImageIO.createImageInputStream(blob.openStream()), "из хранилища", targetWidth);
+    }
+
+    // читает изображение с прореживанием так, чтобы результат был не меньше чем вдвое шире целевого
+    private BufferedImage decodeForWidth(ImageInputStream input, String name, int targetWidth) throws IOException {
+        try (ImageInputStream iis = input) {
+            ImageReader reader = findReader(iis, name);
+            try {
+                reader.setInput(iis, true, true);
+                ImageHeader header = new ImageHeader(reader.getFormatName(), reader.getWidth(0), reader.getHeight(0));
+                checkLimits(header);
+
+                int subsampling = Math.max(1, header.width() / (targetWidth * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage image = reader.read(0, param);
+                log.debug("Изображение {}x{} прочитано с прореживанием {} в {}x{}", header.width(), header.height(),
+                        subsampling, image.getWidth(), image.getHeight());
+                return image;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private ImageReader findReader(ImageInputStream iis, String name) {
+        if (iis == null) {
+            throw new IllegalArgumentException("Не удалось открыть изображение " + name);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            throw new IllegalArgumentException("Формат изображения не поддерживается");
+        }
+        return readers.next();
+    }
+
+    private void checkLimits(ImageHeader header) {
+        if (header.width() <= 0 || header.height() <= 0
+                || header.width() > maxDimension || header.height() > maxDimension
+                || (long) header.width() * header.height() > maxPixels) {
+            log.error("Изображение {}x{} превышает допустимые размеры", header.width(), header.height());
+            throw new IllegalArgumentException("Изображение " + header.width() + "x" + header.height()
+                    + " превышает допустимый размер (" + maxPixels + " пикселей, " + maxDimension + " по стороне)");
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ru.hogwarts.school.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+@Component
+@Slf4j
+public class AvatarImageResizer {
+
+    public enum Algorithm {
+        NEAREST,
+        BILINEAR,
+        PROGRESSIVE_BILINEAR,
+        AREA_AVERAGING
+    }
+
+    // промежуточные растры больше этого размера (4 МБ в INT-формате) создаются на один вызов
+    static final long MAX_SCRATCH_PIXELS = 1_000_000L;
+
+    // пар промежуточных растров не больше, чем здесь, сколько бы потоков ни уменьшало изображения:
+    // удержанная память ограничена 2 * 4 * 4 МБ, а не растёт с числом потоков пула
+    static final int SCRATCH_POOL_SIZE = 4;
+
+    private static final BlockingQueue<BufferedImage[]> SCRATCH = new ArrayBlockingQueue<>(SCRATCH_POOL_SIZE);
+
+    private final Algorithm algorithm;
+
+    public AvatarImageResizer(@Value("${avatar.resize.algorithm:PROGRESSIVE_BILINEAR}") Algorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public BufferedImage resize(BufferedImage source, int width, int height) {
+        return resize(source, width, height, algorithm);
+    }
+
+    public static BufferedImage resize(BufferedImage source, int width, int height, Algorithm algorithm) {
+        int type = targetType(source);
+        return switch (algorithm) {
+            case NEAREST -> draw(source, width, height, type, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            case BILINEAR -> draw(source, width, height, type, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            case PROGRESSIVE_BILINEAR -> progressive(source, width, height, type);
+            case AREA_AVERAGING -> areaAveraging(source, width, height, type);
+        };
+    }
+
+    // TYPE_CUSTOM и индексированные палитры приводятся к INT_RGB/INT_ARGB, которые Java2D рисует быстрее всего
+    public static int targetType(BufferedImage source) {
+        return source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+    }
+
+    private static BufferedImage draw(BufferedImage source, int width, int height, int type, Object interpolation) {
+        BufferedImage result = new BufferedImage(width, height, type);
+        Graphics2D graphics = result.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+        graphics.drawImage(source, 0, 0, width, height, null);
+        graphics.dispose();
+        return result;
+    }
+
+    // уменьшение в два раза за шаг, пока до цели не останется меньше двух раз, затем финальный шаг
+    private static BufferedImage progressive(BufferedImage source, int width, int height, int type) {
+        BufferedImage current = source;
+        int currentWidth = source.getWidth();
+        int currentHeight = source.getHeight();
+        int step = 0;
+        // пара занята до конца вызова: второй растр - источник следующего шага; без свободной пары берётся новая
+        BufferedImage[] buffers = SCRATCH.poll();
+        if (buffers == null) {
+            buffers = new BufferedImage[2];
+        }
+        try {
+            while (currentWidth / 2 >= width && currentHeight / 2 >= height) {
+                int nextWidth = currentWidth / 2;
+                int nextHeight = currentHeight / 2;
+                BufferedImage scratch = scratch(buffers, step % 2, nextWidth, nextHeight, type);
+                Graphics2D graphics = scratch.createGraphics();
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setComposite(AlphaComposite.Src);
+                graphics.drawImage(current, 0, 0, nextWidth, nextHeight, 0, 0, currentWidth, currentHeight, null);
+                graphics.dispose();
+                current = scratch;
+                currentWidth = nextWidth;
+                currentHeight = nextHeight;
+                step++;
+            }
+
+            BufferedImage result = new BufferedImage(width, height, type);
+            Graphics2D graphics = result.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(current, 0, 0, width, height, 0, 0, currentWidth, currentHeight, null);
+            graphics.dispose();
+            return result;
+        } finally {
+            SCRATCH.offer(buffers);
+        }
+    }
+
+    private static BufferedImage areaAveraging(BufferedImage source, int width, int height, int type) {
+        Image scaled = source.getScaledInstance(width, height, Image.SCALE_AREA_AVERAGING);
+        BufferedImage result = new BufferedImage(width, height, type);
+        Graphics2D graphics = result.createGraphics();
+        graphics.drawImage(scaled, 0, 0, null);
+        graphics.dispose();
+        return result;
+    }
+
+    private static BufferedImage scratch(BufferedImage[] buffers, int slot, int width, int height, int type) {
+        if ((long) width * height > MAX_SCRATCH_PIXELS) {
+            return new BufferedImage(width, height, type);
+        }
+        BufferedImage buffer = buffers[slot];
+        if (buffer == null || buffer.getType() != type || buffer.getWidth() < width || buffer.getHeight() < height) {
+            int scratchWidth = buffer == null ? width : Math.max(width, buffer.getWidth());
+            int scratchHeight = buffer == null ? height : Math.max(height, buffer.getHeight());
+            if ((long) scratchWidth * scratchHeight > MAX_SCRATCH_PIXELS) {
+                scratchWidth = width;
+                scratchHeight = height;
+            }
+            buffer = new BufferedImage(scratchWidth, scratchHeight, type);
+            buffers[slot] = buffer;
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,162 @@
+package ru.hogwarts.school.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import ru.hogwarts.school.storage.AvatarBlobStore;
+import ru.hogwarts.school.storage.StoredBlob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// хэш принятого содержимого удержан от удаления, вызывающий отпускает его через AvatarContentGuard
+// после коммита строки avatar, которая на него ссылается
+@Component
+@Slf4j
+public class AvatarIngestor {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 12;
+
+    private final AvatarBlobStore avatarBlobStore;
+    private final AvatarImageDecoder avatarImageDecoder;
+    private final AvatarContentGuard avatarContentGuard;
+
+    public AvatarIngestor(AvatarBlobStore avatarBlobStore, AvatarImageDecoder avatarImageDecoder,
+                          AvatarContentGuard avatarContentGuard) {
+        this.avatarBlobStore = avatarBlobStore;
+        this.avatarImageDecoder = avatarImageDecoder;
+        this.avatarContentGuard = avatarContentGuard;
+    }
+
+    // за один проход по загрузке: запись на диск, SHA-256, реальный размер и тип по сигнатуре файла
+    public StoredBlob ingest(InputStream inputStream) throws IOException {
+        Path tempFile = avatarBlobStore.createTempFile();
+        try {
+            MessageDigest digest = newDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] header = new byte[HEADER_SIZE];
+            int headerLength = 0;
+            long size = 0;
+
+            try (ReadableByteChannel in = Channels.newChannel(inputStream);
+                 FileChannel out = FileChannel.open(tempFile, WRITE)) {
+                while (in.read(buffer) != -1) {
+                    buffer.flip();
+                    int read = buffer.remaining();
+                    if (headerLength < HEADER_SIZE) {
+                        int n = Math.min(read, HEADER_SIZE - headerLength);
+                        System.arraycopy(buffer.array(), 0, header, headerLength, n);
+                        headerLength += n;
+                    }
+                    digest.update(buffer.array(), 0, read);
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    size += read;
+                    buffer.clear();
+                }
+            }
+
+            return store(tempFile, digest, header, headerLength, size);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    // файл уже лежит во временном файле хранилища (например, распакован из архива): хэш считается по нему,
+    // а сам файл переносится в хранилище без повторного копирования
+    public StoredBlob ingest(Path tempFile) throws IOException {
+        try {
+            MessageDigest digest = newDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] header = new byte[HEADER_SIZE];
+            int headerLength = 0;
+            long size = 0;
+
+            try (FileChannel in = FileChannel.open(tempFile, READ)) {
+                while (in.read(buffer) != -1) {
+                    buffer.flip();
+                    int read = buffer.remaining();
+                    if (headerLength < HEADER_SIZE) {
+                        int n = Math.min(read, HEADER_SIZE - headerLength);
+                        System.arraycopy(buffer.array(), 0, header, headerLength, n);
+                        headerLength += n;
+                    }
+                    digest.update(buffer.array(), 0, read);
+                    size += read;
+                    buffer.clear();
+                }
+            }
+            return store(tempFile, digest, header, headerLength, size);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private StoredBlob store(Path tempFile, MessageDigest digest, byte[] header, int headerLength, long size)
+            throws IOException {
+        String mediaType = sniffMediaType(header, headerLength);
+        if (mediaType == null) {
+            log.error("Загруженный файл не является поддерживаемым изображением");
+            throw new IllegalArgumentException("Файл не является изображением (jpeg, png, gif, webp, bmp)");
+        }
+        AvatarImageDecoder.ImageHeader imageHeader = avatarImageDecoder.probe(tempFile);
+        String hash = HexFormat.of().formatHex(digest.digest());
+        Path path = avatarContentGuard.put(hash, tempFile);
+        log.debug("Принят файл аватара {}: {} байт, тип {}, {}x{}", hash, size, mediaType,
+                imageHeader.width(), imageHeader.height());
+        return new StoredBlob(hash, path, size, mediaType);
+    }
+
+    static String sniffMediaType(byte[] header, int length) {
+        if (startsWith(header, length, 0xFF, 0xD8, 0xFF)) {
+            return "image/jpeg";
+        }
+        if (startsWith(header, length, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+            return "image/png";
+        }
+        if (startsWith(header, length, 'G', 'I', 'F', '8')) {
+            return "image/gif";
+        }
+        if (startsWith(header, length, 'R', 'I', 'F', 'F') && length >= 12
+                && header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P') {
+            return "image/webp";
+        }
+        if (startsWith(header, length, 'B', 'M')) {
+            return "image/bmp";
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] header, int length, int... signature) {
+        if (length < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((header[i] & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 недоступен", e);
+        }
+    }
+}
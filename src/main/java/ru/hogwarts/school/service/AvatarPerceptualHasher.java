@@ -0,0 +1,55 @@
+package ru.hogwarts.school.service;
+
+import org.springframework.stereotype.Component;
+import ru.hogwarts.school.storage.AvatarBlob;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+// dHash: изображение сжимается до 9x8 в оттенках серого, каждый бит - ярче ли пиксель своего правого соседа;
+// перекодирование и изменение размера меняют лишь несколько бит из 64
+@Component
+public class AvatarPerceptualHasher {
+
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 8;
+    // достаточно прочитать изображение с прореживанием, мелкие детали хэшу не нужны
+    private static final int DECODE_WIDTH = 32;
+
+    private final AvatarImageDecoder avatarImageDecoder;
+
+    public AvatarPerceptualHasher(AvatarImageDecoder avatarImageDecoder) {
+        this.avatarImageDecoder = avatarImageDecoder;
+    }
+
+    public long hash(AvatarBlob blob) throws IOException {
+        return hash(avatarImageDecoder.decodeForWidth(blob, DECODE_WIDTH));
+    }
+
+    // алгоритм уменьшения зафиксирован: от настройки avatar.resize.algorithm хэш зависеть не должен
+    public long hash(BufferedImage image) {
+        BufferedImage small = AvatarImageResizer.resize(image, WIDTH, HEIGHT,
+                AvatarImageResizer.Algorithm.AREA_AVERAGING);
+        long hash = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            int left = luminance(small.getRGB(0, y));
+            for (int x = 1; x < WIDTH; x++) {
+                int right = luminance(small.getRGB(x, y));
+                hash = (hash << 1) | (left > right ? 1 : 0);
+                left = right;
+            }
+        }
+        return hash;
+    }
+
+    public static int distance(long first, long second) {
+        return Long.bitCount(first ^ second);
+    }
+
+    private static int luminance(int rgb) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        return (299 * r + 587 * g + 114 * b) / 1000;
+    }
+}
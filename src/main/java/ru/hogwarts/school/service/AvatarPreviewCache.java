@@ -0,0 +1,82 @@
+package ru.hogwarts.school.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.hogwarts.school.model.AvatarPreview;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+@Component
+@Slf4j
+public class AvatarPreviewCache {
+
+    private static final int STAMP_STRIPES = 1024;
+
+    private final Cache<Long, AvatarPreview> cache;
+    // счётчики инвалидаций по полосам id: загрузка, прочитавшая БД до инвалидации, не кладёт устаревшее превью
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+
+    public AvatarPreviewCache(MeterRegistry meterRegistry,
+                              @Value("${avatar.preview.cache.max-bytes:67108864}") long maxBytes) {
+        // Caffeine вытесняет по W-TinyLFU, вес записи - размер превью в байтах
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Long studentId, AvatarPreview preview) -> preview.getData().length)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "avatarPreviews");
+    }
+
+    public Optional<AvatarPreview> get(Long studentId, Function<Long, Optional<AvatarPreview>> loader) {
+        return Optional.ofNullable(cache.get(studentId, id -> loader.apply(id).orElse(null)));
+    }
+
+    public Map<Long, AvatarPreview> getAllPresent(Collection<Long> studentIds) {
+        return cache.getAllPresent(studentIds);
+    }
+
+    // загрузка пачкой одним запросом; превью кладётся в кэш атомарно по ключу и только если между чтением
+    // из БД и записью в кэш этого студента не инвалидировали
+    public Map<Long, AvatarPreview> getAll(Collection<Long> studentIds,
+                                           Function<Collection<Long>, Map<Long, AvatarPreview>> loader) {
+        Map<Long, AvatarPreview> found = new HashMap<>(cache.getAllPresent(studentIds));
+        List<Long> missing = studentIds.stream().filter(id -> !found.containsKey(id)).toList();
+        if (missing.isEmpty()) {
+            return found;
+        }
+        Map<Long, Long> before = new HashMap<>();
+        missing.forEach(id -> before.put(id, stamp(id)));
+        loader.apply(missing).forEach((id, preview) -> {
+            found.put(id, preview);
+            cache.asMap().compute(id, (key, current) -> current != null || stamp(key) != before.get(key)
+                    ? current
+                    : preview);
+        });
+        return found;
+    }
+
+    public void invalidate(Long studentId) {
+        stamps.incrementAndGet(stripe(studentId));
+        cache.invalidate(studentId);
+        log.debug("Превью студента id = {} удалено из кэша", studentId);
+    }
+
+    private long stamp(Long studentId) {
+        return stamps.get(stripe(studentId));
+    }
+
+    private static int stripe(Long studentId) {
+        return Math.floorMod(Long.hashCode(studentId), STAMP_STRIPES);
+    }
+}
@@ -0,0 +1,199 @@
+package ru.hogwarts.school.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.hogwarts.school.dto.AvatarHashRow;
+import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.AvatarPreview;
+import ru.hogwarts.school.model.PreviewStatus;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.storage.AvatarBlob;
+import ru.hogwarts.school.storage.AvatarBlobStore;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.*;
+
+@Component
+@Slf4j
+public class AvatarPreviewPipeline {
+
+    private final AvatarRepository avatarRepository;
+    private final AvatarPreviewRepository avatarPreviewRepository;
+    private final AvatarBlobStore avatarBlobStore;
+    private final AvatarImageDecoder avatarImageDecoder;
+    private final AvatarImageResizer avatarImageResizer;
+    private final AvatarContentGuard avatarContentGuard;
+    private final AvatarPerceptualHasher avatarPerceptualHasher;
+    private final AvatarHashBackfill avatarHashBackfill;
+    private final TransactionTemplate transactionTemplate;
+    private final int previewWidth;
+    private final int queueCapacity;
+    private final int maxAttempts;
+    private final long retryDelayMs;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService retryScheduler;
+    // true - пока содержимое обрабатывалось, его прислали ещё раз
+    private final Map<String, Boolean> inFlight = new ConcurrentHashMap<>();
+
+    public AvatarPreviewPipeline(AvatarRepository avatarRepository, AvatarPreviewRepository avatarPreviewRepository,
+                                 AvatarBlobStore avatarBlobStore, AvatarImageDecoder avatarImageDecoder, AvatarImageResizer avatarImageResizer,
+                                 AvatarContentGuard avatarContentGuard, AvatarPerceptualHasher avatarPerceptualHasher,
+                                 AvatarHashBackfill avatarHashBackfill, TransactionTemplate transactionTemplate,
+                                 @Value("${avatar.preview.width:100}") int previewWidth,
+                                 @Value("${avatar.preview.workers:2}") int workers,
+                                 @Value("${avatar.preview.queue-capacity:100}") int queueCapacity,
+                                 @Value("${avatar.preview.max-attempts:3}") int maxAttempts,
+                                 @Value("${avatar.preview.retry-delay-ms:1000}") long retryDelayMs) {
+        this.avatarRepository = avatarRepository;
+        this.avatarPreviewRepository = avatarPreviewRepository;
+        this.avatarBlobStore = avatarBlobStore;
+        this.avatarImageDecoder = avatarImageDecoder;
+        this.avatarImageResizer = avatarImageResizer;
+        this.avatarContentGuard = avatarContentGuard;
+        this.avatarPerceptualHasher = avatarPerceptualHasher;
+        this.avatarHashBackfill = avatarHashBackfill;
+        this.transactionTemplate = transactionTemplate;
+        this.previewWidth = previewWidth;
+        this.queueCapacity = queueCapacity;
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMs = retryDelayMs;
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("avatar-preview-"));
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(
+                new CustomizableThreadFactory("avatar-preview-retry-"));
+    }
+
+    // загрузка, закоммиченная во время обработки того же содержимого, могла с ней разминуться,
+    // поэтому такое содержимое после текущего прохода обрабатывается ещё раз
+    public void submit(String contentHash) {
+        if (!inFlight.merge(contentHash, false, (running, again) -> true)) {
+            enqueue(contentHash, 1);
+        }
+    }
+
+    // превью, не попавшие в очередь (переполнение, рестарт приложения), подбираются повторно
+    @Scheduled(fixedDelayString = "${avatar.preview.recovery-interval-ms:60000}")
+    public void resubmitPending() {
+        avatarRepository.findContentHashesByPreviewStatus(PreviewStatus.PENDING, PageRequest.of(0, queueCapacity))
+                .forEach(this::submit);
+    }
+
+    private void enqueue(String contentHash, int attempt) {
+        try {
+            executor.execute(() -> process(contentHash, attempt));
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(contentHash);
+            log.warn("Очередь генерации превью переполнена, содержимое {} будет обработано позже", contentHash);
+        }
+    }
+
+    private void process(String contentHash, int attempt) {
+        try {
+            Optional<Avatar> avatar = avatarRepository.findFirstByContentHash(contentHash);
+            if (avatar.isEmpty()) {
+                log.debug("Аватаров с содержимым {} больше нет, превью не нужно", contentHash);
+                finish(contentHash);
+                return;
+            }
+            BufferedImage image;
+            try (AvatarBlob blob = avatarBlobStore.open(contentHash)) {
+                image = avatarImageDecoder.decodeForWidth(blob, previewWidth);
+            }
+            AvatarPreview preview = generateDataForBD(contentHash, image, avatar.get().getMediaType());
+            // хэш пишется раньше превью: загрузка, которая уже видит превью, найдёт и хэш
+            fillPerceptualHash(contentHash, image);
+            // пока превью строилось, последний аватар с этим содержимым мог удалиться: тогда строка превью
+            // осталась бы без аватара, поэтому она пишется под той же блокировкой, что и удаление содержимого
+            Integer updated = avatarContentGuard.locked(List.of(contentHash), () -> transactionTemplate.execute(status -> {
+                int completed = avatarRepository.completePreview(contentHash);
+                if (completed > 0) {
+                    avatarPreviewRepository.save(preview);
+                }
+                return completed;
+            }));
+            log.debug("Превью для содержимого {} готово, обновлено аватаров: {}", contentHash, updated);
+            finish(contentHash);
+        } catch (Exception e) {
+            if (attempt < maxAttempts) {
+                log.warn("Не удалось создать превью для {} (попытка {} из {})", contentHash, attempt, maxAttempts, e);
+                retryScheduler.schedule(() -> enqueue(contentHash, attempt + 1),
+                        retryDelayMs * attempt, TimeUnit.MILLISECONDS);
+            } else {
+                log.error("Превью для {} не создано после {} попыток", contentHash, maxAttempts, e);
+                avatarRepository.failPreview(contentHash);
+                finish(contentHash);
+            }
+        }
+    }
+
+    private void finish(String contentHash) {
+        if (!inFlight.remove(contentHash, false) && inFlight.replace(contentHash, true, false)) {
+            enqueue(contentHash, 1);
+        }
+    }
+
+    // изображение здесь уже декодировано, поэтому перцептивный хэш считается в конвейере, а не в потоке загрузки;
+    // если не вышло, его досчитает фоновое заполнение, а превью из-за этого заново не строится
+    private void fillPerceptualHash(String contentHash, BufferedImage image) {
+        try {
+            long perceptualHash = avatarPerceptualHasher.hash(image);
+            for (AvatarHashRow row : avatarRepository.findMissingPerceptualHashesByContentHash(contentHash)) {
+                avatarHashBackfill.fill(row, perceptualHash);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Не удалось записать перцептивный хэш для {}: {}", contentHash, e.getMessage());
+        }
+    }
+
+    // вызывается и массовой перегенерацией превью, которая пишет результаты пачками сама
+    AvatarPreview generateDataForBD(String contentHash, AvatarBlob source, String mediaType) throws IOException {
+        return generateDataForBD(contentHash, avatarImageDecoder.decodeForWidth(source, previewWidth), mediaType);
+    }
+
+    private AvatarPreview generateDataForBD(String contentHash, BufferedImage image, String mediaType)
+            throws IOException {
+        log.debug("Вызван метод генерации уменьшенной копии для аватара");
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            int height = Math.max(1, Math.round((float) image.getHeight() * previewWidth / image.getWidth()));
+            BufferedImage preview = avatarImageResizer.resize(image, previewWidth, height);
+
+            // превью пишется в формате оригинала, если для него есть ImageWriter (для webp его нет)
+            Iterator<ImageWriter> writers = mediaType == null
+                    ? Collections.emptyIterator()
+                    : ImageIO.getImageWritersByMIMEType(mediaType);
+            String previewMediaType = mediaType;
+            if (!writers.hasNext()
+                    || !ImageIO.write(preview, writers.next().getOriginatingProvider().getFormatNames()[0], baos)) {
+                baos.reset();
+                previewMediaType = MediaType.IMAGE_PNG_VALUE;
+                ImageIO.write(preview, "png", baos);
+            }
+            log.debug("Уменьшенное изображение создано");
+            return new AvatarPreview(contentHash, previewMediaType, baos.toByteArray());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        retryScheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+}
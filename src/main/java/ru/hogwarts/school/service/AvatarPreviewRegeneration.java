@@ -0,0 +1,288 @@
+package ru.hogwarts.school.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.hogwarts.school.dto.AvatarExportRow;
+import ru.hogwarts.school.dto.PreviewRegenerationStatus;
+import ru.hogwarts.school.dto.PreviewRegenerationStatus.State;
+import ru.hogwarts.school.model.AvatarPreview;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.storage.AvatarBlob;
+import ru.hogwarts.school.storage.AvatarBlobStore;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+// перегенерация превью всех аватаров после смены размера или качества: строки avatar обходятся
+// пачками по id, превью пачки считаются пулом потоков с низким приоритетом и пишутся одной транзакцией;
+// после каждой пачки id последней строки сохраняется в файл, с него продолжается прерванный запуск
+@Component
+@Slf4j
+public class AvatarPreviewRegeneration {
+
+    private final AvatarRepository avatarRepository;
+    private final AvatarPreviewRepository avatarPreviewRepository;
+    private final AvatarBlobStore avatarBlobStore;
+    private final AvatarPreviewPipeline avatarPreviewPipeline;
+    private final AvatarPreviewCache avatarPreviewCache;
+    private final AvatarContentGuard avatarContentGuard;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate readOnlyTransaction;
+    private final Path checkpoint;
+    private final int batchSize;
+    private final double maxPerSecond;
+    private final long batchPauseMs;
+    private final double maxLoad;
+
+    private final ExecutorService coordinator;
+    private final ExecutorService workers;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    private volatile State state = State.IDLE;
+    private volatile boolean stopRequested;
+    private volatile long total;
+    private volatile long lastAvatarId;
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private long nextSlotNanos;
+
+    public AvatarPreviewRegeneration(AvatarRepository avatarRepository,
+                                     AvatarPreviewRepository avatarPreviewRepository,
+                                     AvatarBlobStore avatarBlobStore, AvatarPreviewPipeline avatarPreviewPipeline,
+                                     AvatarPreviewCache avatarPreviewCache, AvatarContentGuard avatarContentGuard,
+                                     PlatformTransactionManager transactionManager,
+                                     @Value("${avatar.preview.regeneration.checkpoint-file:${path.to.avatars.folder}-state/preview-regeneration.checkpoint}")
+                                     String checkpointFile,
+                                     @Value("${avatar.preview.regeneration.workers:2}") int workers,
+                                     @Value("${avatar.preview.regeneration.batch-size:100}") int batchSize,
+                                     @Value("${avatar.preview.regeneration.max-per-second:0}") double maxPerSecond,
+                                     @Value("${avatar.preview.regeneration.batch-pause-ms:0}") long batchPauseMs,
+                                     @Value("${avatar.preview.regeneration.max-load:0}") double maxLoad) {
+        this.avatarRepository = avatarRepository;
+        this.avatarPreviewRepository = avatarPreviewRepository;
+        this.avatarBlobStore = avatarBlobStore;
+        this.avatarPreviewPipeline = avatarPreviewPipeline;
+        this.avatarPreviewCache = avatarPreviewCache;
+        this.avatarContentGuard = avatarContentGuard;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        // не в каталоге хранилища: сверка хранилища считает файлы в его корне сиротами и удаляет их
+        this.checkpoint = Path.of(checkpointFile);
+        this.batchSize = batchSize;
+        this.maxPerSecond = maxPerSecond;
+        this.batchPauseMs = batchPauseMs;
+        this.maxLoad = maxLoad;
+        this.coordinator = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("avatar-preview-regen-"));
+        // потоки с низким приоритетом уступают процессор потокам, обслуживающим запросы
+        CustomizableThreadFactory workerFactory = new CustomizableThreadFactory("avatar-preview-regen-worker-");
+        workerFactory.setThreadPriority(Thread.MIN_PRIORITY);
+        workerFactory.setDaemon(true);
+        this.workers = Executors.newFixedThreadPool(workers, workerFactory);
+    }
+
+    // resume = true продолжает с сохранённой пачки, false начинает обход заново
+    public synchronized PreviewRegenerationStatus start(boolean resume) throws IOException {
+        if (state == State.RUNNING || state == State.STOPPING) {
+            return status();
+        }
+        long from = resume ? readCheckpoint() : 0;
+        if (resume && from == 0) {
+            log.warn("Сохранённой позиции перегенерации превью нет в {}, обход начнётся с начала", checkpoint);
+        }
+        if (!resume) {
+            Files.deleteIfExists(checkpoint);
+        }
+        lastAvatarId = from;
+        total = readOnlyTransaction.execute(status -> avatarRepository.countByIdGreaterThan(from));
+        processed.set(0);
+        failed.set(0);
+        startedAt = Instant.now();
+        finishedAt = null;
+        stopRequested = false;
+        state = State.RUNNING;
+        log.info("Запущена перегенерация превью после id = {}, строк: {}", from, total);
+        coordinator.execute(this::run);
+        return status();
+    }
+
+    public synchronized PreviewRegenerationStatus stop() {
+        if (state == State.RUNNING) {
+            stopRequested = true;
+            state = State.STOPPING;
+        }
+        return status();
+    }
+
+    public PreviewRegenerationStatus status() {
+        long done = processed.get();
+        Instant from = startedAt;
+        Instant to = finishedAt == null ? Instant.now() : finishedAt;
+        double seconds = from == null ? 0 : Math.max(1, Duration.between(from, to).toMillis()) / 1000.0;
+        double rate = seconds == 0 ? 0 : done / seconds;
+        Long eta = state == State.RUNNING && rate > 0 ? (long) Math.ceil(Math.max(0, total - done) / rate) : null;
+        return new PreviewRegenerationStatus(state, total, done, failed.get(), lastAvatarId, rate, eta, from,
+                finishedAt);
+    }
+
+    private void run() {
+        State result;
+        try {
+            nextSlotNanos = System.nanoTime();
+            List<AvatarExportRow> rows;
+            do {
+                waitForLowLoad();
+                if (stopRequested) {
+                    break;
+                }
+                long from = lastAvatarId;
+                rows = readOnlyTransaction.execute(
+                        status -> avatarRepository.findExportRows(from, PageRequest.of(0, batchSize)));
+                if (rows.isEmpty()) {
+                    break;
+                }
+                regenerate(rows);
+                lastAvatarId = rows.get(rows.size() - 1).id();
+                writeCheckpoint(lastAvatarId);
+                if (batchPauseMs > 0) {
+                    Thread.sleep(batchPauseMs);
+                }
+            } while (rows.size() == batchSize);
+
+            if (stopRequested) {
+                result = State.STOPPED;
+                log.info("Перегенерация превью остановлена на id = {}", lastAvatarId);
+            } else {
+                Files.deleteIfExists(checkpoint);
+                result = State.FINISHED;
+                log.info("Перегенерация превью завершена: обработано {}, с ошибками {}", processed.get(), failed.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result = State.STOPPED;
+        } catch (Exception e) {
+            log.error("Перегенерация превью прервана на id = {}", lastAvatarId, e);
+            result = State.FAILED;
+        }
+        synchronized (this) {
+            finishedAt = Instant.now();
+            state = result;
+        }
+    }
+
+    private void regenerate(List<AvatarExportRow> rows) throws InterruptedException {
+        // одно содержимое может быть у нескольких студентов, превью для него считается один раз
+        Map<String, String> mediaTypes = new LinkedHashMap<>();
+        for (AvatarExportRow row : rows) {
+            if (row.contentHash() != null) {
+                mediaTypes.putIfAbsent(row.contentHash(), row.mediaType());
+            }
+        }
+        Map<String, Future<AvatarPreview>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : mediaTypes.entrySet()) {
+            pace();
+            futures.put(entry.getKey(), workers.submit(() -> {
+                try (AvatarBlob blob = avatarBlobStore.open(entry.getKey())) {
+                    return avatarPreviewPipeline.generateDataForBD(entry.getKey(), blob, entry.getValue());
+                }
+            }));
+        }
+
+        List<AvatarPreview> previews = new ArrayList<>(futures.size());
+        for (Map.Entry<String, Future<AvatarPreview>> future : futures.entrySet()) {
+            try {
+                previews.add(future.getValue().get());
+            } catch (ExecutionException e) {
+                failed.incrementAndGet();
+                log.warn("Не удалось перегенерировать превью для {}", future.getKey(), e.getCause());
+            }
+        }
+        Set<String> rendered = new HashSet<>();
+        previews.forEach(preview -> rendered.add(preview.getContentHash()));
+        // пока превью считались, содержимое могло освободиться: для него превью не сохраняется,
+        // иначе в avatar_preview осталась бы строка без аватара
+        Set<String> done = previews.isEmpty() ? Set.of() : avatarContentGuard.locked(rendered,
+                () -> transactionTemplate.execute(status -> {
+                    Set<String> live = avatarRepository.findExistingContentHashes(rendered);
+                    avatarPreviewRepository.saveAll(previews.stream()
+                            .filter(preview -> live.contains(preview.getContentHash()))
+                            .toList());
+                    avatarRepository.markPreviewsReady(live);
+                    return live;
+                }));
+        rows.stream()
+                .filter(row -> done.contains(row.contentHash()))
+                .forEach(row -> avatarPreviewCache.invalidate(row.studentId()));
+        processed.addAndGet(rows.size());
+    }
+
+    // не больше maxPerSecond изображений в секунду, чтобы не отнимать диск и процессор у запросов
+    private void pace() throws InterruptedException {
+        if (maxPerSecond <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long wait = nextSlotNanos - now;
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        nextSlotNanos = Math.max(now, nextSlotNanos) + (long) (1_000_000_000L / maxPerSecond);
+    }
+
+    // при средней загрузке выше maxLoad на ядро новая пачка не начинается, пока нагрузка не спадёт
+    private void waitForLowLoad() throws InterruptedException {
+        if (maxLoad <= 0) {
+            return;
+        }
+        while (!stopRequested) {
+            double load = os.getSystemLoadAverage();
+            if (load < 0 || load / os.getAvailableProcessors() <= maxLoad) {
+                return;
+            }
+            log.debug("Перегенерация превью ждёт снижения нагрузки: {}", load);
+            Thread.sleep(Math.max(batchPauseMs, 1000));
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (!Files.exists(checkpoint)) {
+            return 0;
+        }
+        return Long.parseLong(Files.readString(checkpoint, StandardCharsets.US_ASCII).trim());
+    }
+
+    private void writeCheckpoint(long avatarId) throws IOException {
+        Files.createDirectories(checkpoint.getParent());
+        Path tempFile = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.writeString(tempFile, Long.toString(avatarId), StandardCharsets.US_ASCII);
+        Files.move(tempFile, checkpoint, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopRequested = true;
+        coordinator.shutdownNow();
+        workers.shutdownNow();
+    }
+}
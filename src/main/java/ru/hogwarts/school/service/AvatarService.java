@@ -1,20 +1,69 @@
 package ru.hogwarts.school.service;
 
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.data.domain.Page;
 import org.springframework.web.multipart.MultipartFile;
+import ru.hogwarts.school.dto.AvatarImportReport;
+import ru.hogwarts.school.dto.AvatarCursorPage;
+import ru.hogwarts.school.dto.AvatarInfo;
+import ru.hogwarts.school.dto.AvatarPreviewItem;
+import ru.hogwarts.school.dto.AvatarSimilarItem;
+import ru.hogwarts.school.dto.AvatarUploadSession;
+import ru.hogwarts.school.dto.PreviewRegenerationStatus;
 import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.AvatarPreview;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
 
 public interface AvatarService {
 
     void uploadAvatar(Long studentId, MultipartFile avatarFile) throws IOException;
 
+    AvatarUploadSession createUpload(Long studentId) throws IOException;
+
+    AvatarUploadSession getUpload(Long studentId, String uploadId) throws IOException;
+
+    AvatarUploadSession appendUpload(Long studentId, String uploadId, long offset, InputStream chunk) throws IOException;
+
+    void completeUpload(Long studentId, String uploadId) throws IOException;
+
+    void abortUpload(Long studentId, String uploadId) throws IOException;
+
+    AvatarImportReport importAvatars(InputStream archive, String contentType) throws IOException;
+
+    void exportAvatars(Long sinceId, Instant since, HttpServletResponse response) throws IOException;
+
     Avatar findAvatar(Long studentId);
 
-    Page<Avatar> getAvatars(int page, int size);
+    void deleteAvatar(Long studentId);
+
+    Optional<AvatarPreview> findPreview(Long studentId);
+
+    List<AvatarPreviewItem> findPreviews(List<Long> studentIds);
+
+    List<AvatarPreviewItem> findFacultyPreviews(Long facultyId, int page);
+
+    PreviewRegenerationStatus startPreviewRegeneration(boolean resume) throws IOException;
+
+    PreviewRegenerationStatus getPreviewRegeneration();
+
+    PreviewRegenerationStatus stopPreviewRegeneration();
+
+    Page<AvatarInfo> getAvatars(int page, int size);
+
+    AvatarCursorPage getAvatarsAfter(String cursor, int size);
+
+    List<AvatarSimilarItem> findSimilar(Long studentId, int maxDistance) throws IOException;
+
+    void writeAvatarToResponse(Long id, String version, HttpServletRequest request, HttpServletResponse response)
+            throws IOException;
 
-    void writeAvatarToResponse(Long id, HttpServletResponse response) throws IOException;
+    void writeAvatarVariantToResponse(Long id, String version, Integer width, Integer height, String fit,
+                                      HttpServletRequest request, HttpServletResponse response) throws IOException;
 
 }
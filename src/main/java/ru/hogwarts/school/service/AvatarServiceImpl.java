@@ -1,46 +1,135 @@
 package ru.hogwarts.school.service;
 
 import jakarta.persistence.EntityNotFoundException;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.multipart.MultipartFile;
+import ru.hogwarts.school.dto.AvatarCursorPage;
+import ru.hogwarts.school.dto.AvatarExportRow;
+import ru.hogwarts.school.dto.AvatarHashRow;
+import ru.hogwarts.school.dto.AvatarImportReport;
+import ru.hogwarts.school.dto.AvatarImportResult;
+import ru.hogwarts.school.dto.AvatarInfo;
+import ru.hogwarts.school.dto.AvatarListItem;
+import ru.hogwarts.school.dto.AvatarPreviewItem;
+import ru.hogwarts.school.dto.AvatarSimilarItem;
+import ru.hogwarts.school.dto.AvatarUploadSession;
+import ru.hogwarts.school.dto.PreviewRegenerationStatus;
+import ru.hogwarts.school.exception.AvatarNotFoundException;
 import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.AvatarPreview;
+import ru.hogwarts.school.model.PreviewStatus;
 import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
 import ru.hogwarts.school.repository.AvatarRepository;
 import ru.hogwarts.school.repository.StudentRepository;
+import ru.hogwarts.school.storage.AvatarBlob;
+import ru.hogwarts.school.storage.AvatarBlobStore;
+import ru.hogwarts.school.storage.StoredBlob;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-
-import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Service
-@Transactional
 @Slf4j
 public class AvatarServiceImpl implements AvatarService {
 
+    private static final int VERSION_LENGTH = 16;
+
     private final AvatarRepository avatarRepository;
+    private final AvatarPreviewRepository avatarPreviewRepository;
     private final StudentRepository studentRepository;
 
-    @Value("${path.to.avatars.folder}")
-    private String avatarDir;
+    private final AvatarBlobStore avatarBlobStore;
+    private final AvatarIngestor avatarIngestor;
+    private final AvatarDownloadWriter avatarDownloadWriter;
+    private final AvatarVariantService avatarVariantService;
+    private final AvatarPreviewPipeline avatarPreviewPipeline;
+    private final AvatarPreviewCache avatarPreviewCache;
+    private final AvatarArchiveReader avatarArchiveReader;
+    private final AvatarExporter avatarExporter;
+    private final AvatarUploadSessions avatarUploadSessions;
+    private final AvatarPerceptualHasher avatarPerceptualHasher;
+    private final AvatarSimilarityIndex avatarSimilarityIndex;
+    private final AvatarWriteLocks avatarWriteLocks;
+    private final AvatarPreviewRegeneration avatarPreviewRegeneration;
+    private final AvatarContentGuard avatarContentGuard;
+    private final TransactionTemplate readOnlyTransaction;
+    private final TransactionTemplate transactionTemplate;
+    private final int previewBatchMaxIds;
+    private final int importBatchSize;
+    private final int listMaxSize;
+    private final int similarMaxDistance;
+    private final int similarMaxResults;
 
-    public AvatarServiceImpl(AvatarRepository avatarRepository, StudentRepository studentRepository) {
+    public AvatarServiceImpl(AvatarRepository avatarRepository, AvatarPreviewRepository avatarPreviewRepository,
+                             StudentRepository studentRepository, AvatarBlobStore avatarBlobStore,
+                             AvatarIngestor avatarIngestor, AvatarDownloadWriter avatarDownloadWriter,
+                             AvatarVariantService avatarVariantService,
+                             AvatarPreviewPipeline avatarPreviewPipeline, AvatarPreviewCache avatarPreviewCache,
+                             AvatarArchiveReader avatarArchiveReader, AvatarExporter avatarExporter,
+                             AvatarUploadSessions avatarUploadSessions,
+                             AvatarPerceptualHasher avatarPerceptualHasher,
+                             AvatarSimilarityIndex avatarSimilarityIndex, AvatarWriteLocks avatarWriteLocks,
+                             AvatarPreviewRegeneration avatarPreviewRegeneration,
+                             AvatarContentGuard avatarContentGuard,
+                             PlatformTransactionManager transactionManager,
+                             @Value("${avatar.preview.batch.max-ids:500}") int previewBatchMaxIds,
+                             @Value("${avatar.import.batch-size:50}") int importBatchSize,
+                             @Value("${avatar.list.max-size:200}") int listMaxSize,
+                             @Value("${avatar.similarity.max-distance:16}") int similarMaxDistance,
+                             @Value("${avatar.similarity.max-results:50}") int similarMaxResults) {
         this.avatarRepository = avatarRepository;
+        this.avatarPreviewRepository = avatarPreviewRepository;
         this.studentRepository = studentRepository;
+        this.avatarBlobStore = avatarBlobStore;
+        this.avatarIngestor = avatarIngestor;
+        this.avatarDownloadWriter = avatarDownloadWriter;
+        this.avatarVariantService = avatarVariantService;
+        this.avatarPreviewPipeline = avatarPreviewPipeline;
+        this.avatarPreviewCache = avatarPreviewCache;
+        this.avatarArchiveReader = avatarArchiveReader;
+        this.avatarExporter = avatarExporter;
+        this.avatarUploadSessions = avatarUploadSessions;
+        this.avatarPerceptualHasher = avatarPerceptualHasher;
+        this.avatarSimilarityIndex = avatarSimilarityIndex;
+        this.avatarWriteLocks = avatarWriteLocks;
+        this.avatarPreviewRegeneration = avatarPreviewRegeneration;
+        this.avatarContentGuard = avatarContentGuard;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.previewBatchMaxIds = previewBatchMaxIds;
+        this.importBatchSize = importBatchSize;
+        this.listMaxSize = listMaxSize;
+        this.similarMaxDistance = similarMaxDistance;
+        this.similarMaxResults = similarMaxResults;
     }
 
     @Override
+    @Transactional
     public void uploadAvatar(Long studentId, MultipartFile avatarFile) throws IOException {
         log.info("Вызван метод загрузки аватара для студента id = {}", studentId);
         Student student = studentRepository.findById(studentId)
@@ -52,83 +141,475 @@ public class AvatarServiceImpl implements AvatarService {
             throw new IllegalArgumentException("Файл не содержит имени (originalFilename == null)");
         }
 
-        Path filePath = Path.of(avatarDir, student.getId() + "." + getExtension(avatarFile.getOriginalFilename()));
-        log.debug("Путь для сохранения аватара: {}", filePath);
+        StoredBlob blob;
+        try (InputStream is = avatarFile.getInputStream()) {
+            blob = avatarIngestor.ingest(is);
+        }
+        avatarContentGuard.releaseAfterCompletion(blob.hash());
+        saveAvatar(student, blob);
+    }
+
+    @Override
+    public AvatarUploadSession createUpload(Long studentId) throws IOException {
+        log.info("Вызван метод создания сессии загрузки аватара для студента id = {}", studentId);
+        if (!readOnlyTransaction.execute(status -> studentRepository.existsById(studentId))) {
+            throw new EntityNotFoundException("Студент с id " + studentId + " не найден");
+        }
+        return avatarUploadSessions.create(studentId);
+    }
+
+    @Override
+    public AvatarUploadSession getUpload(Long studentId, String uploadId) throws IOException {
+        return avatarUploadSessions.get(studentId, uploadId);
+    }
 
-        Files.createDirectories(filePath.getParent());
-        Files.deleteIfExists(filePath);
+    @Override
+    public AvatarUploadSession appendUpload(Long studentId, String uploadId, long offset, InputStream chunk)
+            throws IOException {
+        return avatarUploadSessions.append(studentId, uploadId, offset, chunk);
+    }
 
-        try (InputStream is = avatarFile.getInputStream();
-             OutputStream os = Files.newOutputStream(filePath, CREATE_NEW);
-             BufferedInputStream bis = new BufferedInputStream(is, 1024);
-             BufferedOutputStream bos = new BufferedOutputStream(os, 1024)
-        ) {
-            bis.transferTo(bos);
-            log.debug("файл аватара успешно сохранён по пути: {}", filePath);
+    // собранный файл проходит тот же приём, что и обычная загрузка; транзакция открывается только на запись в БД
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void completeUpload(Long studentId, String uploadId) throws IOException {
+        log.info("Вызван метод завершения загрузки {} для студента id = {}", uploadId, studentId);
+        StoredBlob blob = avatarIngestor.ingest(avatarUploadSessions.take(studentId, uploadId));
+        try {
+            transactionTemplate.executeWithoutResult(status -> saveAvatar(studentRepository.findById(studentId)
+                    .orElseThrow(() -> new EntityNotFoundException("Студент с id " + studentId + " не найден")), blob));
+        } finally {
+            avatarContentGuard.release(blob.hash());
         }
+    }
+
+    @Override
+    public void abortUpload(Long studentId, String uploadId) throws IOException {
+        avatarUploadSessions.abort(studentId, uploadId);
+    }
+
+    private void saveAvatar(Student student, StoredBlob blob) {
+        Long studentId = student.getId();
+        // файл уже в хранилище под своим хэшем, под блокировкой только чтение и запись строки аватара
+        avatarWriteLocks.lockUntilCompletion(List.of(studentId));
+        log.debug("Файл аватара сохранён по пути: {}", blob.path());
+
         Avatar avatar = avatarRepository.findByStudentId(studentId).orElse(new Avatar());
-        avatar.setStudent(student);
-        avatar.setFilePath(filePath.toString());
-        avatar.setFileSize(avatarFile.getSize());
-        avatar.setMediaType(avatarFile.getContentType());
-        avatar.setData(generateDataForBD(filePath));
+        String previousHash = avatar.getContentHash();
+        String previousPath = avatar.getFilePath();
+
+        fillAvatar(avatar, student, blob, knownPerceptualHashes(List.of(blob.hash())).get(blob.hash()));
+        attachPreview(avatar, avatarPreviewRepository.existsById(blob.hash()));
         avatarRepository.save(avatar);
+
+        if (!blob.hash().equals(previousHash)) {
+            releaseContent(previousHash, previousPath);
+        }
+        afterCommit(() -> avatarPreviewCache.invalidate(studentId));
         log.info("Аватар студента id = {} успешно сохранён", studentId);
     }
 
-    private byte[] generateDataForBD(Path filePath) throws IOException {
-        log.debug("Вызван метод генерации уменьшенной копии для аватара");
-        try (
-                InputStream is = Files.newInputStream(filePath);
-                BufferedInputStream bis = new BufferedInputStream(is, 1024);
-                ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            BufferedImage image = ImageIO.read(bis);
+    @Override
+    @Transactional
+    public void deleteAvatar(Long studentId) {
+        log.info("Вызван метод удаления аватара студента id = {}", studentId);
+        avatarWriteLocks.lockUntilCompletion(List.of(studentId));
+        avatarRepository.findByStudentId(studentId).ifPresent(avatar -> {
+            avatarRepository.delete(avatar);
+            log.debug("Удалена аватарка из БД: {}", avatar);
+            releaseContent(avatar.getContentHash(), avatar.getFilePath());
+            afterCommit(() -> avatarPreviewCache.invalidate(studentId));
+            afterCommit(() -> avatarSimilarityIndex.remove(studentId));
+        });
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public AvatarImportReport importAvatars(InputStream archive, String contentType) throws IOException {
+        log.info("Вызван метод импорта аватаров из архива ({})", contentType);
+        List<AvatarArchiveReader.Entry> entries = avatarArchiveReader.read(archive, contentType);
+
+        // каждая пачка сохраняется в своей транзакции, ошибка в одной не откатывает остальные
+        List<AvatarImportResult> results = new ArrayList<>(entries.size());
+        // освобождённое содержимое может понадобиться следующей пачке (одна картинка у нескольких студентов),
+        // поэтому ссылки на него пересчитываются один раз, после всего импорта
+        Set<String> released = new LinkedHashSet<>();
+        try {
+            for (int from = 0; from < entries.size(); from += importBatchSize) {
+                List<AvatarArchiveReader.Entry> chunk = entries.subList(from, Math.min(from + importBatchSize, entries.size()));
+                try {
+                    results.addAll(transactionTemplate.execute(status -> saveImported(chunk, released)));
+                } catch (DataIntegrityViolationException e) {
+                    // тот же студент одновременно записан другим экземпляром, пачка откатилась целиком
+                    log.warn("Пачка импорта откатилась из-за параллельной записи: {}", e.getMessage());
+                    for (AvatarArchiveReader.Entry entry : chunk) {
+                        if (entry.blob() != null) {
+                            released.add(entry.blob().hash());
+                        }
+                        results.add(AvatarImportResult.failed(entry.name(), entry.studentId(), entry.blob() == null
+                                ? entry.error() : "Аватар студента одновременно изменён другим запросом, повторите импорт"));
+                    }
+                }
+            }
+        } finally {
+            entries.stream()
+                    .filter(entry -> entry.blob() != null)
+                    .forEach(entry -> avatarContentGuard.release(entry.blob().hash()));
+            for (String contentHash : released) {
+                try {
+                    avatarContentGuard.deleteIfUnreferenced(contentHash);
+                } catch (IOException e) {
+                    log.error("Не удалось удалить содержимое {} после импорта", contentHash, e);
+                }
+            }
+        }
+        AvatarImportReport report = AvatarImportReport.of(results);
+        log.info("Импорт аватаров завершён: всего {}, импортировано {}, с ошибками {}",
+                report.total(), report.imported(), report.failed());
+        return report;
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void exportAvatars(Long sinceId, Instant since, HttpServletResponse response) throws IOException {
+        log.info("Вызван метод выгрузки аватаров в архив, после id = {}, изменённые после {}", sinceId, since);
+        response.setContentType("application/x-tar");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                .filename("avatars-export.tar")
+                .build()
+                .toString());
+        avatarExporter.export(sinceId, since, response.getOutputStream());
+    }
 
-            int height = image.getHeight() / (image.getWidth() / 100);
-            BufferedImage preview = new BufferedImage(100, height, image.getType());
-            Graphics2D graphics2D = preview.createGraphics();
-            graphics2D.drawImage(image, 0, 0, 100, height, null);
-            graphics2D.dispose();
+    private List<AvatarImportResult> saveImported(List<AvatarArchiveReader.Entry> chunk, Set<String> released) {
+        Set<Long> studentIds = chunk.stream()
+                .filter(entry -> entry.blob() != null)
+                .map(AvatarArchiveReader.Entry::studentId)
+                .collect(Collectors.toSet());
+        avatarWriteLocks.lockUntilCompletion(studentIds);
+        Set<String> hashes = chunk.stream()
+                .filter(entry -> entry.blob() != null)
+                .map(entry -> entry.blob().hash())
+                .collect(Collectors.toSet());
+        // студенты, их текущие аватары, готовые превью и известные перцептивные хэши - четыре запроса на всю пачку
+        Map<Long, Student> students = studentRepository.findAllById(studentIds).stream()
+                .collect(Collectors.toMap(Student::getId, Function.identity()));
+        Map<Long, Avatar> avatars = avatarRepository.findAllByStudentIdIn(studentIds).stream()
+                .collect(Collectors.toMap(avatar -> avatar.getStudent().getId(), Function.identity()));
+        Set<String> previews = avatarPreviewRepository.findAllById(hashes).stream()
+                .map(AvatarPreview::getContentHash)
+                .collect(Collectors.toSet());
+        Map<String, Long> perceptualHashes = knownPerceptualHashes(hashes);
 
-            ImageIO.write(preview, getExtension(filePath.getFileName().toString()), baos);
-            log.debug("Уменьшенное изображение создано");
-            return baos.toByteArray();
+        List<AvatarImportResult> results = new ArrayList<>(chunk.size());
+        // equals у Avatar сравнивает поля, а новые аватары разных студентов могут совпадать по ним
+        Set<Avatar> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (AvatarArchiveReader.Entry entry : chunk) {
+            if (entry.blob() == null) {
+                results.add(AvatarImportResult.failed(entry.name(), entry.studentId(), entry.error()));
+                continue;
+            }
+            Student student = students.get(entry.studentId());
+            if (student == null) {
+                results.add(AvatarImportResult.failed(entry.name(), entry.studentId(),
+                        "Студент с id " + entry.studentId() + " не найден"));
+                // файл уже попал в хранилище, освобождаем его как содержимое без ссылок
+                released.add(entry.blob().hash());
+                continue;
+            }
+
+            Avatar avatar = avatars.computeIfAbsent(student.getId(), id -> new Avatar());
+            if (avatar.getContentHash() == null && avatar.getFilePath() != null) {
+                releaseContent(null, avatar.getFilePath());
+            } else if (avatar.getContentHash() != null && !entry.blob().hash().equals(avatar.getContentHash())) {
+                released.add(avatar.getContentHash());
+            }
+            fillAvatar(avatar, student, entry.blob(), perceptualHashes.get(entry.blob().hash()));
+            attachPreview(avatar, previews.contains(entry.blob().hash()));
+            changed.add(avatar);
+            afterCommit(() -> avatarPreviewCache.invalidate(student.getId()));
+            results.add(AvatarImportResult.imported(entry.name(), student.getId()));
         }
+
+        avatarRepository.saveAll(changed);
+        return results;
+    }
+
+    private void fillAvatar(Avatar avatar, Student student, StoredBlob blob, Long perceptualHash) {
+        avatar.setStudent(student);
+        avatar.setFilePath(blob.path().toString());
+        avatar.setFileSize(blob.size());
+        avatar.setMediaType(blob.mediaType());
+        avatar.setContentHash(blob.hash());
+        avatar.setPerceptualHash(perceptualHash);
+        avatar.setUpdatedAt(Instant.now());
+        // индекс похожих меняется только после коммита, иначе откаченная загрузка осталась бы в выдаче
+        afterCommit(() -> avatarSimilarityIndex.put(student.getId(), perceptualHash));
+    }
+
+    // перцептивный хэш считает конвейер превью; уже обработанное содержимое берёт его у другого аватара,
+    // новое получает хэш вместе с превью
+    private Map<String, Long> knownPerceptualHashes(Collection<String> contentHashes) {
+        return avatarRepository.findPerceptualHashesByContentHashIn(contentHashes).stream()
+                .collect(Collectors.toMap(AvatarHashRow::contentHash, AvatarHashRow::perceptualHash,
+                        (first, second) -> first));
     }
 
+    private void attachPreview(Avatar avatar, boolean previewExists) {
+        String contentHash = avatar.getContentHash();
+        if (previewExists) {
+            log.debug("Уменьшенная копия для содержимого {} уже есть, повторно не создаётся", contentHash);
+            avatar.setPreviewStatus(PreviewStatus.READY);
+            return;
+        }
+        avatar.setPreviewStatus(PreviewStatus.PENDING);
+        afterCommit(() -> avatarPreviewPipeline.submit(contentHash));
+    }
+
+    private void releaseContent(String contentHash, String filePath) {
+        if (contentHash == null) {
+            if (filePath != null) {
+                afterCommit(() -> Files.deleteIfExists(Path.of(filePath)));
+            }
+            return;
+        }
+        // ссылки пересчитываются после коммита под блокировкой хэша: параллельная загрузка того же содержимого
+        // могла уже принять файл, но ещё не закоммитить свою строку
+        afterCommit(() -> avatarContentGuard.deleteIfUnreferenced(contentHash));
+    }
+
+    private void afterCommit(AfterCommitAction action) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                try {
+                    action.run();
+                } catch (IOException e) {
+                    log.error("Ошибка при работе с файлом аватара после коммита", e);
+                }
+            }
+        });
+    }
+
+    @Transactional(readOnly = true)
     public Avatar findAvatar(Long studentId) {
         log.info("Вызван метод поиска аватара по студенту с id = {}", studentId);
-        return avatarRepository.findByStudentId(studentId).orElse(new Avatar());
+        return avatarRepository.findByStudentId(studentId)
+                .orElseThrow(() -> new AvatarNotFoundException(studentId));
     }
 
-    private String getExtension(String fileName) {
-        String extension = fileName.substring(fileName.lastIndexOf(".") + 1);
-        log.debug("Определено расширение файла: {}", extension);
-        return extension;
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public Optional<AvatarPreview> findPreview(Long studentId) {
+        log.info("Вызван метод поиска превью аватара по студенту с id = {}", studentId);
+        return avatarPreviewCache.get(studentId,
+                id -> readOnlyTransaction.execute(status -> avatarPreviewRepository.findByStudentId(id)));
     }
 
-    public Page<Avatar> getAvatars(int page, int size) {
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<AvatarPreviewItem> findPreviews(List<Long> studentIds) {
+        log.info("Вызван метод пакетного получения превью для {} студентов", studentIds.size());
+        Set<Long> ids = new LinkedHashSet<>(studentIds);
+        if (ids.size() > previewBatchMaxIds) {
+            throw new IllegalArgumentException("Можно запросить не более " + previewBatchMaxIds + " превью за раз");
+        }
+
+        // всё, чего нет в кэше, загружается одним запросом с IN
+        Map<Long, AvatarPreview> found = avatarPreviewCache.getAll(ids, missing -> readOnlyTransaction.execute(
+                status -> avatarPreviewRepository.findAllByStudentIds(missing)).stream()
+                .collect(Collectors.toMap(AvatarPreviewItem::studentId, AvatarServiceImpl::toPreview)));
+        log.debug("Превью: найдено {}, без превью {}", found.size(), ids.size() - found.size());
+
+        return ids.stream()
+                .filter(found::containsKey)
+                .map(id -> toItem(id, found.get(id)))
+                .toList();
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<AvatarPreviewItem> findFacultyPreviews(Long facultyId, int page) {
+        log.info("Вызван метод получения превью студентов факультета id = {}, страница={}", facultyId, page);
+        if (page < 0) {
+            throw new IllegalArgumentException("Номер страницы не может быть отрицательным");
+        }
+        // не больше previewBatchMaxIds превью за запрос, как и для списка id
+        List<Long> studentIds = readOnlyTransaction.execute(status -> avatarPreviewRepository
+                .findStudentIdsByFacultyId(facultyId, PageRequest.of(page, previewBatchMaxIds)));
+        return findPreviews(studentIds);
+    }
+
+    private static AvatarPreviewItem toItem(Long studentId, AvatarPreview preview) {
+        return new AvatarPreviewItem(studentId, preview.getContentHash(), preview.getMediaType(), preview.getData());
+    }
+
+    private static AvatarPreview toPreview(AvatarPreviewItem item) {
+        return new AvatarPreview(item.contentHash(), item.mediaType(), item.data());
+    }
+
+    @Transactional(readOnly = true)
+    public Page<AvatarInfo> getAvatars(int page, int size) {
         log.info("Вызван метод получения списка аватаров, страница={}, размер={}", page, size);
         Pageable pageable = PageRequest.of(page, size);
-        return avatarRepository.findAll(pageable);
+        return avatarRepository.findAllInfo(pageable);
     }
 
+    // курсор - закодированный id последнего отданного аватара, COUNT(*) и OFFSET не нужны
     @Override
-    public void writeAvatarToResponse(Long id, HttpServletResponse response) throws IOException {
-        log.info("Вызван метод выгрузки аватара для студента id={}", id);
-        Avatar avatar = findAvatar(id);
+    @Transactional(readOnly = true)
+    public AvatarCursorPage getAvatarsAfter(String cursor, int size) {
+        log.info("Вызван метод получения списка аватаров после курсора {}, размер={}", cursor, size);
+        if (size < 1 || size > listMaxSize) {
+            throw new IllegalArgumentException("Размер страницы должен быть от 1 до " + listMaxSize);
+        }
+        long afterId = cursor == null || cursor.isBlank() ? 0 : decodeCursor(cursor);
+        // лишняя строка показывает, есть ли следующая страница
+        List<AvatarExportRow> rows = avatarRepository.findExportRows(afterId, PageRequest.of(0, size + 1));
+        List<AvatarListItem> items = rows.stream()
+                .limit(size)
+                .map(row -> new AvatarListItem(row.id(), row.studentId(), row.mediaType(), row.fileSize(),
+                        avatarUrl(row.studentId(), row.contentHash()),
+                        "/avatar/" + row.studentId() + "/avatar/preview"))
+                .toList();
+        String nextCursor = rows.size() > size ? encodeCursor(items.get(items.size() - 1).id()) : null;
+        return new AvatarCursorPage(items, nextCursor);
+    }
 
-        Path path = Path.of(avatar.getFilePath());
-        response.setStatus(HttpServletResponse.SC_OK);
-        response.setContentType(avatar.getMediaType());
-        response.setContentLength((int) avatar.getFileSize());
+    @Override
+    public PreviewRegenerationStatus startPreviewRegeneration(boolean resume) throws IOException {
+        log.info("Вызван метод запуска перегенерации превью, продолжение = {}", resume);
+        return avatarPreviewRegeneration.start(resume);
+    }
 
-        try (
-                InputStream is = Files.newInputStream(path);
-                OutputStream os = response.getOutputStream()
-        ) {
-            is.transferTo(os);
-            log.debug("Аватар студента id={} отправлен в HTTP-ответ", id);
+    @Override
+    public PreviewRegenerationStatus getPreviewRegeneration() {
+        return avatarPreviewRegeneration.status();
+    }
+
+    @Override
+    public PreviewRegenerationStatus stopPreviewRegeneration() {
+        log.info("Вызван метод остановки перегенерации превью");
+        return avatarPreviewRegeneration.stop();
+    }
+
+    // хэш берётся из индекса в памяти, в БД идём только за аватаром, которого в индексе нет
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<AvatarSimilarItem> findSimilar(Long studentId, int maxDistance) throws IOException {
+        log.info("Вызван метод поиска аватаров, похожих на аватар студента id = {}, расстояние до {}",
+                studentId, maxDistance);
+        if (maxDistance < 0 || maxDistance > similarMaxDistance) {
+            throw new IllegalArgumentException("Расстояние должно быть от 0 до " + similarMaxDistance);
+        }
+        Long hash = avatarSimilarityIndex.get(studentId).orElse(null);
+        if (hash == null) {
+            hash = perceptualHash(readOnlyTransaction.execute(status -> avatarRepository
+                    .findHashRowByStudentId(studentId)
+                    .orElseThrow(() -> new AvatarNotFoundException(studentId))));
+        }
+        return avatarSimilarityIndex.find(hash, maxDistance).stream()
+                .filter(match -> !match.studentId().equals(studentId))
+                .limit(similarMaxResults)
+                .map(match -> new AvatarSimilarItem(match.studentId(), match.distance(),
+                        "/avatar/" + match.studentId() + "/avatar/preview"))
+                .toList();
+    }
+
+    // у аватара, до которого ещё не дошло фоновое заполнение, хэш считается на месте и сохраняется
+    private long perceptualHash(AvatarHashRow row) throws IOException {
+        if (row.perceptualHash() != null) {
+            return row.perceptualHash();
+        }
+        if (row.contentHash() == null) {
+            throw new IllegalArgumentException("Аватар студента id = " + row.studentId()
+                    + " ещё не перенесён в хранилище, поиск похожих недоступен");
+        }
+        long hash;
+        try (AvatarBlob blob = avatarBlobStore.open(row.contentHash())) {
+            hash = avatarPerceptualHasher.hash(blob);
         }
+        // под блокировкой записи студента, как и при загрузке: иначе хэш старого содержимого
+        // мог бы попасть в индекс после хэша нового
+        transactionTemplate.executeWithoutResult(status -> {
+            avatarWriteLocks.lockUntilCompletion(List.of(row.studentId()));
+            if (avatarRepository.fillPerceptualHash(row.id(), row.contentHash(), hash) > 0) {
+                afterCommit(() -> avatarSimilarityIndex.put(row.studentId(), hash));
+            }
+        });
+        return hash;
+    }
+
+    private static String encodeCursor(long id) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(Long.toString(id).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static long decodeCursor(String cursor) {
+        try {
+            return Long.parseLong(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Некорректный курсор " + cursor);
+        }
+    }
+
+    // метаданные читаются короткой транзакцией, а файл отдаётся уже без соединения с БД:
+    // медленный клиент не должен держать соединение пула на всё время передачи
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void writeAvatarToResponse(Long id, String version, HttpServletRequest request,
+                                      HttpServletResponse response) throws IOException {
+        log.info("Вызван метод выгрузки аватара для студента id={}, версия {}", id, version);
+        AvatarExportRow avatar = findRow(id);
+
+        String etag = avatar.contentHash() == null ? null : "\"" + avatar.contentHash() + "\"";
+        try (AvatarBlob blob = avatarBlobStore.open(avatar.contentHash(), avatar.filePath())) {
+            avatarDownloadWriter.write(blob, avatar.mediaType(), etag, lastModified(avatar),
+                    isCurrentVersion(avatar, version), request, response);
+        }
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void writeAvatarVariantToResponse(Long id, String version, Integer width, Integer height, String fit,
+                                             HttpServletRequest request, HttpServletResponse response) throws IOException {
+        log.info("Вызван метод выгрузки аватара студента id={} в размере {}x{} ({})", id, width, height, fit);
+        AvatarExportRow avatar = findRow(id);
+        if (avatar.contentHash() == null) {
+            writeAvatarToResponse(id, version, request, response);
+            return;
+        }
+
+        try (AvatarVariantService.Variant variant = avatarVariantService.getVariant(avatar.contentHash(),
+                avatar.mediaType(), width, height, fit)) {
+            avatarDownloadWriter.write(variant.blob(), variant.mediaType(), variant.etag(),
+                    lastModified(avatar), isCurrentVersion(avatar, version), request, response);
+        }
+    }
+
+    // версия - начало хэша содержимого: замена аватара меняет адрес, а не файл по старому адресу
+    private static String avatarUrl(Long studentId, String contentHash) {
+        String url = "/avatar/" + studentId + "/avatar";
+        return contentHash == null ? url : url + "?v=" + contentHash.substring(0, VERSION_LENGTH);
+    }
+
+    // устаревшая версия отдаёт текущее содержимое, но без immutable, чтобы его не закешировали под чужим адресом
+    private static boolean isCurrentVersion(AvatarExportRow avatar, String version) {
+        return version != null && version.length() == VERSION_LENGTH && avatar.contentHash() != null
+                && avatar.contentHash().startsWith(version);
+    }
+
+    private AvatarExportRow findRow(Long studentId) {
+        return readOnlyTransaction.execute(status -> avatarRepository.findRowByStudentId(studentId))
+                .orElseThrow(() -> new AvatarNotFoundException(studentId));
+    }
+
+    private static long lastModified(AvatarExportRow avatar) {
+        return avatar.updatedAt() == null ? -1 : avatar.updatedAt().toEpochMilli();
+    }
+
+    @FunctionalInterface
+    private interface AfterCommitAction {
+        void run() throws IOException;
     }
 }
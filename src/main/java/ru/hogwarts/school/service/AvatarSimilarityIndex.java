@@ -0,0 +1,175 @@
+package ru.hogwarts.school.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.hogwarts.school.dto.AvatarHashRow;
+import ru.hogwarts.school.repository.AvatarRepository;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// BK-дерево по расстоянию Хэмминга между перцептивными хэшами: поиск в радиусе r обходит только
+// поддеревья с ребром в [d - r, d + r], поэтому на сотнях тысяч хэшей затрагивает малую часть узлов
+@Component
+@Slf4j
+public class AvatarSimilarityIndex {
+
+    public record Match(Long studentId, int distance) {
+    }
+
+    private static final class Node {
+
+        private final long hash;
+        private final Set<Long> studentIds = new HashSet<>(2);
+        private Map<Integer, Node> children;
+
+        private Node(long hash) {
+            this.hash = hash;
+        }
+    }
+
+    private final AvatarRepository avatarRepository;
+    private final TransactionTemplate readOnlyTransaction;
+    private final int loadBatchSize;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Long> hashByStudent = new HashMap<>();
+    // узлы не удаляются: при смене аватара из узла убирается только студент, пустой узел остаётся развилкой
+    private Node root;
+
+    public AvatarSimilarityIndex(AvatarRepository avatarRepository, PlatformTransactionManager transactionManager,
+                                 @Value("${avatar.similarity.load-batch-size:1000}") int loadBatchSize) {
+        this.avatarRepository = avatarRepository;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.loadBatchSize = loadBatchSize;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        long afterId = 0;
+        int loaded = 0;
+        List<AvatarHashRow> rows;
+        do {
+            long from = afterId;
+            rows = readOnlyTransaction.execute(
+                    status -> avatarRepository.findPerceptualHashes(from, PageRequest.of(0, loadBatchSize)));
+            for (AvatarHashRow row : rows) {
+                put(row.studentId(), row.perceptualHash());
+                afterId = row.id();
+                loaded++;
+            }
+        } while (rows.size() == loadBatchSize);
+        log.info("Индекс похожих аватаров загружен: {} хэшей", loaded);
+    }
+
+    public void put(Long studentId, Long hash) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(studentId);
+            if (hash == null) {
+                return;
+            }
+            hashByStudent.put(studentId, hash);
+            if (root == null) {
+                root = new Node(hash);
+                root.studentIds.add(studentId);
+                return;
+            }
+            Node node = root;
+            while (true) {
+                int distance = AvatarPerceptualHasher.distance(node.hash, hash);
+                if (distance == 0) {
+                    node.studentIds.add(studentId);
+                    return;
+                }
+                if (node.children == null) {
+                    node.children = new HashMap<>(4);
+                }
+                Node child = node.children.get(distance);
+                if (child == null) {
+                    child = new Node(hash);
+                    child.studentIds.add(studentId);
+                    node.children.put(distance, child);
+                    return;
+                }
+                node = child;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(Long studentId) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(studentId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Optional<Long> get(Long studentId) {
+        lock.readLock().lock();
+        try {
+            return Optional.ofNullable(hashByStudent.get(studentId));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Match> find(long hash, int maxDistance) {
+        List<Match> matches = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (root == null) {
+                return matches;
+            }
+            Deque<Node> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                Node node = stack.pop();
+                int distance = AvatarPerceptualHasher.distance(node.hash, hash);
+                if (distance <= maxDistance) {
+                    for (Long studentId : node.studentIds) {
+                        matches.add(new Match(studentId, distance));
+                    }
+                }
+                if (node.children != null) {
+                    for (Map.Entry<Integer, Node> child : node.children.entrySet()) {
+                        if (Math.abs(child.getKey() - distance) <= maxDistance) {
+                            stack.push(child.getValue());
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        matches.sort(Comparator.comparingInt(Match::distance).thenComparing(Match::studentId));
+        return matches;
+    }
+
+    private void removeLocked(Long studentId) {
+        Long previous = hashByStudent.remove(studentId);
+        if (previous == null) {
+            return;
+        }
+        Node node = root;
+        while (node != null) {
+            int distance = AvatarPerceptualHasher.distance(node.hash, previous);
+            if (distance == 0) {
+                node.studentIds.remove(studentId);
+                return;
+            }
+            node = node.children == null ? null : node.children.get(distance);
+        }
+    }
+}
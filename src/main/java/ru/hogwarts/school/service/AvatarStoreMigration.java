@@ -0,0 +1,196 @@
+package ru.hogwarts.school.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.hogwarts.school.dto.AvatarExportRow;
+import ru.hogwarts.school.model.PreviewStatus;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.storage.FileAvatarBlobStore;
+import ru.hogwarts.school.storage.StoredBlob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// фоновый перенос файлов из плоской раскладки (<root>/<hash>, <root>/5.jpg) в <root>/ab/cd/<hash>:
+// сначала создаётся новый файл, затем переписывается file_path, старый файл удаляется с задержкой,
+// чтобы уже начатые выгрузки по старому пути успели завершиться
+@Component
+@ConditionalOnProperty(name = "avatar.store.type", havingValue = "file", matchIfMissing = true)
+@Slf4j
+public class AvatarStoreMigration {
+
+    private final AvatarRepository avatarRepository;
+    private final AvatarPreviewRepository avatarPreviewRepository;
+    private final FileAvatarBlobStore avatarBlobStore;
+    private final AvatarIngestor avatarIngestor;
+    private final AvatarContentGuard avatarContentGuard;
+    private final TransactionTemplate readOnlyTransaction;
+    private final boolean enabled;
+    private final int batchSize;
+    private final Duration grace;
+    private final Duration idleDelay;
+
+    private final Map<Path, Instant> pendingDeletes = new LinkedHashMap<>();
+    private long cursor;
+    private int migratedInPass;
+    private Instant idleUntil = Instant.MIN;
+
+    public AvatarStoreMigration(AvatarRepository avatarRepository, AvatarPreviewRepository avatarPreviewRepository,
+                                FileAvatarBlobStore avatarBlobStore, AvatarIngestor avatarIngestor,
+                                AvatarContentGuard avatarContentGuard,
+                                PlatformTransactionManager transactionManager,
+                                @Value("${avatar.store.migration.enabled:true}") boolean enabled,
+                                @Value("${avatar.store.migration.batch-size:100}") int batchSize,
+                                @Value("${avatar.store.migration.grace-ms:60000}") long graceMs,
+                                @Value("${avatar.store.migration.idle-ms:3600000}") long idleMs) {
+        this.avatarRepository = avatarRepository;
+        this.avatarPreviewRepository = avatarPreviewRepository;
+        this.avatarBlobStore = avatarBlobStore;
+        this.avatarIngestor = avatarIngestor;
+        this.avatarContentGuard = avatarContentGuard;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.grace = Duration.ofMillis(graceMs);
+        this.idleDelay = Duration.ofMillis(idleMs);
+    }
+
+    @Scheduled(fixedDelayString = "${avatar.store.migration.interval-ms:10000}",
+            initialDelayString = "${avatar.store.migration.initial-delay-ms:30000}")
+    public void migrate() {
+        if (!enabled) {
+            return;
+        }
+        deleteExpired();
+        // после прохода без единого переноса миграция засыпает: новые загрузки сразу пишутся в новую раскладку
+        if (Instant.now().isBefore(idleUntil)) {
+            return;
+        }
+        migrateBatch();
+    }
+
+    public synchronized int migrateBatch() {
+        List<AvatarExportRow> rows = readOnlyTransaction.execute(
+                status -> avatarRepository.findExportRows(cursor, PageRequest.of(0, batchSize)));
+        int migrated = 0;
+        for (AvatarExportRow row : rows) {
+            try {
+                migrated += migrateRow(row);
+            } catch (IOException | RuntimeException e) {
+                log.error("Не удалось перенести файл аватара id = {} ({})", row.id(), row.filePath(), e);
+            }
+            cursor = row.id();
+        }
+        migratedInPass += migrated;
+
+        if (rows.size() < batchSize) {
+            if (migratedInPass == 0) {
+                idleUntil = Instant.now().plus(idleDelay);
+                log.debug("Все файлы аватаров уже в новой раскладке");
+            } else {
+                log.info("Проход миграции хранилища аватаров завершён, перенесено строк: {}", migratedInPass);
+            }
+            cursor = 0;
+            migratedInPass = 0;
+        }
+        return migrated;
+    }
+
+    private int migrateRow(AvatarExportRow row) throws IOException {
+        if (row.filePath() == null) {
+            return 0;
+        }
+        Path current = Path.of(row.filePath());
+        if (row.contentHash() != null) {
+            Path target = avatarBlobStore.resolve(row.contentHash());
+            if (current.equals(target)) {
+                return 0;
+            }
+            if (!Files.exists(target)) {
+                if (!Files.exists(current)) {
+                    log.warn("Файл {} не найден, переносить нечего", current);
+                    return 0;
+                }
+                avatarBlobStore.link(row.contentHash(), current);
+            }
+            int updated = avatarRepository.moveContent(row.contentHash(), row.filePath(), target.toString());
+            scheduleDelete(current);
+            log.debug("Содержимое {} перенесено в {}, обновлено строк: {}", row.contentHash(), target, updated);
+            return updated;
+        }
+
+        if (!Files.exists(current)) {
+            return 0;
+        }
+        StoredBlob blob;
+        try (InputStream in = Files.newInputStream(current)) {
+            blob = avatarIngestor.ingest(in);
+        } catch (IllegalArgumentException e) {
+            log.warn("Файл {} старого формата не является допустимым изображением: {}", current, e.getMessage());
+            return 0;
+        }
+        int updated;
+        try {
+            // готовых превью для старых строк нет, их построит конвейер превью по статусу PENDING
+            PreviewStatus previewStatus = avatarPreviewRepository.existsById(blob.hash())
+                    ? PreviewStatus.READY
+                    : PreviewStatus.PENDING;
+            updated = avatarRepository.adoptLegacyFile(row.id(), row.filePath(), blob.path().toString(), blob.hash(),
+                    blob.size(), blob.mediaType(), previewStatus);
+        } finally {
+            avatarContentGuard.release(blob.hash());
+        }
+        if (updated > 0) {
+            scheduleDelete(current);
+            log.debug("Файл старого формата {} перенесён в {}", current, blob.path());
+        }
+        return updated;
+    }
+
+    private void scheduleDelete(Path file) {
+        synchronized (pendingDeletes) {
+            pendingDeletes.putIfAbsent(file, Instant.now().plus(grace));
+        }
+    }
+
+    private void deleteExpired() {
+        Instant now = Instant.now();
+        synchronized (pendingDeletes) {
+            Iterator<Map.Entry<Path, Instant>> iterator = pendingDeletes.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Path, Instant> entry = iterator.next();
+                if (entry.getValue().isAfter(now)) {
+                    break;
+                }
+                iterator.remove();
+                Path file = entry.getKey();
+                Boolean referenced = readOnlyTransaction.execute(status ->
+                        !avatarRepository.findExistingFilePaths(List.of(file.toString())).isEmpty());
+                try {
+                    if (!Boolean.TRUE.equals(referenced) && Files.deleteIfExists(file)) {
+                        log.debug("Старый файл {} удалён после переноса", file);
+                    }
+                } catch (IOException e) {
+                    // останется сиротой и будет убран сверкой хранилища
+                    log.warn("Не удалось удалить старый файл {}", file, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.hogwarts.school.dto.AvatarExportRow;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.storage.FileAvatarBlobStore;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+// сверяет каталог аватаров с таблицей avatar: файлы без ссылок сначала переносятся в карантин,
+// а удаляются только после выдержки, если за это время на них снова не сослались
+@Component
+@ConditionalOnProperty(name = "avatar.store.type", havingValue = "file", matchIfMissing = true)
+@Slf4j
+public class AvatarStoreReconciler {
+
+    static final String QUARANTINE_DIR = "quarantine";
+
+    private static final Pattern CONTENT_HASH = Pattern.compile("[0-9a-f]{64}");
+    // за один запуск обходится одна группа: корень хранилища (плоская раскладка, временные файлы)
+    // или один из 256 каталогов первого уровня <root>/ab
+    private static final int BUCKETS = 257;
+
+    private final AvatarRepository avatarRepository;
+    private final FileAvatarBlobStore avatarBlobStore;
+    private final TransactionTemplate readOnlyTransaction;
+    private final int batchSize;
+    private final long batchPauseMs;
+    private final Duration minAge;
+    private final Duration quarantinePeriod;
+
+    private final Counter quarantined;
+    private final Counter deleted;
+    private final Counter restored;
+    private final AtomicLong missingFiles = new AtomicLong();
+
+    private int bucket;
+    private long rowCursor;
+    private long missingInCycle;
+
+    public AvatarStoreReconciler(AvatarRepository avatarRepository, FileAvatarBlobStore avatarBlobStore,
+                                 PlatformTransactionManager transactionManager, MeterRegistry meterRegistry,
+                                 @Value("${avatar.sweeper.batch-size:200}") int batchSize,
+                                 @Value("${avatar.sweeper.batch-pause-ms:100}") long batchPauseMs,
+                                 @Value("${avatar.sweeper.min-age-ms:3600000}") long minAgeMs,
+                                 @Value("${avatar.sweeper.quarantine-ms:86400000}") long quarantineMs) {
+        this.avatarRepository = avatarRepository;
+        this.avatarBlobStore = avatarBlobStore;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.batchSize = batchSize;
+        this.batchPauseMs = batchPauseMs;
+        this.minAge = Duration.ofMillis(minAgeMs);
+        this.quarantinePeriod = Duration.ofMillis(quarantineMs);
+        this.quarantined = meterRegistry.counter("avatar.store.orphans", "action", "quarantined");
+        this.deleted = meterRegistry.counter("avatar.store.orphans", "action", "deleted");
+        this.restored = meterRegistry.counter("avatar.store.orphans", "action", "restored");
+        meterRegistry.gauge("avatar.store.missing.files", missingFiles);
+    }
+
+    @Scheduled(fixedDelayString = "${avatar.sweeper.interval-ms:15000}",
+            initialDelayString = "${avatar.sweeper.initial-delay-ms:60000}")
+    public synchronized void reconcile() {
+        try {
+            sweepBucket(bucket);
+            bucket = (bucket + 1) % BUCKETS;
+            purgeQuarantine();
+            checkRows();
+        } catch (IOException e) {
+            log.error("Ошибка сверки каталога аватаров", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sweepBucket(int index) throws IOException, InterruptedException {
+        boolean rootLevel = index == 0;
+        Path dir = rootLevel
+                ? avatarBlobStore.root()
+                : avatarBlobStore.root().resolve(String.format("%02x", index - 1));
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        Instant threshold = Instant.now().minus(minAge);
+        List<Path> batch = new ArrayList<>(batchSize);
+        try (Stream<Path> files = Files.walk(dir, rootLevel ? 1 : 2)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                // свежие файлы могут принадлежать ещё не закоммиченной загрузке
+                if (!Files.isRegularFile(file) || lastModified(file).isAfter(threshold)) {
+                    continue;
+                }
+                batch.add(file);
+                if (batch.size() == batchSize) {
+                    quarantineOrphans(batch, rootLevel);
+                    batch.clear();
+                    Thread.sleep(batchPauseMs);
+                }
+            }
+        }
+        quarantineOrphans(batch, rootLevel);
+    }
+
+    private void quarantineOrphans(List<Path> files, boolean rootLevel) throws IOException {
+        if (files.isEmpty()) {
+            return;
+        }
+        Set<String> referenced = rootLevel ? findReferencedByPath(files) : findReferencedByHash(files);
+        Path quarantine = Files.createDirectories(avatarBlobStore.root().resolve(QUARANTINE_DIR));
+        for (Path file : files) {
+            if (referenced.contains(file.getFileName().toString())) {
+                continue;
+            }
+            Path target = quarantine.resolve(file.getFileName());
+            Files.move(file, target, REPLACE_EXISTING);
+            // выдержка в карантине отсчитывается от переноса
+            Files.setLastModifiedTime(target, FileTime.from(Instant.now()));
+            quarantined.increment();
+            log.info("Файл {} без ссылок из БД перенесён в карантин", file.getFileName());
+        }
+    }
+
+    private void purgeQuarantine() throws IOException {
+        Path quarantine = avatarBlobStore.root().resolve(QUARANTINE_DIR);
+        if (!Files.isDirectory(quarantine)) {
+            return;
+        }
+        Instant threshold = Instant.now().minus(quarantinePeriod);
+        List<Path> expired = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(quarantine)) {
+            for (Path file : files) {
+                if (expired.size() == batchSize) {
+                    break;
+                }
+                if (Files.isRegularFile(file) && !lastModified(file).isAfter(threshold)) {
+                    expired.add(file);
+                }
+            }
+        }
+        if (expired.isEmpty()) {
+            return;
+        }
+
+        // пока файл лежал в карантине, на него могли снова сослаться - такой файл возвращается на место
+        Set<String> referenced = findReferencedByHash(expired);
+        referenced.addAll(findReferencedByPath(expired));
+        for (Path file : expired) {
+            String name = file.getFileName().toString();
+            Path original = CONTENT_HASH.matcher(name).matches()
+                    ? avatarBlobStore.resolve(name)
+                    : avatarBlobStore.root().resolve(name);
+            if (referenced.contains(name) && !Files.exists(original)) {
+                Files.createDirectories(original.getParent());
+                Files.move(file, original);
+                restored.increment();
+                log.warn("Файл {} снова используется и возвращён из карантина", file.getFileName());
+            } else {
+                Files.delete(file);
+                deleted.increment();
+                log.info("Файл {} удалён после карантина", file.getFileName());
+            }
+        }
+    }
+
+    // обратная сверка: строки avatar, чей файл пропал с диска, проверяются порциями по id
+    private void checkRows() {
+        List<AvatarExportRow> rows = readOnlyTransaction.execute(
+                status -> avatarRepository.findExportRows(rowCursor, PageRequest.of(0, batchSize)));
+        for (AvatarExportRow row : rows) {
+            if (row.filePath() != null && !Files.exists(Path.of(row.filePath()))) {
+                missingInCycle++;
+                log.error("Файл аватара {} студента id = {} отсутствует на диске", row.filePath(), row.studentId());
+            }
+            rowCursor = row.id();
+        }
+        if (rows.size() < batchSize) {
+            missingFiles.set(missingInCycle);
+            missingInCycle = 0;
+            rowCursor = 0;
+        }
+    }
+
+    // файлы раскладки ab/cd/<hash> нужны, пока есть хоть одна строка с таким content_hash
+    private Set<String> findReferencedByHash(List<Path> files) {
+        List<String> hashes = files.stream()
+                .map(file -> file.getFileName().toString())
+                .filter(name -> CONTENT_HASH.matcher(name).matches())
+                .toList();
+        Set<String> referenced = new HashSet<>();
+        if (!hashes.isEmpty()) {
+            readOnlyTransaction.executeWithoutResult(
+                    status -> referenced.addAll(avatarRepository.findExistingContentHashes(hashes)));
+        }
+        return referenced;
+    }
+
+    // в корне лежат файлы до переноса в новую раскладку (<hash>, 5.jpg), на них ссылаются по file_path
+    private Set<String> findReferencedByPath(List<Path> files) {
+        Map<String, String> paths = new HashMap<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (!name.endsWith(".tmp")) {
+                paths.put(avatarBlobStore.root().resolve(name).toString(), name);
+            }
+        }
+        Set<String> referenced = new HashSet<>();
+        if (!paths.isEmpty()) {
+            readOnlyTransaction.executeWithoutResult(status -> avatarRepository.findExistingFilePaths(paths.keySet())
+                    .forEach(path -> referenced.add(paths.get(path))));
+        }
+        return referenced;
+    }
+
+    private static Instant lastModified(Path file) throws IOException {
+        return Files.getLastModifiedTime(file).toInstant();
+    }
+}
@@ -0,0 +1,84 @@
+package ru.hogwarts.school.service;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import ru.hogwarts.school.storage.AvatarBlob;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+// пишет tar напрямую в поток ответа: заголовок формирует commons-compress,
+// а содержимое файла передаётся через FileChannel.transferTo без копирования в куче
+public class AvatarTarWriter {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+
+    public AvatarTarWriter(OutputStream out) {
+        this.out = out;
+        this.channel = Channels.newChannel(out);
+    }
+
+    public void putFile(String name, Path file, Instant modified) throws IOException {
+        try (FileChannel in = FileChannel.open(file, READ)) {
+            long size = in.size();
+            writeHeader(name, size, modified);
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, channel);
+                if (transferred <= 0) {
+                    throw new IOException("Файл " + file + " изменился во время выгрузки");
+                }
+                position += transferred;
+            }
+            pad(size);
+        }
+    }
+
+    public void putBlob(String name, AvatarBlob blob, Instant modified) throws IOException {
+        if (blob.file() != null) {
+            putFile(name, blob.file(), modified);
+            return;
+        }
+        writeHeader(name, blob.size(), modified);
+        blob.transferTo(0, blob.size(), channel);
+        pad(blob.size());
+    }
+
+    public void putBytes(String name, byte[] data, Instant modified) throws IOException {
+        writeHeader(name, data.length, modified);
+        out.write(data);
+        pad(data.length);
+    }
+
+    // конец архива - два пустых блока
+    public void finish() throws IOException {
+        out.write(new byte[BLOCK_SIZE * 2]);
+        out.flush();
+    }
+
+    private void writeHeader(String name, long size, Instant modified) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(size);
+        entry.setLastModifiedTime(FileTime.from(modified));
+        byte[] header = new byte[BLOCK_SIZE];
+        entry.writeEntryHeader(header);
+        out.write(header);
+    }
+
+    private void pad(long size) throws IOException {
+        int remainder = (int) (size % BLOCK_SIZE);
+        if (remainder != 0) {
+            out.write(new byte[BLOCK_SIZE - remainder]);
+        }
+    }
+}
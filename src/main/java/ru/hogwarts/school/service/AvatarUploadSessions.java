@@ -0,0 +1,160 @@
+package ru.hogwarts.school.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.hogwarts.school.dto.AvatarUploadSession;
+import ru.hogwarts.school.exception.UploadOffsetConflictException;
+import ru.hogwarts.school.exception.UploadSessionNotFoundException;
+import ru.hogwarts.school.exception.UploadTooLargeException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// докачиваемые загрузки: куски дописываются в <root>/uploads/<studentId>-<uuid>.part,
+// принятое смещение - размер файла, поэтому сессия переживает и обрыв связи, и перезапуск приложения
+@Component
+@Slf4j
+public class AvatarUploadSessions {
+
+    private static final String SUFFIX = ".part";
+    private static final Pattern UPLOAD_ID = Pattern.compile("[0-9a-f]{32}");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final Duration ttl;
+    // в одну сессию одновременно пишет только один запрос
+    private final Set<String> busy = ConcurrentHashMap.newKeySet();
+
+    public AvatarUploadSessions(@Value("${path.to.avatars.folder}") String avatarDir,
+                                @Value("${avatar.upload.max-bytes:10485760}") long maxBytes,
+                                @Value("${avatar.upload.session.ttl-ms:86400000}") long ttlMs) {
+        this.dir = Path.of(avatarDir).resolve("uploads");
+        this.maxBytes = maxBytes;
+        this.ttl = Duration.ofMillis(ttlMs);
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(dir);
+    }
+
+    public AvatarUploadSession create(Long studentId) throws IOException {
+        String uploadId = UUID.randomUUID().toString().replace("-", "");
+        Files.createFile(file(studentId, uploadId));
+        log.debug("Создана сессия загрузки {} для студента id = {}", uploadId, studentId);
+        return new AvatarUploadSession(uploadId, studentId, 0);
+    }
+
+    public AvatarUploadSession get(Long studentId, String uploadId) throws IOException {
+        return new AvatarUploadSession(uploadId, studentId, Files.size(existing(studentId, uploadId)));
+    }
+
+    // кусок принимается, только если клиент продолжает ровно с принятого смещения;
+    // при обрыве уже записанная часть куска остаётся, и клиент продолжает с нового смещения
+    public AvatarUploadSession append(Long studentId, String uploadId, long offset, InputStream chunk)
+            throws IOException {
+        Path file = existing(studentId, uploadId);
+        String key = file.getFileName().toString();
+        if (!busy.add(key)) {
+            throw new UploadOffsetConflictException(Files.size(file));
+        }
+        try (FileChannel out = FileChannel.open(file, WRITE, APPEND);
+             ReadableByteChannel in = Channels.newChannel(chunk)) {
+            long size = out.size();
+            if (size != offset) {
+                throw new UploadOffsetConflictException(offset, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                size += buffer.remaining();
+                if (size > maxBytes) {
+                    throw new UploadTooLargeException(maxBytes);
+                }
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+            log.debug("Сессия загрузки {}: принято {} байт", uploadId, size);
+            return new AvatarUploadSession(uploadId, studentId, size);
+        } finally {
+            busy.remove(key);
+        }
+    }
+
+    // файл забирается из сессии целиком, дальше им распоряжается приём в хранилище
+    public Path take(Long studentId, String uploadId) throws IOException {
+        Path file = existing(studentId, uploadId);
+        String key = file.getFileName().toString();
+        if (!busy.add(key)) {
+            throw new UploadOffsetConflictException(Files.size(file));
+        }
+        try {
+            Path taken = dir.resolve(key + ".done");
+            Files.move(file, taken);
+            // выдержка очистки отсчитывается от завершения, а не от последнего куска
+            Files.setLastModifiedTime(taken, FileTime.from(Instant.now()));
+            return taken;
+        } finally {
+            busy.remove(key);
+        }
+    }
+
+    public void abort(Long studentId, String uploadId) throws IOException {
+        Files.delete(existing(studentId, uploadId));
+        log.debug("Сессия загрузки {} отменена", uploadId);
+    }
+
+    @Scheduled(fixedDelayString = "${avatar.upload.session.cleanup-interval-ms:600000}")
+    public void deleteExpired() {
+        Instant threshold = Instant.now().minus(ttl);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (!busy.contains(file.getFileName().toString())
+                        && Files.getLastModifiedTime(file).toInstant().isBefore(threshold)) {
+                    Files.deleteIfExists(file);
+                    log.info("Удалена брошенная сессия загрузки {}", file.getFileName());
+                }
+            }
+        } catch (IOException e) {
+            log.error("Ошибка очистки сессий загрузки", e);
+        }
+    }
+
+    private Path existing(Long studentId, String uploadId) {
+        if (!UPLOAD_ID.matcher(uploadId).matches()) {
+            throw new UploadSessionNotFoundException(uploadId);
+        }
+        Path file = file(studentId, uploadId);
+        if (!Files.isRegularFile(file)) {
+            throw new UploadSessionNotFoundException(uploadId);
+        }
+        return file;
+    }
+
+    private Path file(Long studentId, String uploadId) {
+        return dir.resolve(studentId + "-" + uploadId + SUFFIX);
+    }
+}
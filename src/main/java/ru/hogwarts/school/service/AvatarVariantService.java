@@ -0,0 +1,127 @@
+package ru.hogwarts.school.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import ru.hogwarts.school.storage.AvatarBlob;
+import ru.hogwarts.school.storage.AvatarBlobStore;
+import ru.hogwarts.school.storage.AvatarVariantCache;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+
+@Service
+@Slf4j
+public class AvatarVariantService {
+
+    public enum Fit {
+        CONTAIN,
+        COVER
+    }
+
+    // открытый файл варианта: его закрывает тот, кто отдаёт вариант
+    public record Variant(AvatarBlob blob, String mediaType, String etag) implements AutoCloseable {
+
+        @Override
+        public void close() throws IOException {
+            blob.close();
+        }
+    }
+
+    private final AvatarBlobStore avatarBlobStore;
+    private final AvatarImageDecoder avatarImageDecoder;
+    private final AvatarImageResizer avatarImageResizer;
+    private final AvatarVariantCache avatarVariantCache;
+    private final List<Integer> allowedSizes;
+
+    public AvatarVariantService(AvatarBlobStore avatarBlobStore, AvatarImageDecoder avatarImageDecoder,
+                                AvatarImageResizer avatarImageResizer, AvatarVariantCache avatarVariantCache,
+                                @Value("${avatar.variants.sizes:48,64,96,128,256,512}") List<Integer> allowedSizes) {
+        this.avatarBlobStore = avatarBlobStore;
+        this.avatarImageDecoder = avatarImageDecoder;
+        this.avatarImageResizer = avatarImageResizer;
+        this.avatarVariantCache = avatarVariantCache;
+        this.allowedSizes = allowedSizes;
+    }
+
+    // оригинал открывается только при промахе кеша: у S3 он может лежать не локально
+    public Variant getVariant(String contentHash, String sourceMediaType,
+                              Integer width, Integer height, String fit) throws IOException {
+        checkSize(width);
+        checkSize(height);
+        Fit fitMode = parseFit(fit);
+        boolean jpeg = MediaType.IMAGE_JPEG_VALUE.equals(sourceMediaType);
+        String extension = jpeg ? "jpg" : "png";
+
+        String name = contentHash + "-" + sizeName(width) + "x" + sizeName(height) + "-"
+                + fitMode.name().toLowerCase(Locale.ROOT);
+        AvatarBlob blob = avatarVariantCache.open(name + "." + extension,
+                target -> render(contentHash, width, height, fitMode, jpeg, target));
+        return new Variant(blob, jpeg ? MediaType.IMAGE_JPEG_VALUE : MediaType.IMAGE_PNG_VALUE, "\"" + name + "\"");
+    }
+
+    private void render(String contentHash, Integer width, Integer height, Fit fit, boolean jpeg, Path target)
+            throws IOException {
+        try (AvatarBlob source = avatarBlobStore.open(contentHash)) {
+            render(source, width, height, fit, jpeg, target);
+        }
+    }
+
+    private void render(AvatarBlob source, Integer width, Integer height, Fit fit, boolean jpeg, Path target)
+            throws IOException {
+        AvatarImageDecoder.ImageHeader header = avatarImageDecoder.probe(source);
+        double scale;
+        if (width != null && height != null) {
+            double scaleX = (double) width / header.width();
+            double scaleY = (double) height / header.height();
+            scale = fit == Fit.COVER ? Math.max(scaleX, scaleY) : Math.min(scaleX, scaleY);
+        } else if (width != null) {
+            scale = (double) width / header.width();
+        } else {
+            scale = (double) height / header.height();
+        }
+        // увеличивать изображение больше оригинала смысла нет
+        scale = Math.min(scale, 1.0);
+
+        int scaledWidth = Math.max(1, (int) Math.round(header.width() * scale));
+        int scaledHeight = Math.max(1, (int) Math.round(header.height() * scale));
+        boolean crop = fit == Fit.COVER && width != null && height != null;
+        int outWidth = crop ? Math.min(width, scaledWidth) : scaledWidth;
+        int outHeight = crop ? Math.min(height, scaledHeight) : scaledHeight;
+
+        BufferedImage image = avatarImageDecoder.decodeForWidth(source, scaledWidth);
+        BufferedImage result = avatarImageResizer.resize(image, scaledWidth, scaledHeight);
+        if (crop) {
+            result = result.getSubimage((scaledWidth - outWidth) / 2, (scaledHeight - outHeight) / 2,
+                    outWidth, outHeight);
+        }
+
+        if (!ImageIO.write(result, jpeg ? "jpeg" : "png", target.toFile())) {
+            throw new IOException("Не найден ImageWriter для варианта аватара");
+        }
+        log.debug("Вариант {}x{} ({}) построен из {}x{}", outWidth, outHeight, fit, header.width(), header.height());
+    }
+
+    private void checkSize(Integer size) {
+        if (size != null && !allowedSizes.contains(size)) {
+            throw new IllegalArgumentException("Недопустимый размер " + size + ", разрешены: " + allowedSizes);
+        }
+    }
+
+    private Fit parseFit(String fit) {
+        try {
+            return Fit.valueOf(fit.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Недопустимый режим fit=" + fit + ", разрешены: contain, cover");
+        }
+    }
+
+    private static String sizeName(Integer size) {
+        return size == null ? "auto" : size.toString();
+    }
+}
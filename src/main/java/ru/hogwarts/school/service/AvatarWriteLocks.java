@@ -0,0 +1,43 @@
+package ru.hogwarts.school.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+// запись аватаров одного студента идёт по очереди, разных студентов - параллельно:
+// студент попадает в одну из полос по id, общей блокировки на все загрузки нет;
+// полос с запасом больше пачки импорта, иначе пачка занимала бы почти все полосы и ждали бы одиночные загрузки
+@Component
+public class AvatarWriteLocks {
+
+    private final ReentrantLock[] stripes;
+
+    public AvatarWriteLocks(@Value("${avatar.write-locks.stripes:1024}") int stripes) {
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    // блокировка держится до конца транзакции: отпусти её раньше коммита, вторая загрузка
+    // прочитала бы ещё старую строку аватара
+    public void lockUntilCompletion(Collection<Long> studentIds) {
+        // полосы берутся по возрастанию номера, поэтому пачки импорта не могут заблокировать друг друга
+        TreeSet<Integer> indexes = new TreeSet<>();
+        studentIds.forEach(studentId -> indexes.add(Math.floorMod(Long.hashCode(studentId), stripes.length)));
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                indexes.descendingIterator().forEachRemaining(index -> stripes[index].unlock());
+            }
+        });
+        for (Integer index : indexes) {
+            stripes[index].lock();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package ru.hogwarts.school.service;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import ru.hogwarts.school.exception.FacultyNotFoundException;
 import ru.hogwarts.school.model.Faculty;
@@ -68,9 +69,8 @@ public class FacultyService {
 
     public String getLongestFacultyName() {
         log.info("Вызван метод для поиска самого длинного названия факультета");
-        return facultyRepository.findAll().stream()
-                .map(Faculty::getName)
-                .max((name1, name2) -> Integer.compare(name1.length(), name2.length()))
+        return facultyRepository.findNamesByLengthDesc(PageRequest.of(0, 1)).stream()
+                .findFirst()
                 .orElse("Факультеты отсутствуют");
     }
 
@@ -1,29 +1,50 @@
 package ru.hogwarts.school.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.persistence.EntityNotFoundException;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import ru.hogwarts.school.dto.StudentExportFormat;
+import ru.hogwarts.school.dto.StudentExportRow;
+import ru.hogwarts.school.dto.StudentSearchFilter;
+import ru.hogwarts.school.dto.StudentSearchPage;
+import ru.hogwarts.school.dto.StudentStats;
 import ru.hogwarts.school.exception.StudentNotFoundException;
 import ru.hogwarts.school.model.Student;
-import ru.hogwarts.school.repository.AvatarRepository;
 import ru.hogwarts.school.repository.StudentRepository;
+import ru.hogwarts.school.repository.StudentSpecifications;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
 import java.util.List;
+import java.util.stream.Stream;
 
 @Service
 @Slf4j
 public class StudentService {
 
     private final StudentRepository studentRepository;
-    private final AvatarRepository avatarRepository;
-
-    public StudentService(StudentRepository studentRepository, AvatarRepository avatarRepository) {
+    private final AvatarService avatarService;
+    private final ObjectMapper objectMapper;
+    private final int searchMaxSize;
+    private final int exportFetchSize;
+
+    public StudentService(StudentRepository studentRepository, AvatarService avatarService, ObjectMapper objectMapper,
+                          @Value("${student.search.max-size:100}") int searchMaxSize,
+                          @Value("${student.export.fetch-size:500}") int exportFetchSize) {
         this.studentRepository = studentRepository;
-        this.avatarRepository = avatarRepository;
+        this.avatarService = avatarService;
+        this.objectMapper = objectMapper;
+        this.searchMaxSize = searchMaxSize;
+        this.exportFetchSize = exportFetchSize;
     }
 
     public List<Student> findByFacultyId(Long facultyId) {
@@ -63,18 +84,7 @@ public class StudentService {
         Student student = studentRepository.findById(studentId)
                 .orElseThrow(() -> new EntityNotFoundException("Студент с id " + studentId + " не найден"));
 
-        avatarRepository.findByStudentId(studentId).ifPresent(avatar -> {
-            try {
-                Path avatarPath = Path.of(avatar.getFilePath());
-                Files.deleteIfExists(avatarPath);
-                log.debug("Удалён файл аватара: {}", avatarPath);
-            } catch (IOException e) {
-                log.error("Ошибка при удалении аватарки для студента = {}", studentId, e);
-                throw new RuntimeException("Не удалось удалить файл аватарки", e);
-            }
-            avatarRepository.delete(avatar);
-            log.debug("Удалена аватарка из БД: {}", avatar);
-        });
+        avatarService.deleteAvatar(studentId);
 
         studentRepository.delete(student);
         log.info("Студент с id = {}", studentId);
@@ -83,17 +93,14 @@ public class StudentService {
 
     public List<Student> findByAge(int age) {
         log.info("Вызван метод поиска по возрасту = {}", age);
-        List<Student> result = studentRepository.findAll().
-                stream()
-                .filter(student -> student.getAge() == age)
-                .toList();
+        List<Student> result = studentRepository.findAll(StudentSpecifications.ageEquals(age));
         log.info("Получен список студентов");
         return result;
     }
 
     public List<Student> findByAgeBetween(int min, int max) {
         log.info("Вызван метод поиска студентов по промежутку возрастов: min={}, max={}", min, max);
-        List<Student> result = studentRepository.findByAgeBetween(min, max);
+        List<Student> result = studentRepository.findAll(StudentSpecifications.ageBetween(min, max));
         log.info("Получен список студентов  по промежутку возрастов: min={}, max={}", min, max);
         return result;
     }
@@ -116,20 +123,79 @@ public class StudentService {
     public List<String> getStudentsWithA() {
         log.info("Вызван метод получения всех студентов начинающихся с буквы А");
 
-        return studentRepository.findAll().stream()
-                .map(Student::getName)
-                .filter(name -> name != null && name.toUpperCase().startsWith("А"))
-                .map(String::toUpperCase)
-                .sorted()
-                .toList();
+        return studentRepository.findUpperCaseNames(StudentSpecifications.nameStartsWith("А"));
     }
 
     public double getAverageAgeFromFindAll(){
         log.info("Вызван метод для получения среднего возраста всех студентов");
-        return studentRepository.findAll().stream()
-                .mapToInt(Student::getAge)
-                .average()
-                .orElse(0.0);
+        Double average = studentRepository.aggregate(StudentSpecifications.matching(StudentSearchFilter.all()))
+                .averageAge();
+        return average == null ? 0.0 : average;
+    }
+
+    // все фильтры складываются в один запрос с LIMIT/OFFSET, в память попадает только страница
+    @Transactional(readOnly = true)
+    public StudentSearchPage search(StudentSearchFilter filter, int page, int size) {
+        log.info("Вызван метод поиска студентов: {}, страница={}, размер={}", filter, page, size);
+        validate(filter);
+        if (page < 0 || size < 1 || size > searchMaxSize) {
+            throw new IllegalArgumentException("Размер страницы должен быть от 1 до " + searchMaxSize
+                    + ", номер страницы не может быть отрицательным");
+        }
+        return StudentSearchPage.of(studentRepository.findAll(StudentSpecifications.matching(filter),
+                PageRequest.of(page, size, Sort.by("id"))));
+    }
+
+    @Transactional(readOnly = true)
+    public StudentStats getSearchStats(StudentSearchFilter filter) {
+        log.info("Вызван метод подсчёта статистики по студентам: {}", filter);
+        validate(filter);
+        return studentRepository.aggregate(StudentSpecifications.matching(filter));
+    }
+
+    private static void validate(StudentSearchFilter filter) {
+        if (filter.minAge() != null && filter.maxAge() != null && filter.minAge() > filter.maxAge()) {
+            throw new IllegalArgumentException("Минимальный возраст " + filter.minAge()
+                    + " больше максимального " + filter.maxAge());
+        }
     }
 
+    // строки идут из курсора прямо в ответ, в памяти держится только порция fetchSize и буфер записи;
+    // транзакция только на чтение: Hibernate не делает снимков для dirty checking и не сбрасывает сессию
+    @Transactional(readOnly = true)
+    public void exportStudents(StudentExportFormat format, OutputStream out) throws IOException {
+        log.info("Вызван метод выгрузки всех студентов в формате {}", format);
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        long count = 0;
+        try (Stream<StudentExportRow> rows = studentRepository.streamExportRows(exportFetchSize)) {
+            if (format == StudentExportFormat.CSV) {
+                writer.write("id,name,age,faculty_id\r\n");
+            }
+            Iterator<StudentExportRow> iterator = rows.iterator();
+            while (iterator.hasNext()) {
+                StudentExportRow row = iterator.next();
+                if (format == StudentExportFormat.CSV) {
+                    writer.write(row.id() + "," + csv(row.name()) + "," + row.age() + ","
+                            + (row.facultyId() == null ? "" : row.facultyId()) + "\r\n");
+                } else {
+                    writer.write(objectMapper.writeValueAsString(row));
+                    writer.write('\n');
+                }
+                count++;
+            }
+        }
+        writer.flush();
+        log.info("Выгружено студентов: {}", count);
+    }
+
+    // RFC 4180: значение с запятой, кавычкой или переводом строки берётся в кавычки
+    private static String csv(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.contains(",") || value.contains("\"") || value.contains("\n") || value.contains("\r")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
 }
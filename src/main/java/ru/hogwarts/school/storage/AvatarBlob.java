@@ -0,0 +1,25 @@
+package ru.hogwarts.school.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+// содержимое аватара независимо от того, где оно лежит: отдельный файл или кусок сегмента
+public interface AvatarBlob extends Closeable {
+
+    long size();
+
+    InputStream openStream() throws IOException;
+
+    void transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+    // отдельный файл целиком, если содержимое хранится так; его можно отдать через sendfile
+    Path file();
+
+    // открытый файл кэша закрывается, остальным содержимым закрывать нечего
+    @Override
+    default void close() throws IOException {
+    }
+}
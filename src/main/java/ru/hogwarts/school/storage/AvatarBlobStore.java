@@ -0,0 +1,32 @@
+package ru.hogwarts.school.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+
+// хранилище оригиналов аватаров по SHA-256 содержимого, реализация выбирается avatar.store.type
+public interface AvatarBlobStore {
+
+    // временный файл для приёма загрузки до того, как станет известен хэш
+    Path createTempFile() throws IOException;
+
+    // забирает временный файл в хранилище и возвращает путь, который пишется в avatar.file_path
+    Path put(String hash, Path tempFile) throws IOException;
+
+    AvatarBlob open(String hash) throws IOException;
+
+    // строки старого формата без content_hash читаются прямо по file_path
+    default AvatarBlob open(String hash, String filePath) throws IOException {
+        return hash != null ? open(hash) : new FileAvatarBlob(Path.of(filePath));
+    }
+
+    boolean exists(String hash) throws IOException;
+
+    void delete(String hash) throws IOException;
+
+    // сколько освобождённое содержимое ждёт удаления; хранилищу, общему для нескольких экземпляров,
+    // пауза нужна, чтобы загрузка того же содержимого на другом экземпляре успела закоммитить свою строку
+    default Duration releaseGrace() {
+        return Duration.ZERO;
+    }
+}
@@ -0,0 +1,16 @@
+package ru.hogwarts.school.storage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+
+// уменьшенные варианты оригиналов: <root>/variants, вытесняются давно не запрошенные
+@Component
+public class AvatarVariantCache extends LocalFileCache {
+
+    public AvatarVariantCache(@Value("${path.to.avatars.folder}") String avatarDir,
+                              @Value("${avatar.variants.cache.max-bytes:268435456}") long maxBytes) {
+        super("вариантов аватаров", Path.of(avatarDir, "variants"), maxBytes);
+    }
+}
@@ -0,0 +1,76 @@
+package ru.hogwarts.school.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+// файл кэша, открытый ещё до возврата из кэша: вытеснение удаляет только имя файла,
+// а открытый канал дочитывает содержимое до close
+public class CachedFileBlob implements AvatarBlob {
+
+    private final FileChannel channel;
+    private final long size;
+
+    CachedFileBlob(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    // чтение по позиции не сдвигает общий канал, поэтому потоков можно открыть несколько
+    @Override
+    public InputStream openStream() {
+        return new InputStream() {
+            private long position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) <= 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                int read = channel.read(ByteBuffer.wrap(buffer, offset, length), position);
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+        };
+    }
+
+    @Override
+    public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, target);
+            if (transferred <= 0) {
+                throw new IOException("Файл кэша изменился во время передачи");
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    // sendfile открыл бы файл заново по имени уже после ответа контроллера, когда его могли вытеснить
+    @Override
+    public Path file() {
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,103 @@
+package ru.hogwarts.school.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+@Component
+@ConditionalOnProperty(name = "avatar.store.type", havingValue = "file", matchIfMissing = true)
+@Slf4j
+public class FileAvatarBlobStore implements AvatarBlobStore {
+
+    private final Path root;
+
+    public FileAvatarBlobStore(@Value("${path.to.avatars.folder}") String avatarDir) {
+        this.root = Path.of(avatarDir);
+    }
+
+    // временный файл создаётся в том же каталоге, чтобы перенос в хранилище был атомарным rename
+    @Override
+    public Path createTempFile() throws IOException {
+        Files.createDirectories(root);
+        return Files.createTempFile(root, "upload-", ".tmp");
+    }
+
+    @Override
+    public Path put(String hash, Path tempFile) throws IOException {
+        Path target = resolve(hash);
+        if (Files.exists(target)) {
+            log.debug("Содержимое {} уже есть в хранилище, копия не сохраняется", hash);
+            Files.delete(tempFile);
+            // свежая дата изменения защищает файл от чистки сирот, пока транзакция загрузки не закоммичена
+            Files.setLastModifiedTime(target, FileTime.from(Instant.now()));
+        } else {
+            Files.createDirectories(target.getParent());
+            Files.move(tempFile, target, ATOMIC_MOVE);
+            log.debug("Сохранён новый файл аватара: {}", target);
+        }
+        return target;
+    }
+
+    // переносит в хранилище уже существующий файл (например, из плоской раскладки) жёсткой ссылкой,
+    // так что старый путь продолжает работать, пока на него ссылаются строки avatar
+    public Path link(String hash, Path source) throws IOException {
+        Path target = resolve(hash);
+        if (Files.exists(target)) {
+            Files.setLastModifiedTime(target, FileTime.from(Instant.now()));
+            return target;
+        }
+        Files.createDirectories(target.getParent());
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | IOException e) {
+            log.debug("Жёсткая ссылка для {} не создана ({}), файл копируется", hash, e.getMessage());
+            Path tempFile = createTempFile();
+            try {
+                Files.copy(source, tempFile, REPLACE_EXISTING);
+                Files.move(tempFile, target, ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+        return target;
+    }
+
+    public Path root() {
+        return root;
+    }
+
+    // два уровня каталогов по первым символам хэша: <root>/ab/cd/abcd...
+    public Path resolve(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    @Override
+    public AvatarBlob open(String hash) throws IOException {
+        Path sharded = resolve(hash);
+        // до окончания миграции файл может лежать ещё в плоской раскладке
+        return new FileAvatarBlob(Files.exists(sharded) ? sharded : root.resolve(hash));
+    }
+
+    @Override
+    public boolean exists(String hash) {
+        return Files.exists(resolve(hash)) || Files.exists(root.resolve(hash));
+    }
+
+    @Override
+    public void delete(String hash) throws IOException {
+        // файл мог ещё не переехать из плоской раскладки
+        if (Files.deleteIfExists(resolve(hash)) | Files.deleteIfExists(root.resolve(hash))) {
+            log.debug("Удалён файл аватара без ссылок: {}", hash);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package ru.hogwarts.school.storage;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+
+// файловый кэш с ограничением по размеру: при переполнении удаляются давно не запрошенные файлы,
+// а один и тот же файл заполняет только один запрос, остальные ждут его результата
+@Slf4j
+public class LocalFileCache {
+
+    private static final int OPEN_ATTEMPTS = 3;
+
+    @FunctionalInterface
+    public interface FileWriter {
+        void write(Path target) throws IOException;
+    }
+
+    private final String name;
+    private final Path dir;
+    private final long maxBytes;
+
+    // порядок доступа: первым идёт давно не запрошенный файл
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final Map<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+
+    public LocalFileCache(String name, Path dir, long maxBytes) {
+        this.name = name;
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(Files::isRegularFile)
+                    .sorted(Comparator.comparing(LocalFileCache::lastModified))
+                    .forEach(file -> {
+                        if (file.getFileName().toString().endsWith(".tmp")) {
+                            deleteQuietly(file);
+                        } else {
+                            register(file.getFileName().toString(), size(file));
+                        }
+                    });
+        }
+        log.info("Кэш {}: {} файлов, {} байт", name, entries.size(), totalBytes);
+    }
+
+    // файл открывается под той же блокировкой, под которой кэш вытесняет файлы: между проверкой
+    // и открытием его не удалить, а после открытия вытеснение уже не мешает дочитать его
+    public AvatarBlob open(String key, FileWriter writer) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Path path = get(key, writer);
+            synchronized (this) {
+                if (entries.get(key) != null && Files.exists(path)) {
+                    return new CachedFileBlob(FileChannel.open(path, READ));
+                }
+            }
+            if (attempt == OPEN_ATTEMPTS) {
+                throw new NoSuchFileException(path.toString());
+            }
+            log.debug("Файл {} вытеснен из кэша {} до открытия, заполняем заново", key, name);
+        }
+    }
+
+    private Path get(String key, FileWriter writer) throws IOException {
+        Path path = dir.resolve(key);
+        synchronized (this) {
+            if (entries.get(key) != null && Files.exists(path)) {
+                return path;
+            }
+        }
+
+        CompletableFuture<Path> own = new CompletableFuture<>();
+        CompletableFuture<Path> running = inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            log.debug("Файл {} уже заполняется другим запросом, ожидаем", key);
+            return await(running);
+        }
+        try {
+            Path tempFile = Files.createTempFile(dir, "cache-", ".tmp");
+            try {
+                writer.write(tempFile);
+                Files.move(tempFile, path, ATOMIC_MOVE, REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+            register(key, Files.size(path));
+            log.debug("Файл {} добавлен в кэш {}", key, name);
+            own.complete(path);
+            return path;
+        } catch (IOException | RuntimeException e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    // готовый файл забирается в кэш без копирования, как при заполнении через get
+    public Path put(String key, Path file) throws IOException {
+        Path path = dir.resolve(key);
+        Files.move(file, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        register(key, Files.size(path));
+        return path;
+    }
+
+    public synchronized void evict(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        deleteQuietly(dir.resolve(key));
+    }
+
+    public Path dir() {
+        return dir;
+    }
+
+    private synchronized void register(String key, long size) {
+        Long previous = entries.put(key, size);
+        totalBytes += size - (previous == null ? 0 : previous);
+
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            if (entry.getKey().equals(key)) {
+                continue;
+            }
+            eldest.remove();
+            totalBytes -= entry.getValue();
+            deleteQuietly(dir.resolve(entry.getKey()));
+            log.debug("Файл {} вытеснен из кэша {}", entry.getKey(), name);
+        }
+    }
+
+    private static Path await(CompletableFuture<Path> running) throws IOException {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw e;
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Не удалось удалить файл кэша {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ru.hogwarts.school.storage;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+// оригиналы в S3-совместимом хранилище, общем для всех экземпляров приложения; локальный диск
+// служит ограниченным по размеру кэшем чтения, поэтому частые выгрузки не ходят в хранилище
+@Component
+@ConditionalOnProperty(name = "avatar.store.type", havingValue = "s3")
+@Slf4j
+public class S3AvatarBlobStore implements AvatarBlobStore {
+
+    private final S3ObjectClient client;
+    private final String prefix;
+    private final Path tempDir;
+    private final LocalFileCache cache;
+    private final Duration releaseGrace;
+
+    public S3AvatarBlobStore(@Value("${path.to.avatars.folder}") String avatarDir,
+                             @Value("${avatar.store.s3.endpoint}") String endpoint,
+                             @Value("${avatar.store.s3.bucket}") String bucket,
+                             @Value("${avatar.store.s3.region:us-east-1}") String region,
+                             @Value("${avatar.store.s3.access-key}") String accessKey,
+                             @Value("${avatar.store.s3.secret-key}") String secretKey,
+                             @Value("${avatar.store.s3.prefix:avatars/}") String prefix,
+                             @Value("${avatar.store.s3.timeout-ms:30000}") long timeoutMs,
+                             @Value("${avatar.store.s3.cache.max-bytes:1073741824}") long cacheMaxBytes,
+                             @Value("${avatar.store.s3.release-grace-ms:600000}") long releaseGraceMs) {
+        this.client = new S3ObjectClient(endpoint, bucket, region, accessKey, secretKey, Duration.ofMillis(timeoutMs));
+        this.prefix = prefix;
+        this.tempDir = Path.of(avatarDir, "s3-uploads");
+        this.cache = new LocalFileCache("оригиналов из S3", Path.of(avatarDir, "s3-cache"), cacheMaxBytes);
+        this.releaseGrace = Duration.ofMillis(releaseGraceMs);
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(tempDir);
+        cache.init();
+    }
+
+    @Override
+    public Path createTempFile() throws IOException {
+        return Files.createTempFile(tempDir, "upload-", ".tmp");
+    }
+
+    // принятый файл сразу становится копией в кэше: превью и первая выгрузка обычно идут следом за загрузкой;
+    // возвращаемый путь локален для этого экземпляра и в file_path записывается только для справки
+    @Override
+    public Path put(String hash, Path tempFile) throws IOException {
+        String key = key(hash);
+        // найденный объект не удалит другой экземпляр: AvatarContentGuard.put до этого продлевает паузу
+        // освобождённого содержимого, а удаление идёт под блокировкой той же строки avatar_released_content
+        if (client.head(key) >= 0) {
+            log.debug("Содержимое {} уже есть в объектном хранилище, копия не сохраняется", hash);
+        } else {
+            client.put(key, tempFile, hash);
+            log.debug("Содержимое {} записано в объектное хранилище", hash);
+        }
+        return cache.put(hash, tempFile);
+    }
+
+    @Override
+    public AvatarBlob open(String hash) throws IOException {
+        return cache.open(hash, target -> {
+            log.debug("Содержимого {} нет в локальном кэше, читаем из объектного хранилища", hash);
+            client.get(key(hash), target);
+        });
+    }
+
+    @Override
+    public boolean exists(String hash) throws IOException {
+        return Files.exists(cache.dir().resolve(hash)) || client.head(key(hash)) >= 0;
+    }
+
+    @Override
+    public void delete(String hash) throws IOException {
+        client.delete(key(hash));
+        cache.evict(hash);
+        log.debug("Удалено содержимое без ссылок: {}", hash);
+    }
+
+    @Override
+    public Duration releaseGrace() {
+        return releaseGrace;
+    }
+
+    private String key(String hash) {
+        return prefix + hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + hash;
+    }
+}
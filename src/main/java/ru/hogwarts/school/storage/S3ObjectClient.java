@@ -0,0 +1,147 @@
+package ru.hogwarts.school.storage;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+
+// минимальный клиент S3-совместимого хранилища (AWS S3, MinIO) на HttpClient из JDK:
+// адресация bucket в пути и подпись запросов AWS Signature V4
+class S3ObjectClient {
+
+    private static final String EMPTY_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static final DateTimeFormatter AMZ_DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private final URI endpoint;
+    private final String bucket;
+    private final String region;
+    private final String accessKey;
+    private final String secretKey;
+    private final Duration timeout;
+    private final HttpClient httpClient;
+
+    S3ObjectClient(String endpoint, String bucket, String region, String accessKey, String secretKey,
+                   Duration timeout) {
+        this.endpoint = URI.create(endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint);
+        this.bucket = bucket;
+        this.region = region;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.timeout = timeout;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(timeout)
+                .build();
+    }
+
+    // размер объекта или -1, если его нет
+    long head(String key) throws IOException {
+        HttpResponse<Void> response = send(request("HEAD", key, EMPTY_SHA256)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody()), HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 404) {
+            return -1;
+        }
+        check(response, key);
+        return response.headers().firstValueAsLong("Content-Length").orElse(0);
+    }
+
+    // хэш содержимого и так известен после приёма, поэтому тело подписывается без повторного чтения файла
+    void put(String key, Path file, String sha256) throws IOException {
+        HttpResponse<String> response = send(request("PUT", key, sha256)
+                .PUT(HttpRequest.BodyPublishers.ofFile(file)), HttpResponse.BodyHandlers.ofString());
+        check(response, key);
+    }
+
+    void get(String key, Path target) throws IOException {
+        HttpResponse<Path> response = send(request("GET", key, EMPTY_SHA256).GET(),
+                HttpResponse.BodyHandlers.ofFile(target));
+        if (response.statusCode() == 404) {
+            throw new NoSuchFileException(key);
+        }
+        check(response, key);
+    }
+
+    void delete(String key) throws IOException {
+        HttpResponse<String> response = send(request("DELETE", key, EMPTY_SHA256).DELETE(),
+                HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 404) {
+            check(response, key);
+        }
+    }
+
+    private HttpRequest.Builder request(String method, String key, String payloadHash) {
+        String path = endpoint.getRawPath() + "/" + bucket + "/" + key;
+        String host = endpoint.getPort() == -1 ? endpoint.getHost() : endpoint.getHost() + ":" + endpoint.getPort();
+        ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+        String amzDate = now.format(AMZ_DATE);
+        String scope = now.format(AMZ_DAY) + "/" + region + "/s3/aws4_request";
+
+        String canonicalRequest = method + "\n" + path + "\n\n"
+                + "host:" + host + "\n"
+                + "x-amz-content-sha256:" + payloadHash + "\n"
+                + "x-amz-date:" + amzDate + "\n\n"
+                + "host;x-amz-content-sha256;x-amz-date\n"
+                + payloadHash;
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n" + sha256Hex(canonicalRequest);
+        byte[] signingKey = hmac(hmac(hmac(hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8),
+                now.format(AMZ_DAY)), region), "s3"), "aws4_request");
+        String signature = HexFormat.of().formatHex(hmac(signingKey, stringToSign));
+
+        return HttpRequest.newBuilder(URI.create(endpoint.getScheme() + "://" + host + path))
+                .timeout(timeout)
+                .header("x-amz-content-sha256", payloadHash)
+                .header("x-amz-date", amzDate)
+                .header("Authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope
+                        + ", SignedHeaders=host;x-amz-content-sha256;x-amz-date, Signature=" + signature);
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest.Builder request, HttpResponse.BodyHandler<T> handler)
+            throws IOException {
+        try {
+            return httpClient.send(request.build(), handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Запрос к объектному хранилищу прерван", e);
+        }
+    }
+
+    private static void check(HttpResponse<?> response, String key) throws IOException {
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("Объектное хранилище ответило " + response.statusCode() + " на "
+                    + response.request().method() + " " + key);
+        }
+    }
+
+    private static String sha256Hex(String value) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                    .digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String value) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package ru.hogwarts.school.storage;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.*;
+
+// мелкие оригиналы дописываются в большие файлы-сегменты, в памяти держится индекс hash -> (сегмент, смещение);
+// чтение идёт из отображённого в память сегмента, удаление пишет запись-надгробие,
+// а фоновое уплотнение переносит живые записи из полупустых сегментов и удаляет их
+@Component
+@ConditionalOnProperty(name = "avatar.store.type", havingValue = "segment")
+@Slf4j
+public class SegmentAvatarBlobStore implements AvatarBlobStore {
+
+    private static final int MAGIC = 0x41565452;
+    private static final byte DATA = 1;
+    private static final byte TOMBSTONE = 2;
+    private static final int HASH_LENGTH = 64;
+    // magic, тип, хэш, длина данных
+    private static final int DATA_HEADER = 4 + 1 + HASH_LENGTH + 8;
+    // magic, тип, хэш, сегмент и смещение удалённой записи
+    private static final int TOMBSTONE_SIZE = 4 + 1 + HASH_LENGTH + 4 + 8;
+
+    private record Location(int segment, long offset, long length) {
+    }
+
+    private record Record(byte type, String hash, long start, long end, long dataOffset, long length,
+                          int targetSegment, long targetOffset) {
+    }
+
+    private final Path root;
+    private final Path dir;
+    private final long maxSegmentBytes;
+    private final double compactThreshold;
+
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private Segment active;
+
+    public SegmentAvatarBlobStore(@Value("${path.to.avatars.folder}") String avatarDir,
+                                  @Value("${avatar.store.segment.max-bytes:268435456}") long maxSegmentBytes,
+                                  @Value("${avatar.store.segment.compact-threshold:0.5}") double compactThreshold) {
+        if (maxSegmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Сегмент не может быть больше 2 ГБ: отображение в память ограничено int");
+        }
+        this.root = Path.of(avatarDir);
+        this.dir = root.resolve("segments");
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.compactThreshold = compactThreshold;
+    }
+
+    @PostConstruct
+    public synchronized void init() throws IOException {
+        Files.createDirectories(dir);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(file -> file.getFileName().toString().endsWith(".seg"))
+                    .sorted(Comparator.comparing(Path::getFileName))
+                    .toList();
+        }
+        try (Stream<Path> list = Files.list(dir)) {
+            for (Path temp : (Iterable<Path>) list.filter(f -> f.getFileName().toString().endsWith(".tmp"))::iterator) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            Segment segment = new Segment(Integer.parseInt(file.getFileName().toString().replace(".seg", "")), file);
+            segments.put(segment.id, segment);
+            replay(segment, i == files.size() - 1);
+            active = segment;
+        }
+        if (active == null) {
+            active = createSegment(0);
+        }
+        log.info("Сегментное хранилище аватаров: {} сегментов, {} записей", segments.size(), index.size());
+    }
+
+    @Override
+    public Path createTempFile() throws IOException {
+        return Files.createTempFile(dir, "upload-", ".tmp");
+    }
+
+    @Override
+    public synchronized Path put(String hash, Path tempFile) throws IOException {
+        Location existing = index.get(hash);
+        if (existing != null) {
+            log.debug("Содержимое {} уже есть в сегменте {}, копия не сохраняется", hash, existing.segment());
+            Files.delete(tempFile);
+            return segments.get(existing.segment()).path;
+        }
+        try (FileChannel source = FileChannel.open(tempFile, READ)) {
+            Location location = append(hash, source, 0, source.size());
+            log.debug("Содержимое {} записано в сегмент {} по смещению {}", hash, location.segment(), location.offset());
+            Files.delete(tempFile);
+            return segments.get(location.segment()).path;
+        }
+    }
+
+    @Override
+    public AvatarBlob open(String hash) throws IOException {
+        // запись могла переехать при уплотнении между чтением индекса и обращением к сегменту
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Location location = index.get(hash);
+            if (location == null) {
+                break;
+            }
+            Segment segment = segments.get(location.segment());
+            if (segment != null) {
+                return new SegmentBlob(segment.slice(location.offset(), location.length()));
+            }
+        }
+        // содержимое, записанное до переключения на сегменты, читается из файловой раскладки
+        Path sharded = root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+        return new FileAvatarBlob(Files.exists(sharded) ? sharded : root.resolve(hash));
+    }
+
+    @Override
+    public boolean exists(String hash) {
+        return index.containsKey(hash)
+                || Files.exists(root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash))
+                || Files.exists(root.resolve(hash));
+    }
+
+    @Override
+    public synchronized void delete(String hash) throws IOException {
+        Location location = index.remove(hash);
+        if (location == null) {
+            Files.deleteIfExists(root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash));
+            Files.deleteIfExists(root.resolve(hash));
+            return;
+        }
+        writeTombstone(hash, location.segment(), location.offset());
+        segments.get(location.segment()).live.addAndGet(-location.length());
+        log.debug("Содержимое {} помечено удалённым в сегменте {}", hash, location.segment());
+    }
+
+    @Scheduled(fixedDelayString = "${avatar.store.segment.compact-interval-ms:600000}",
+            initialDelayString = "${avatar.store.segment.compact-interval-ms:600000}")
+    public void compact() {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                long size = segment.size();
+                if (segment != active && (size == 0 || (double) segment.live.get() / size < compactThreshold)) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        candidates.sort(Comparator.comparingInt(segment -> segment.id));
+        for (Segment segment : candidates) {
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                log.error("Ошибка уплотнения сегмента {}", segment.path, e);
+            }
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        long size = segment.size();
+        long moved = 0;
+        long position = 0;
+        while (position < size) {
+            Record record = readRecord(segment.channel, position, size);
+            if (record == null) {
+                break;
+            }
+            synchronized (this) {
+                if (record.type() == DATA) {
+                    Location current = index.get(record.hash());
+                    if (current != null && current.segment() == segment.id && current.offset() == record.dataOffset()) {
+                        append(record.hash(), segment.channel, record.dataOffset(), record.length());
+                        segment.live.addAndGet(-record.length());
+                        moved += record.length();
+                    }
+                } else if (record.targetSegment() != segment.id && segments.containsKey(record.targetSegment())) {
+                    // надгробие нужно, пока жив сегмент с удалённой записью, иначе она воскреснет при перезапуске
+                    writeTombstone(record.hash(), record.targetSegment(), record.targetOffset());
+                }
+            }
+            position = record.end();
+        }
+        synchronized (this) {
+            segments.remove(segment.id);
+            // open() мог уже взять сегмент из карты: отображение остаётся читаемым и после закрытия канала
+            segment.seal();
+            Files.delete(segment.path);
+        }
+        log.info("Сегмент {} уплотнён: перенесено {} байт, освобождено {} байт", segment.path, moved, size - moved);
+    }
+
+    private Location append(String hash, FileChannel source, long sourceOffset, long length) throws IOException {
+        Segment segment = activeFor(DATA_HEADER + length);
+        long start = segment.channel.size();
+        ByteBuffer header = ByteBuffer.allocate(DATA_HEADER)
+                .putInt(MAGIC)
+                .put(DATA)
+                .put(hash.getBytes(StandardCharsets.US_ASCII))
+                .putLong(length)
+                .flip();
+        writeFully(segment.channel, header, start);
+        long dataOffset = start + DATA_HEADER;
+        long copied = 0;
+        source.position(sourceOffset);
+        while (copied < length) {
+            long transferred = segment.channel.transferFrom(source, dataOffset + copied, length - copied);
+            if (transferred <= 0) {
+                throw new IOException("Не удалось дописать содержимое " + hash + " в сегмент " + segment.path);
+            }
+            copied += transferred;
+        }
+        segment.channel.force(false);
+
+        Location location = new Location(segment.id, dataOffset, length);
+        Location previous = index.put(hash, location);
+        if (previous != null) {
+            segments.get(previous.segment()).live.addAndGet(-previous.length());
+        }
+        segment.live.addAndGet(length);
+        return location;
+    }
+
+    private void writeTombstone(String hash, int targetSegment, long targetOffset) throws IOException {
+        Segment segment = activeFor(TOMBSTONE_SIZE);
+        ByteBuffer tombstone = ByteBuffer.allocate(TOMBSTONE_SIZE)
+                .putInt(MAGIC)
+                .put(TOMBSTONE)
+                .put(hash.getBytes(StandardCharsets.US_ASCII))
+                .putInt(targetSegment)
+                .putLong(targetOffset)
+                .flip();
+        writeFully(segment.channel, tombstone, segment.channel.size());
+        segment.channel.force(false);
+    }
+
+    private Segment activeFor(long bytes) throws IOException {
+        long size = active.size();
+        if (size > 0 && size + bytes > maxSegmentBytes) {
+            active = createSegment(active.id + 1);
+            log.info("Начат новый сегмент {}", active.path);
+        }
+        return active;
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Segment segment = new Segment(id, dir.resolve(String.format("%08d.seg", id)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    // восстанавливает индекс по записям сегмента; недописанный хвост после сбоя бывает только у последнего
+    // сегмента и отрезается, а битая запись в закрытом сегменте - повреждение, которое обрезка превратила бы
+    // в молчаливую потерю всех записей за ней
+    private void replay(Segment segment, boolean last) throws IOException {
+        long size = segment.size();
+        long position = 0;
+        while (position < size) {
+            Record record = readRecord(segment.channel, position, size);
+            if (record == null) {
+                if (!last) {
+                    throw new IOException("Сегмент " + segment.path + " повреждён по смещению " + position
+                            + ", а дописывался не последним: нужна ручная проверка");
+                }
+                log.warn("Сегмент {} обрезан до {} байт: повреждённая или недописанная запись", segment.path, position);
+                segment.channel.truncate(position);
+                break;
+            }
+            if (record.type() == DATA) {
+                Location previous = index.put(record.hash(), new Location(segment.id, record.dataOffset(), record.length()));
+                if (previous != null) {
+                    segments.get(previous.segment()).live.addAndGet(-previous.length());
+                }
+                segment.live.addAndGet(record.length());
+            } else {
+                Location current = index.get(record.hash());
+                if (current != null && current.segment() == record.targetSegment()
+                        && current.offset() == record.targetOffset()) {
+                    index.remove(record.hash());
+                    segments.get(current.segment()).live.addAndGet(-current.length());
+                }
+            }
+            position = record.end();
+        }
+    }
+
+    private static Record readRecord(FileChannel channel, long position, long size) throws IOException {
+        if (position + DATA_HEADER > size) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(TOMBSTONE_SIZE);
+        header.limit((int) Math.min(TOMBSTONE_SIZE, size - position));
+        while (header.hasRemaining()) {
+            if (channel.read(header, position + header.position()) < 0) {
+                return null;
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            return null;
+        }
+        byte type = header.get();
+        byte[] hash = new byte[HASH_LENGTH];
+        header.get(hash);
+        String hashString = new String(hash, StandardCharsets.US_ASCII);
+        if (type == DATA) {
+            long length = header.getLong();
+            long dataOffset = position + DATA_HEADER;
+            if (length < 0 || dataOffset + length > size) {
+                return null;
+            }
+            return new Record(DATA, hashString, position, dataOffset + length, dataOffset, length, -1, -1);
+        }
+        if (type == TOMBSTONE && header.remaining() >= 12) {
+            return new Record(TOMBSTONE, hashString, position, position + TOMBSTONE_SIZE, -1, 0,
+                    header.getInt(), header.getLong());
+        }
+        return null;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        segments.values().forEach(Segment::close);
+    }
+
+    private static final class Segment {
+
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong live = new AtomicLong();
+        private MappedByteBuffer mapped;
+
+        private Segment(int id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, CREATE, READ, WRITE);
+        }
+
+        private long size() {
+            try {
+                return channel.size();
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+
+        // активный сегмент растёт, поэтому отображение расширяется, когда запрошена ещё не отображённая часть
+        private synchronized ByteBuffer slice(long offset, long length) throws IOException {
+            if (mapped == null || mapped.capacity() < offset + length) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            return mapped.slice((int) offset, (int) length);
+        }
+
+        // закрытый сегмент больше не растёт: всё, что прочтут из него позже, берётся из готового отображения
+        private synchronized void seal() throws IOException {
+            long size = channel.size();
+            if (mapped == null || mapped.capacity() < size) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            close();
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Не удалось закрыть сегмент {}", path, e);
+            }
+        }
+    }
+
+    private record SegmentBlob(ByteBuffer data) implements AvatarBlob {
+
+        @Override
+        public long size() {
+            return data.remaining();
+        }
+
+        @Override
+        public InputStream openStream() {
+            ByteBuffer buffer = data.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) {
+                    if (!buffer.hasRemaining()) {
+                        return -1;
+                    }
+                    int count = Math.min(length, buffer.remaining());
+                    buffer.get(bytes, offset, count);
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            ByteBuffer part = data.slice((int) position, (int) count);
+            while (part.hasRemaining()) {
+                target.write(part);
+            }
+        }
+
+        @Override
+        public Path file() {
+            return null;
+        }
+    }
+}
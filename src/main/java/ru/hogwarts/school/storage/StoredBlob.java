@@ -0,0 +1,6 @@
+package ru.hogwarts.school.storage;
+
+import java.nio.file.Path;
+
+public record StoredBlob(String hash, Path path, long size, String mediaType) {
+}
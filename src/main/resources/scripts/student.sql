@@ -19,4 +19,75 @@ CREATE TABLE IF NOT EXISTS faculty (
     id      SERIAL PRIMARY KEY,
     color   TEXT NOT NULL,
     name    TEXT NOT NULL
-);
\ No newline at end of file
+);
+-- changeset AntonS:5
+CREATE INDEX IF NOT EXISTS name_upper_index ON student (upper(name) text_pattern_ops);
+
+-- changeset AntonS:6
+CREATE TABLE IF NOT EXISTS avatar_released_content (
+    content_hash VARCHAR(64) PRIMARY KEY,
+    released_at  TIMESTAMP WITH TIME ZONE NOT NULL
+);
+CREATE INDEX IF NOT EXISTS avatar_released_content_released_at_idx ON avatar_released_content (released_at);
+
+-- changeset AntonS:7
+-- preconditions onFail:MARK_RAN
+-- precondition-sql-check expectedResult:1 SELECT count(*) FROM information_schema.tables WHERE table_name = 'avatar'
+-- precondition-sql-check expectedResult:0 SELECT count(*) FROM information_schema.table_constraints WHERE constraint_name = 'avatar_student_id_key'
+DELETE FROM avatar a USING avatar b WHERE a.student_id = b.student_id AND a.id < b.id;
+ALTER TABLE avatar ADD CONSTRAINT avatar_student_id_key UNIQUE (student_id);
+
+-- changeset AntonS:8
+-- на новой базе таблица создаётся здесь, а не Hibernate, уже с уникальным student_id
+CREATE TABLE IF NOT EXISTS avatar (
+    id              BIGSERIAL PRIMARY KEY,
+    file_path       VARCHAR(255),
+    file_size       BIGINT NOT NULL,
+    media_type      VARCHAR(255),
+    content_hash    VARCHAR(64),
+    perceptual_hash BIGINT,
+    updated_at      TIMESTAMP(6) WITH TIME ZONE,
+    preview_status  VARCHAR(255),
+    student_id      BIGINT REFERENCES student (id),
+    CONSTRAINT avatar_student_id_key UNIQUE (student_id)
+);
+
+-- changeset AntonS:9
+-- столбцы хранилища по хэшу содержимого, перцептивного хэша и фонового превью для базы со старой таблицей
+ALTER TABLE avatar ADD COLUMN IF NOT EXISTS content_hash VARCHAR(64);
+ALTER TABLE avatar ADD COLUMN IF NOT EXISTS perceptual_hash BIGINT;
+ALTER TABLE avatar ADD COLUMN IF NOT EXISTS updated_at TIMESTAMP(6) WITH TIME ZONE;
+ALTER TABLE avatar ADD COLUMN IF NOT EXISTS preview_status VARCHAR(255);
+CREATE INDEX IF NOT EXISTS avatar_content_hash_idx ON avatar (content_hash);
+-- строки старого формата без хэша получают статус при переносе в хранилище (AvatarStoreMigration)
+UPDATE avatar SET preview_status = 'PENDING' WHERE preview_status IS NULL AND content_hash IS NOT NULL;
+
+-- changeset AntonS:10
+-- превью одно на содержимое, а не на строку аватара
+CREATE TABLE IF NOT EXISTS avatar_preview (
+    content_hash VARCHAR(64) PRIMARY KEY,
+    media_type   VARCHAR(255),
+    data         BYTEA
+);
+
+-- changeset AntonS:11
+-- preconditions onFail:MARK_RAN
+-- precondition-sql-check expectedResult:1 SELECT count(*) FROM information_schema.columns WHERE table_name = 'avatar' AND column_name = 'data' AND data_type = 'oid'
+-- старое превью в avatar.data лежало большим объектом; удаление столбца оставило бы его в pg_largeobject
+SELECT lo_unlink(data) FROM avatar WHERE data IS NOT NULL AND data IN (SELECT oid FROM pg_largeobject_metadata);
+
+-- changeset AntonS:12
+-- превью из avatar.data не переносится: у старых строк ещё нет хэша содержимого, а после переноса
+-- в хранилище превью строится заново по статусу PENDING
+ALTER TABLE avatar DROP COLUMN IF EXISTS data;
+
+-- changeset AntonS:13
+-- preconditions onFail:MARK_RAN
+-- precondition-sql-check expectedResult:1 SELECT count(*) FROM information_schema.columns WHERE table_name = 'avatar_preview' AND column_name = 'data' AND data_type = 'oid'
+-- таблица, созданная Hibernate по @Lob, хранила превью большими объектами: содержимое переносится в bytea,
+-- а сами объекты удаляются из pg_largeobject
+ALTER TABLE avatar_preview ADD COLUMN data_bytes BYTEA;
+UPDATE avatar_preview SET data_bytes = lo_get(data) WHERE data IN (SELECT oid FROM pg_largeobject_metadata);
+SELECT lo_unlink(data) FROM avatar_preview WHERE data IN (SELECT oid FROM pg_largeobject_metadata);
+ALTER TABLE avatar_preview DROP COLUMN data;
+ALTER TABLE avatar_preview RENAME COLUMN data_bytes TO data;
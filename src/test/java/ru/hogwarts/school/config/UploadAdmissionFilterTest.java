@@ -0,0 +1,101 @@
+package ru.hogwarts.school.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.FilterChain;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UploadAdmissionFilterTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    // одна загрузка одновременно, без ожидания очереди
+    private final UploadAdmissionFilter filter = new UploadAdmissionFilter(1, 1024 * 1024, 10_000, 100_000,
+            0, 7, meterRegistry);
+
+    @Test
+    @DisplayName("Загрузка сверх предела получает 429 с Retry-After, пока первая держит место")
+    void busyUploadIsRejectedTest() throws Exception {
+        AtomicReference<MockHttpServletResponse> rejected = new AtomicReference<>();
+        AtomicReference<Double> activeDuringUpload = new AtomicReference<>();
+        AtomicReference<Double> bytesDuringUpload = new AtomicReference<>();
+
+        MockHttpServletResponse first = new MockHttpServletResponse();
+        filter.doFilter(upload("/avatar/1/avatar", 2048), first, (request, response) -> {
+            activeDuringUpload.set(meterRegistry.get("avatar.upload.gate.active").gauge().value());
+            bytesDuringUpload.set(meterRegistry.get("avatar.upload.gate.bytes").gauge().value());
+            MockHttpServletResponse second = new MockHttpServletResponse();
+            filter.doFilter(upload("/avatar/2/avatar", 2048), second, failingChain());
+            rejected.set(second);
+        });
+
+        assertThat(first.getStatus()).isEqualTo(200);
+        assertThat(rejected.get().getStatus()).isEqualTo(429);
+        assertThat(rejected.get().getHeader(HttpHeaders.RETRY_AFTER)).isEqualTo("7");
+        assertThat(activeDuringUpload.get()).isEqualTo(1.0);
+        assertThat(bytesDuringUpload.get()).isEqualTo(2048.0);
+        assertThat(meterRegistry.get("avatar.upload.gate.rejected").tag("reason", "busy").counter().count())
+                .isEqualTo(1.0);
+        // после ответа место и байты возвращены
+        assertThat(meterRegistry.get("avatar.upload.gate.active").gauge().value()).isZero();
+        assertThat(meterRegistry.get("avatar.upload.gate.bytes").gauge().value()).isZero();
+    }
+
+    @Test
+    @DisplayName("Управляющие POST без тела проходят, даже когда все места заняты")
+    void controlRequestsBypassGateTest() throws Exception {
+        MockHttpServletResponse first = new MockHttpServletResponse();
+        filter.doFilter(upload("/avatar/1/uploads/abc", 2048, "PATCH"), first, (request, response) -> {
+            for (String uri : new String[]{"/avatar/previews/regeneration", "/avatar/1/uploads",
+                    "/avatar/1/uploads/abc/complete"}) {
+                MockHttpServletResponse control = new MockHttpServletResponse();
+                filter.doFilter(new MockHttpServletRequest("POST", uri), control, (req, res) -> {
+                });
+                assertThat(control.getStatus()).as(uri).isEqualTo(200);
+            }
+            MockHttpServletResponse importRequest = new MockHttpServletResponse();
+            filter.doFilter(upload("/avatar/import", 2048), importRequest, failingChain());
+            assertThat(importRequest.getStatus()).isEqualTo(429);
+        });
+
+        assertThat(meterRegistry.get("avatar.upload.gate.rejected").tag("reason", "busy").counter().count())
+                .isEqualTo(1.0);
+    }
+
+    @Test
+    @DisplayName("Загрузка с заявленным размером больше лимита получает 413 и учитывается в метрике")
+    void tooLargeUploadIsRejectedTest() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.doFilter(upload("/avatar/1/avatar", 20_000), response, failingChain());
+
+        assertThat(response.getStatus()).isEqualTo(413);
+        assertThat(meterRegistry.get("avatar.upload.gate.rejected").tag("reason", "too_large").counter().count())
+                .isEqualTo(1.0);
+        assertThat(meterRegistry.get("avatar.upload.gate.rejected").tag("reason", "busy").counter().count())
+                .isZero();
+    }
+
+    private static MockHttpServletRequest upload(String uri, int size) {
+        return upload(uri, size, "POST");
+    }
+
+    private static MockHttpServletRequest upload(String uri, int size, String method) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, uri);
+        request.setContent(new byte[size]);
+        return request;
+    }
+
+    private static FilterChain failingChain() {
+        return (request, response) -> {
+            throw new AssertionError("Запрос не должен был пройти фильтр");
+        };
+    }
+}
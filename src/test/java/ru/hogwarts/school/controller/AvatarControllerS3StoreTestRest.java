@@ -0,0 +1,344 @@
+package ru.hogwarts.school.controller;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.*;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.PreviewStatus;
+import ru.hogwarts.school.model.ReleasedContent;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.ReleasedContentRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+import ru.hogwarts.school.service.AvatarContentGuard;
+import ru.hogwarts.school.storage.AvatarBlobStore;
+import ru.hogwarts.school.storage.S3AvatarBlobStore;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// оригиналы уходят в поднятую в тесте заглушку S3; кэш в один байт держит только последний файл,
+// поэтому чтение всего остального идёт через хранилище
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "avatar.store.type=s3",
+        "avatar.store.s3.bucket=avatars",
+        "avatar.store.s3.access-key=test-key",
+        "avatar.store.s3.secret-key=test-secret",
+        "avatar.store.s3.cache.max-bytes=1",
+        "spring.datasource.url=jdbc:h2:mem:s3db;DB_CLOSE_DELAY=-1",
+        "path.to.avatars.folder=${java.io.tmpdir}/hogwarts-avatars-s3"
+})
+@ActiveProfiles("test")
+public class AvatarControllerS3StoreTestRest {
+
+    private static final FakeS3 S3 = FakeS3.start();
+
+    @DynamicPropertySource
+    static void s3Properties(DynamicPropertyRegistry registry) {
+        registry.add("avatar.store.s3.endpoint", S3::endpoint);
+    }
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private TestRestTemplate testRestTemplate;
+
+    @Autowired
+    private AvatarRepository avatarRepository;
+
+    @Autowired
+    private AvatarPreviewRepository avatarPreviewRepository;
+
+    @Autowired
+    private StudentRepository studentRepository;
+
+    @Autowired
+    private AvatarBlobStore avatarBlobStore;
+
+    @Autowired
+    private ReleasedContentRepository releasedContentRepository;
+
+    @Autowired
+    private AvatarContentGuard avatarContentGuard;
+
+    @AfterAll
+    static void stopS3() {
+        S3.server.stop(0);
+    }
+
+    @BeforeEach
+    @AfterEach
+    void cleanBd() {
+        avatarRepository.deleteAll();
+        avatarPreviewRepository.deleteAll();
+        releasedContentRepository.deleteAll();
+        studentRepository.deleteAll();
+    }
+
+    @Test
+    @DisplayName("POST /avatar/{id}/avatar - оригинал сохраняется в объектном хранилище")
+    void uploadToObjectStoreTest() throws IOException {
+        Student student = studentRepository.save(new Student(null, "Луна", 14));
+        byte[] image = createImage(Color.PINK);
+
+        assertThat(upload(student.getId(), image).getStatusCode()).isEqualTo(HttpStatus.OK);
+
+        assertThat(avatarBlobStore).isInstanceOf(S3AvatarBlobStore.class);
+        Avatar avatar = avatarRepository.findByStudentId(student.getId()).orElseThrow();
+        String hash = avatar.getContentHash();
+        assertThat(S3.objects.get("/avatars/avatars/" + hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + hash))
+                .isEqualTo(image);
+        assertThat(avatarBlobStore.exists(hash)).isTrue();
+    }
+
+    @Test
+    @DisplayName("GET /avatar/{id}/avatar - вытесненный из локального кэша оригинал читается из хранилища")
+    void readThroughCacheTest() throws Exception {
+        Student first = studentRepository.save(new Student(null, "Гарри", 11));
+        Student second = studentRepository.save(new Student(null, "Рон", 11));
+        byte[] firstImage = createImage(Color.YELLOW);
+        upload(first.getId(), firstImage);
+        byte[] secondImage = createImage(Color.CYAN);
+        upload(second.getId(), secondImage);
+        awaitPreview(first.getId());
+        awaitPreview(second.getId());
+        // фоновое превью могло вернуть в кэш первый файл, чтение второго снова вытесняет его
+        assertThat(download(second.getId())).isEqualTo(secondImage);
+
+        int gets = S3.gets.get();
+        assertThat(download(first.getId())).isEqualTo(firstImage);
+        assertThat(S3.gets.get()).isEqualTo(gets + 1);
+        // повторное чтение того же файла обслуживает локальный кэш
+        assertThat(download(first.getId())).isEqualTo(firstImage);
+        assertThat(S3.gets.get()).isEqualTo(gets + 1);
+    }
+
+    @Test
+    @DisplayName("GET /avatar/{id}/avatar?w= - готовый вариант отдаётся без чтения оригинала из хранилища")
+    void cachedVariantSkipsOriginalTest() throws Exception {
+        Student first = studentRepository.save(new Student(null, "Невилл", 11));
+        Student second = studentRepository.save(new Student(null, "Дин", 11));
+        upload(first.getId(), createImage(Color.GREEN));
+        upload(second.getId(), createImage(Color.BLUE));
+        awaitPreview(first.getId());
+        awaitPreview(second.getId());
+        byte[] variant = download(first.getId(), "?w=64");
+        // оригинал первого вытесняется из локального кэша, вариант остаётся в своём
+        download(second.getId(), "");
+
+        int gets = S3.gets.get();
+        assertThat(download(first.getId(), "?w=64")).isEqualTo(variant);
+        assertThat(S3.gets.get()).isEqualTo(gets);
+    }
+
+    @Test
+    @DisplayName("POST /avatar/{id}/avatar - заменённый оригинал удаляется из хранилища после паузы")
+    void replaceDeletesObjectTest() throws IOException {
+        Student student = studentRepository.save(new Student(null, "Гермиона", 11));
+        upload(student.getId(), createImage(Color.LIGHT_GRAY));
+        String oldHash = avatarRepository.findByStudentId(student.getId()).orElseThrow().getContentHash();
+        byte[] replacement = createImage(Color.DARK_GRAY);
+
+        upload(student.getId(), replacement);
+
+        // до конца паузы содержимое только помечено освобождённым
+        assertThat(releasedContentRepository.existsById(oldHash)).isTrue();
+        avatarContentGuard.sweepReleased();
+        assertThat(avatarBlobStore.exists(oldHash)).isTrue();
+
+        expireRelease(oldHash);
+        avatarContentGuard.sweepReleased();
+
+        assertThat(avatarBlobStore.exists(oldHash)).isFalse();
+        assertThat(releasedContentRepository.existsById(oldHash)).isFalse();
+        assertThat(download(student.getId())).isEqualTo(replacement);
+    }
+
+    @Test
+    @DisplayName("POST /avatar/{id}/avatar - повторная загрузка освобождённого содержимого отменяет его удаление")
+    void reuploadKeepsReleasedObjectTest() throws IOException {
+        Student first = studentRepository.save(new Student(null, "Фред", 13));
+        Student second = studentRepository.save(new Student(null, "Джордж", 13));
+        byte[] image = createImage(Color.ORANGE);
+        upload(first.getId(), image);
+        String hash = avatarRepository.findByStudentId(first.getId()).orElseThrow().getContentHash();
+        upload(first.getId(), createImage(Color.BLUE));
+        expireRelease(hash);
+
+        // другой экземпляр уже проверял ссылки, но загрузка того же содержимого продлевает паузу
+        upload(second.getId(), image);
+        assertThat(releasedContentRepository.findById(hash).orElseThrow().getReleasedAt())
+                .isAfter(Instant.now().minusSeconds(60));
+        avatarContentGuard.sweepReleased();
+        assertThat(avatarBlobStore.exists(hash)).isTrue();
+
+        expireRelease(hash);
+        avatarContentGuard.sweepReleased();
+
+        assertThat(releasedContentRepository.existsById(hash)).isFalse();
+        assertThat(download(second.getId())).isEqualTo(image);
+    }
+
+    private void expireRelease(String hash) {
+        ReleasedContent released = releasedContentRepository.findById(hash).orElseThrow();
+        released.setReleasedAt(Instant.now().minus(Duration.ofDays(1)));
+        releasedContentRepository.save(released);
+    }
+
+    private void awaitPreview(Long studentId) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if (avatarRepository.findByStudentId(studentId).orElseThrow().getPreviewStatus() != PreviewStatus.PENDING) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Превью для студента " + studentId + " не создано");
+    }
+
+    private byte[] download(Long studentId) {
+        return download(studentId, "");
+    }
+
+    private byte[] download(Long studentId, String query) {
+        ResponseEntity<byte[]> response = testRestTemplate.getForEntity(
+                getAddress() + "/" + studentId + "/avatar" + query, byte[].class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        return response.getBody();
+    }
+
+    private ResponseEntity<String> upload(Long studentId, byte[] image) {
+        MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
+        body.add("avatar", new ByteArrayResource(image) {
+            @Override
+            public String getFilename() {
+                return "avatar.png";
+            }
+        });
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        return testRestTemplate.postForEntity(getAddress() + "/" + studentId + "/avatar",
+                new HttpEntity<>(body, headers), String.class);
+    }
+
+    private byte[] createImage(Color color) throws IOException {
+        BufferedImage image = new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, 200, 150);
+        graphics.dispose();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", baos);
+        return baos.toByteArray();
+    }
+
+    private String getAddress() {
+        return "http://localhost:" + port + "/avatar";
+    }
+
+    // объекты в памяти по пути /<bucket>/<key>; запрос без подписи V4 или с телом,
+    // не совпадающим с заявленным x-amz-content-sha256, отклоняется, как это сделал бы MinIO
+    private record FakeS3(HttpServer server, Map<String, byte[]> objects, AtomicInteger gets) {
+
+        static FakeS3 start() {
+            try {
+                HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+                FakeS3 s3 = new FakeS3(server, new ConcurrentHashMap<>(), new AtomicInteger());
+                server.createContext("/", s3::handle);
+                server.start();
+                return s3;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        String endpoint() {
+            return "http://localhost:" + server.getAddress().getPort();
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            try (exchange; InputStream in = exchange.getRequestBody()) {
+                String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+                if (authorization == null || !authorization.startsWith("AWS4-HMAC-SHA256 Credential=test-key/")) {
+                    exchange.sendResponseHeaders(403, -1);
+                    return;
+                }
+                String key = exchange.getRequestURI().getPath();
+                byte[] object = objects.get(key);
+                switch (exchange.getRequestMethod()) {
+                    case "PUT" -> {
+                        byte[] body = in.readAllBytes();
+                        if (!sha256(body).equals(exchange.getRequestHeaders().getFirst("x-amz-content-sha256"))) {
+                            exchange.sendResponseHeaders(400, -1);
+                            return;
+                        }
+                        objects.put(key, body);
+                        exchange.sendResponseHeaders(200, -1);
+                    }
+                    case "HEAD" -> {
+                        if (object != null) {
+                            exchange.getResponseHeaders().set("Content-Length", Integer.toString(object.length));
+                        }
+                        exchange.sendResponseHeaders(object == null ? 404 : 200, -1);
+                    }
+                    case "GET" -> {
+                        gets.incrementAndGet();
+                        if (object == null) {
+                            exchange.sendResponseHeaders(404, -1);
+                            return;
+                        }
+                        exchange.sendResponseHeaders(200, object.length);
+                        try (OutputStream out = exchange.getResponseBody()) {
+                            out.write(object);
+                        }
+                    }
+                    case "DELETE" -> {
+                        objects.remove(key);
+                        exchange.sendResponseHeaders(204, -1);
+                    }
+                    default -> exchange.sendResponseHeaders(405, -1);
+                }
+            }
+        }
+
+        private static String sha256(byte[] data) {
+            try {
+                return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
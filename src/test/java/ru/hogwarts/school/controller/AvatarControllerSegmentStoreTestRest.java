@@ -0,0 +1,222 @@
+package ru.hogwarts.school.controller;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.*;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+import ru.hogwarts.school.storage.SegmentAvatarBlobStore;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+// каждая запись попадает в отдельный сегмент, чтобы уплотнение было видно по файлам
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "avatar.store.type=segment",
+        "avatar.store.segment.max-bytes=1",
+        "spring.datasource.url=jdbc:h2:mem:segmentdb;DB_CLOSE_DELAY=-1",
+        "path.to.avatars.folder=${java.io.tmpdir}/hogwarts-avatars-segment"
+})
+@ActiveProfiles("test")
+public class AvatarControllerSegmentStoreTestRest {
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private TestRestTemplate testRestTemplate;
+
+    @Autowired
+    private AvatarRepository avatarRepository;
+
+    @Autowired
+    private AvatarPreviewRepository avatarPreviewRepository;
+
+    @Autowired
+    private StudentRepository studentRepository;
+
+    @Autowired
+    private SegmentAvatarBlobStore segmentAvatarBlobStore;
+
+    @BeforeEach
+    @AfterEach
+    void cleanBd() {
+        avatarRepository.deleteAll();
+        avatarPreviewRepository.deleteAll();
+        studentRepository.deleteAll();
+    }
+
+    @Test
+    @DisplayName("GET /avatar/{id}/avatar - оригинал и диапазон читаются из сегмента")
+    void downloadFromSegmentTest() throws IOException {
+        Student student = studentRepository.save(new Student(null, "Полумна", 14));
+        byte[] image = createImage(Color.MAGENTA);
+
+        assertThat(upload(student.getId(), image).getStatusCode()).isEqualTo(HttpStatus.OK);
+
+        Avatar avatar = avatarRepository.findByStudentId(student.getId()).orElseThrow();
+        assertThat(avatar.getFilePath()).endsWith(".seg");
+
+        ResponseEntity<byte[]> full = testRestTemplate.getForEntity(
+                getAddress() + "/" + student.getId() + "/avatar", byte[].class);
+        assertThat(full.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(full.getBody()).isEqualTo(image);
+
+        HttpHeaders range = new HttpHeaders();
+        range.setRange(List.of(HttpRange.createByteRange(10, 19)));
+        ResponseEntity<byte[]> partial = testRestTemplate.exchange(getAddress() + "/" + student.getId() + "/avatar",
+                HttpMethod.GET, new HttpEntity<>(range), byte[].class);
+        assertThat(partial.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+        assertThat(partial.getBody()).isEqualTo(Arrays.copyOfRange(image, 10, 20));
+
+        ResponseEntity<byte[]> variant = testRestTemplate.getForEntity(
+                getAddress() + "/" + student.getId() + "/avatar?w=48", byte[].class);
+        assertThat(variant.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(ImageIO.read(new ByteArrayInputStream(variant.getBody())).getWidth()).isEqualTo(48);
+    }
+
+    @Test
+    @DisplayName("Уплотнение удаляет сегменты, в которых не осталось живых записей")
+    void compactionReclaimsReplacedContentTest() throws IOException {
+        Student student = studentRepository.save(new Student(null, "Невилл", 14));
+        byte[] replacement = createImage(Color.ORANGE);
+
+        upload(student.getId(), createImage(Color.GREEN));
+        Path oldSegment = Path.of(avatarRepository.findByStudentId(student.getId()).orElseThrow().getFilePath());
+        upload(student.getId(), replacement);
+        Path newSegment = Path.of(avatarRepository.findByStudentId(student.getId()).orElseThrow().getFilePath());
+        assertThat(newSegment).isNotEqualTo(oldSegment);
+        assertThat(Files.exists(oldSegment)).isTrue();
+
+        segmentAvatarBlobStore.compact();
+
+        assertThat(Files.exists(oldSegment)).isFalse();
+        assertThat(Files.exists(newSegment)).isTrue();
+        ResponseEntity<byte[]> response = testRestTemplate.getForEntity(
+                getAddress() + "/" + student.getId() + "/avatar", byte[].class);
+        assertThat(response.getBody()).isEqualTo(replacement);
+    }
+
+    @Test
+    @DisplayName("Перезапуск восстанавливает индекс по сегментам, учитывает надгробия и отрезает недописанный хвост")
+    void replayAfterRestartTest() throws IOException {
+        Path dir = Files.createTempDirectory("hogwarts-segments-replay");
+        String kept = "a".repeat(64);
+        String deleted = "b".repeat(64);
+        byte[] keptContent = createImage(Color.BLUE);
+
+        SegmentAvatarBlobStore store = new SegmentAvatarBlobStore(dir.toString(), 1, 0.5);
+        store.init();
+        store.put(kept, write(store, keptContent));
+        store.put(deleted, write(store, createImage(Color.RED)));
+        store.delete(deleted);
+        store.close();
+
+        // запись, оборванная сбоем посреди заголовка в последнем сегменте
+        Path last = segmentFiles(dir).get(segmentFiles(dir).size() - 1);
+        long intact = Files.size(last);
+        Files.write(last, new byte[]{0x41, 0x56, 0x54, 0x52, 1, 'c', 'c'}, StandardOpenOption.APPEND);
+
+        SegmentAvatarBlobStore restarted = new SegmentAvatarBlobStore(dir.toString(), 1, 0.5);
+        restarted.init();
+        try {
+            assertThat(restarted.open(kept).openStream().readAllBytes()).isEqualTo(keptContent);
+            assertThat(restarted.exists(deleted)).isFalse();
+            assertThat(Files.size(last)).isEqualTo(intact);
+        } finally {
+            restarted.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Повреждённый сегмент не в конце журнала не обрезается, а останавливает запуск")
+    void damagedSealedSegmentIsNotTruncatedTest() throws IOException {
+        Path dir = Files.createTempDirectory("hogwarts-segments-damaged");
+        SegmentAvatarBlobStore store = new SegmentAvatarBlobStore(dir.toString(), 1, 0.5);
+        store.init();
+        store.put("d".repeat(64), write(store, createImage(Color.GREEN)));
+        store.put("e".repeat(64), write(store, createImage(Color.YELLOW)));
+        store.close();
+
+        Path sealed = segmentFiles(dir).get(0);
+        long size = Files.size(sealed);
+        try (FileChannel channel = FileChannel.open(sealed,
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 0}), 0);
+        }
+
+        SegmentAvatarBlobStore restarted = new SegmentAvatarBlobStore(dir.toString(), 1, 0.5);
+        assertThatThrownBy(restarted::init).isInstanceOf(IOException.class);
+        restarted.close();
+        assertThat(Files.size(sealed)).isEqualTo(size);
+    }
+
+    private static Path write(SegmentAvatarBlobStore store, byte[] content) throws IOException {
+        Path tempFile = store.createTempFile();
+        Files.write(tempFile, content);
+        return tempFile;
+    }
+
+    private static List<Path> segmentFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir.resolve("segments"))) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".seg")).sorted().toList();
+        }
+    }
+
+    private ResponseEntity<String> upload(Long studentId, byte[] image) {
+        MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
+        body.add("avatar", new ByteArrayResource(image) {
+            @Override
+            public String getFilename() {
+                return "avatar.png";
+            }
+        });
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        return testRestTemplate.postForEntity(getAddress() + "/" + studentId + "/avatar",
+                new HttpEntity<>(body, headers), String.class);
+    }
+
+    private byte[] createImage(Color color) throws IOException {
+        BufferedImage image = new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, 200, 150);
+        graphics.dispose();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", baos);
+        return baos.toByteArray();
+    }
+
+    private String getAddress() {
+        return "http://localhost:" + port + "/avatar";
+    }
+}
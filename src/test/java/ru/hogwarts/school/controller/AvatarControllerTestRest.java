@@ -0,0 +1,1163 @@
+package ru.hogwarts.school.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.*;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import com.fasterxml.jackson.databind.JsonNode;
+import ru.hogwarts.school.dto.AvatarSimilarItem;
+import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.AvatarPreview;
+import ru.hogwarts.school.model.Faculty;
+import ru.hogwarts.school.model.PreviewStatus;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.FacultyRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+import ru.hogwarts.school.service.AvatarContentGuard;
+import ru.hogwarts.school.service.AvatarHashBackfill;
+import ru.hogwarts.school.service.AvatarIngestor;
+import ru.hogwarts.school.service.AvatarPreviewCache;
+import ru.hogwarts.school.service.AvatarService;
+import ru.hogwarts.school.service.AvatarSimilarityIndex;
+import ru.hogwarts.school.service.AvatarStoreMigration;
+import ru.hogwarts.school.service.AvatarStoreReconciler;
+import ru.hogwarts.school.storage.AvatarBlob;
+import ru.hogwarts.school.storage.AvatarVariantCache;
+import ru.hogwarts.school.storage.FileAvatarBlobStore;
+import ru.hogwarts.school.storage.StoredBlob;
+
+import javax.imageio.ImageIO;
+import javax.sql.DataSource;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("test")
+public class AvatarControllerTestRest {
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private TestRestTemplate testRestTemplate;
+
+    @Autowired
+    private AvatarRepository avatarRepository;
+
+    @Autowired
+    private AvatarPreviewRepository avatarPreviewRepository;
+
+    @Autowired
+    private StudentRepository studentRepository;
+
+    @Autowired
+    private FacultyRepository facultyRepository;
+
+    @Autowired
+    private AvatarStoreReconciler avatarStoreReconciler;
+
+    @Autowired
+    private FileAvatarBlobStore avatarBlobStore;
+
+    @Autowired
+    private AvatarStoreMigration avatarStoreMigration;
+
+    @Autowired
+    private AvatarService avatarService;
+
+    @Autowired
+    private AvatarHashBackfill avatarHashBackfill;
+
+    @Autowired
+    private AvatarSimilarityIndex avatarSimilarityIndex;
+
+    @Autowired
+    private AvatarIngestor avatarIngestor;
+
+    @Autowired
+    private AvatarContentGuard avatarContentGuard;
+
+    @Autowired
+    private AvatarVariantCache avatarVariantCache;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @BeforeEach
+    @AfterEach
+    void cleanBd() {
+        avatarRepository.deleteAll();
+        avatarPreviewRepository.deleteAll();
+        studentRepository.deleteAll();
+        facultyRepository.deleteAll();
+    }
+
+    @Test
+    @DisplayName("POST /avatar/{id}/avatar - одинаковые файлы хранятся один раз")
+    void uploadSameAvatarTwiceTest() throws IOException {
+        Student first = studentRepository.save(new Student(null, "Гарри", 11));
+        Student second = studentRepository.save(new Student(null, "Рон", 11));
+        byte[] image = createImage(Color.RED);
+
+        assertThat(upload(first.getId(), image).getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(upload(second.getId(), image).getStatusCode()).isEqualTo(HttpStatus.OK);
+
+        Avatar firstAvatar = avatarRepository.findByStudentId(first.getId()).orElseThrow();
+        Avatar secondAvatar = avatarRepository.findByStudentId(second.getId()).orElseThrow();
+        assertThat(firstAvatar.getContentHash()).isEqualTo(secondAvatar.getContentHash());
+        assertThat(firstAvatar.getFilePath()).isEqualTo(secondAvatar.getFilePath());
+        assertThat(Files.readAllBytes(Path.of(firstAvatar.getFilePath()))).isEqualTo(image);
+    }
+
+    @Test
+    @DisplayName("POST /avatar/{id}/avatar - файл без ссылок удаляется после замены")
+    void replaceAvatarReleasesContentTest() throws IOException {
+        Student student = studentRepository.save(new Student(null, "Гермиона", 11));
+
+        upload(student.getId(), createImage(Color.RED));
+        Path oldFile = Path.of(avatarRepository.findByStudentId(student.getId()).orElseThrow().getFilePath());
+        upload(student.getId(), createImage(Color.BLUE));
+        Path newFile = Path.of(avatarRepository.findByStudentId(student.getId()).orElseThrow().getFilePath());
+
+        assertThat(newFile).isNotEqualTo(oldFile);
+        assertThat(Files.exists(oldFile)).isFalse();
+        assertThat(Files.exists(newFile)).isTrue();
+    }
+
+    @Test
+    @DisplayName("DELETE /avatar/{id} - содержимое, принятое ещё не закоммиченной загрузкой, не удаляется")
+    void releaseKeepsContentOfPendingUploadTest() throws IOException {
+        Student first = studentRepository.save(new Student(null, "Фред", 13));
+        Student second = studentRepository.save(new Student(null, "Джордж", 13));
+        byte[] image = createImage(new Color(68, 85, 102));
+        upload(first.getId(), image);
+        String hash = avatarRepository.findByStudentId(first.getId()).orElseThrow().getContentHash();
+
+        // вторая загрузка того же содержимого приняла файл, но её строка avatar ещё не записана
+        avatarIngestor.ingest(new ByteArrayInputStream(image));
+        try {
+            avatarService.deleteAvatar(first.getId());
+            assertThat(avatarBlobStore.exists(hash)).isTrue();
+        } finally {
+            avatarContentGuard.release(hash);
+        }
+
+        assertThat(upload(second.getId(), image).getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(avatarContentGuard.deleteIfUnreferenced(hash)).isFalse();
+        assertThat(readFile(avatarRepository.findByStudentId(second.getId()).orElseThrow().getFilePath()))
+                .isEqualTo(image);
+
+        avatarService.deleteAvatar(second.getId());
+        assertThat(avatarBlobStore.exists(hash)).isFalse();
+    }
+
+    @Test
+    @DisplayName("POST /avatar/{id}/avatar - одновременные загрузки одному студенту не теряют и не дублируют аватар")
+    void concurrentUploadsForOneStudentTest() throws Exception {
+        Student student = studentRepository.save(new Student(null, "Дадли", 11));
+        List<byte[]> images = new ArrayList<>();
+        // цвета не встречаются в других тестах, чтобы их файлы не остались в хранилище от чужих загрузок
+        for (int i = 0; i < 6; i++) {
+            images.add(createImage(new Color(17, 34, 51 + i)));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(images.size());
+        try {
+            List<Future<?>> uploads = new ArrayList<>();
+            for (byte[] image : images) {
+                uploads.add(executor.submit(() -> {
+                    avatarService.uploadAvatar(student.getId(),
+                            new MockMultipartFile("avatar", "avatar.png", "image/png", image));
+                    return null;
+                }));
+            }
+            for (Future<?> upload : uploads) {
+                upload.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(avatarRepository.findAll()).hasSize(1);
+        Avatar avatar = avatarRepository.findByStudentId(student.getId()).orElseThrow();
+        assertThat(images).anyMatch(image -> Arrays.equals(image, readFile(avatar.getFilePath())));
+        // содержимое проигравших загрузок освобождено, в хранилище остаётся только победитель
+        for (byte[] image : images) {
+            Path file = avatarBlobStore.resolve(sha256(image));
+            assertThat(Files.exists(file)).isEqualTo(file.toString().equals(avatar.getFilePath()));
+        }
+    }
+
+    @Test
+    @DisplayName("GET /avatar/{id}/avatar?v= - версионный адрес кешируется навсегда и меняется при замене")
+    void versionedAvatarUrlIsImmutableTest() throws IOException {
+        Student student = studentRepository.save(new Student(null, "Дин", 12));
+        byte[] first = createImage(Color.LIGHT_GRAY);
+        upload(student.getId(), first);
+
+        String firstUrl = listedAvatarUrl(student.getId());
+        assertThat(firstUrl).startsWith("/avatar/" + student.getId() + "/avatar?v=");
+        ResponseEntity<byte[]> versioned = testRestTemplate.getForEntity(
+                "http://localhost:" + port + firstUrl, byte[].class);
+        assertThat(versioned.getBody()).isEqualTo(first);
+        assertThat(versioned.getHeaders().getCacheControl()).contains("immutable");
+        // повторная проверка продлевает срок immutable, поэтому 304 несёт тот же Cache-Control
+        HttpHeaders conditional = new HttpHeaders();
+        conditional.setIfNoneMatch(versioned.getHeaders().getETag());
+        ResponseEntity<byte[]> revalidated = testRestTemplate.exchange("http://localhost:" + port + firstUrl,
+                HttpMethod.GET, new HttpEntity<>(conditional), byte[].class);
+        assertThat(revalidated.getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+        assertThat(revalidated.getHeaders().getCacheControl()).contains("immutable");
+        assertThat(testRestTemplate.getForEntity(getAddress() + "/" + student.getId() + "/avatar", byte[].class)
+                .getHeaders().getCacheControl()).isEqualTo("no-cache");
+
+        byte[] second = createImage(Color.DARK_GRAY);
+        upload(student.getId(), second);
+        String secondUrl = listedAvatarUrl(student.getId());
+        assertThat(secondUrl).isNotEqualTo(firstUrl);
+        ResponseEntity<byte[]> stale = testRestTemplate.getForEntity(
+                "http://localhost:" + port + firstUrl, byte[].class);
+        assertThat(stale.getBody()).isEqualTo(second);
+        assertThat(stale.getHeaders().getCacheControl()).isEqualTo("no-cache");
+        assertThat(testRestTemplate.getForEntity("http://localhost:" + port + secondUrl + "&w=64", byte[].class)
+                .getHeaders().getCacheControl()).contains("immutable");
+    }
+
+    @Test
+    @DisplayName("POST /avatar/{id}/avatar - слишком большая загрузка отклоняется с кодом 413")
+    void uploadTooLargeTest() {
+        Student student = studentRepository.save(new Student(null, "Дадли", 11));
+
+        ResponseEntity<String> response = upload(student.getId(), new byte[600 * 1024]);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.PAYLOAD_TOO_LARGE);
+        assertThat(avatarRepository.findByStudentId(student.getId())).isEmpty();
+    }
+
+    @Test
+    @DisplayName("PATCH /avatar/{id}/uploads/{uploadId} - загрузка кусками с продолжением после обрыва")
+    void resumableUploadTest() throws Exception {
+        Student student = studentRepository.save(new Student(null, "Джордж", 13));
+        byte[] image = createImage(Color.BLUE.darker());
+        int half = image.length / 2;
+
+        ResponseEntity<JsonNode> created = testRestTemplate.postForEntity(
+                getAddress() + "/" + student.getId() + "/uploads", null, JsonNode.class);
+        assertThat(created.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        String uploadId = created.getBody().get("uploadId").asText();
+        String uploadUrl = getAddress() + "/" + student.getId() + "/uploads/" + uploadId;
+        assertThat(created.getHeaders().getLocation().getPath()).endsWith("/uploads/" + uploadId);
+
+        HttpResponse<String> first = patchChunk(uploadUrl, 0, Arrays.copyOfRange(image, 0, half));
+        assertThat(first.statusCode()).isEqualTo(HttpStatus.NO_CONTENT.value());
+        assertThat(first.headers().firstValue("Upload-Offset")).contains(String.valueOf(half));
+
+        // после обрыва клиент узнаёт принятое смещение и продолжает с него
+        ResponseEntity<JsonNode> status = testRestTemplate.getForEntity(uploadUrl, JsonNode.class);
+        assertThat(status.getBody().get("offset").asLong()).isEqualTo(half);
+        HttpResponse<String> stale = patchChunk(uploadUrl, 0, Arrays.copyOfRange(image, 0, half));
+        assertThat(stale.statusCode()).isEqualTo(HttpStatus.CONFLICT.value());
+        assertThat(stale.headers().firstValue("Upload-Offset")).contains(String.valueOf(half));
+
+        patchChunk(uploadUrl, half, Arrays.copyOfRange(image, half, image.length));
+        ResponseEntity<String> completed = testRestTemplate.postForEntity(uploadUrl + "/complete", null, String.class);
+        assertThat(completed.getStatusCode()).isEqualTo(HttpStatus.OK);
+
+        ResponseEntity<byte[]> download = testRestTemplate.getForEntity(
+                getAddress() + "/" + student.getId() + "/avatar", byte[].class);
+        assertThat(download.getBody()).isEqualTo(image);
+        assertThat(testRestTemplate.getForEntity(uploadUrl, String.class).getStatusCode())
+                .isEqualTo(HttpStatus.NOT_FOUND);
+    }
+
+    @Test
+    @DisplayName("POST /avatar/{id}/avatar - тип и размер определяются по содержимому")
+    void uploadDetectsMediaTypeTest() throws IOException {
+        Student student = studentRepository.save(new Student(null, "Седрик", 15));
+        byte[] image = createImage(Color.CYAN);
+
+        upload(student.getId(), image);
+
+        Avatar avatar = avatarRepository.findByStudentId(student.getId()).orElseThrow();
+        assertThat(avatar.getMediaType()).isEqualTo(MediaType.IMAGE_PNG_VALUE);
+        assertThat(avatar.getFileSize()).isEqualTo(image.length);
+    }
+
+    @Test
+    @DisplayName("POST /avatar/{id}/avatar - файл не является изображением")
+    void uploadNotImageTest() {
+        Student student = studentRepository.save(new Student(null, "Чжоу", 15));
+
+        ResponseEntity<String> response = upload(student.getId(), "не картинка".getBytes());
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(avatarRepository.findByStudentId(student.getId())).isEmpty();
+    }
+
+    @Test
+    @DisplayName("POST /avatar/{id}/avatar - слишком большое изображение отклоняется по заголовку")
+    void uploadTooLargeImageTest() throws IOException {
+        Student student = studentRepository.save(new Student(null, "Виктор", 17));
+        BufferedImage image = new BufferedImage(12001, 1, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", baos);
+
+        ResponseEntity<String> response = upload(student.getId(), baos.toByteArray());
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(avatarRepository.findByStudentId(student.getId())).isEmpty();
+    }
+
+    @Test
+    @DisplayName("GET /avatar/{id}/avatar - ETag, 304 и частичная выгрузка")
+    void downloadAvatarWithValidatorsTest() throws IOException {
+        Student student = studentRepository.save(new Student(null, "Драко", 11));
+        byte[] image = createImage(Color.GREEN);
+        upload(student.getId(), image);
+        String url = getAddress() + "/" + student.getId() + "/avatar";
+
+        ResponseEntity<byte[]> full = testRestTemplate.getForEntity(url, byte[].class);
+        assertThat(full.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(full.getBody()).isEqualTo(image);
+        String etag = full.getHeaders().getETag();
+        assertThat(etag).isNotNull();
+        assertThat(full.getHeaders().getLastModified()).isPositive();
+
+        HttpHeaders conditional = new HttpHeaders();
+        conditional.setIfNoneMatch(etag);
+        ResponseEntity<byte[]> notModified = testRestTemplate.exchange(url, HttpMethod.GET,
+                new HttpEntity<>(conditional), byte[].class);
+        assertThat(notModified.getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+        assertThat(notModified.getHeaders().getETag()).isEqualTo(etag);
+        assertThat(notModified.getHeaders().getLastModified()).isEqualTo(full.getHeaders().getLastModified());
+        assertThat(notModified.getHeaders().getCacheControl()).isEqualTo("no-cache");
+
+        HttpHeaders range = new HttpHeaders();
+        range.setRange(List.of(HttpRange.createByteRange(10, 19)));
+        range.set(HttpHeaders.IF_RANGE, etag);
+        ResponseEntity<byte[]> partial = testRestTemplate.exchange(url, HttpMethod.GET,
+                new HttpEntity<>(range), byte[].class);
+        assertThat(partial.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+        assertThat(partial.getBody()).isEqualTo(Arrays.copyOfRange(image, 10, 20));
+        assertThat(partial.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE))
+                .isEqualTo("bytes 10-19/" + image.length);
+    }
+
+    @Test
+    @DisplayName("GET /avatar/{id}/avatar?w=&h=&fit= - уменьшенный вариант")
+    void downloadResizedAvatarTest() throws IOException {
+        Student student = studentRepository.save(new Student(null, "Фред", 13));
+        upload(student.getId(), createImage(Color.MAGENTA));
+        String url = getAddress() + "/" + student.getId() + "/avatar";
+
+        ResponseEntity<byte[]> contain = testRestTemplate.getForEntity(url + "?w=64&h=64", byte[].class);
+        assertThat(contain.getStatusCode()).isEqualTo(HttpStatus.OK);
+        BufferedImage containImage = ImageIO.read(new ByteArrayInputStream(contain.getBody()));
+        assertThat(containImage.getWidth()).isEqualTo(64);
+        assertThat(containImage.getHeight()).isEqualTo(48);
+
+        ResponseEntity<byte[]> cover = testRestTemplate.getForEntity(url + "?w=64&h=64&fit=cover", byte[].class);
+        BufferedImage coverImage = ImageIO.read(new ByteArrayInputStream(cover.getBody()));
+        assertThat(coverImage.getWidth()).isEqualTo(64);
+        assertThat(coverImage.getHeight()).isEqualTo(64);
+
+        ResponseEntity<String> notAllowed = testRestTemplate.getForEntity(url + "?w=65", String.class);
+        assertThat(notAllowed.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    @DisplayName("Вытесненный из кэша файл дочитывается запросом, который уже получил его из кэша")
+    void evictedCacheFileIsServedToReaderTest() throws IOException {
+        byte[] content = createImage(Color.ORANGE);
+        String key = "evicted-test.png";
+
+        try (AvatarBlob blob = avatarVariantCache.open(key, target -> Files.write(target, content))) {
+            avatarVariantCache.evict(key);
+            assertThat(avatarVariantCache.dir().resolve(key)).doesNotExist();
+            assertThat(blob.file()).isNull();
+
+            ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+            blob.transferTo(0, blob.size(), Channels.newChannel(transferred));
+            assertThat(transferred.toByteArray()).isEqualTo(content);
+            try (InputStream in = blob.openStream()) {
+                assertThat(in.readAllBytes()).isEqualTo(content);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Вторая строка аватара того же студента отклоняется базой")
+    void secondAvatarRowOfStudentIsRejectedTest() {
+        Student student = studentRepository.save(new Student(null, "Перси", 15));
+        avatarRepository.save(new Avatar(null, "first.png", 1, MediaType.IMAGE_PNG_VALUE, student));
+
+        // так выглядит запись того же студента с другого экземпляра, мимо JVM-блокировки
+        assertThatThrownBy(() -> avatarRepository.save(
+                new Avatar(null, "second.png", 1, MediaType.IMAGE_PNG_VALUE, student)))
+                .isInstanceOf(DataIntegrityViolationException.class);
+        assertThat(avatarRepository.count()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("GET /avatar/{id}/avatar - аватар не найден")
+    void downloadMissingAvatarTest() {
+        Student student = studentRepository.save(new Student(null, "Невилл", 11));
+
+        ResponseEntity<String> response = testRestTemplate.getForEntity(
+                getAddress() + "/" + student.getId() + "/avatar", String.class);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+    }
+
+    @Test
+    @DisplayName("GET /avatar/{id}/avatar/preview - превью создаётся в фоне")
+    void previewIsGeneratedAsynchronouslyTest() throws Exception {
+        Student student = studentRepository.save(new Student(null, "Полумна", 11));
+        upload(student.getId(), createImage(Color.YELLOW));
+        String url = getAddress() + "/" + student.getId() + "/avatar/preview";
+
+        ResponseEntity<byte[]> response = testRestTemplate.getForEntity(url, byte[].class);
+        for (int i = 0; i < 50 && response.getStatusCode() == HttpStatus.ACCEPTED; i++) {
+            Thread.sleep(100);
+            response = testRestTemplate.getForEntity(url, byte[].class);
+        }
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        BufferedImage preview = ImageIO.read(new ByteArrayInputStream(response.getBody()));
+        assertThat(preview.getWidth()).isEqualTo(100);
+    }
+
+    @Test
+    @DisplayName("GET /avatar/previews - превью нескольких студентов одним ответом")
+    void getPreviewsBatchTest() throws Exception {
+        Faculty faculty = facultyRepository.save(new Faculty(null, "Когтевран", "синий"));
+        Student first = new Student(null, "Падма", 11);
+        first.setFaculty(faculty);
+        first = studentRepository.save(first);
+        Student second = studentRepository.save(new Student(null, "Парвати", 11));
+        Student withoutAvatar = studentRepository.save(new Student(null, "Лаванда", 11));
+        upload(first.getId(), createImage(Color.BLUE));
+        upload(second.getId(), createImage(Color.RED));
+        awaitPreview(first.getId());
+        awaitPreview(second.getId());
+
+        ResponseEntity<JsonNode> response = testRestTemplate.getForEntity(getAddress() + "/previews?studentIds="
+                + second.getId() + "," + first.getId() + "," + withoutAvatar.getId(), JsonNode.class);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        JsonNode body = response.getBody();
+        assertThat(body).hasSize(2);
+        assertThat(body.get(0).get("studentId").asLong()).isEqualTo(second.getId());
+        assertThat(body.get(1).get("studentId").asLong()).isEqualTo(first.getId());
+        assertThat(body.get(0).has("contentHash")).isFalse();
+        BufferedImage preview = ImageIO.read(new ByteArrayInputStream(body.get(0).get("data").binaryValue()));
+        assertThat(preview.getWidth()).isEqualTo(100);
+
+        ResponseEntity<JsonNode> byFaculty = testRestTemplate.getForEntity(
+                getAddress() + "/previews?facultyId=" + faculty.getId(), JsonNode.class);
+        assertThat(byFaculty.getBody()).hasSize(1);
+        assertThat(byFaculty.getBody().get(0).get("studentId").asLong()).isEqualTo(first.getId());
+
+        ResponseEntity<String> empty = testRestTemplate.getForEntity(getAddress() + "/previews", String.class);
+        assertThat(empty.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    @DisplayName("Превью, инвалидированное во время загрузки пачки из БД, не попадает в кэш")
+    void previewInvalidatedDuringLoadIsNotCachedTest() {
+        AvatarPreviewCache cache = new AvatarPreviewCache(new SimpleMeterRegistry(), 1024 * 1024);
+        AvatarPreview stale = new AvatarPreview("old", "image/jpeg", new byte[]{1});
+        AvatarPreview other = new AvatarPreview("other", "image/jpeg", new byte[]{2});
+
+        Map<Long, AvatarPreview> loaded = cache.getAll(List.of(1L, 2L), missing -> {
+            // загрузка нового аватара закоммитилась, пока пачка читалась из БД
+            cache.invalidate(1L);
+            return Map.of(1L, stale, 2L, other);
+        });
+
+        assertThat(loaded).containsOnlyKeys(1L, 2L);
+        assertThat(cache.getAllPresent(List.of(1L, 2L))).containsOnlyKeys(2L);
+    }
+
+    @Test
+    @DisplayName("POST /avatar/previews/regeneration - превью пересоздаются пачками с продолжением с контрольной точки")
+    void regeneratePreviewsTest() throws Exception {
+        List<Long> studentIds = new ArrayList<>();
+        for (Color color : List.of(new Color(90, 10, 10), new Color(10, 90, 10), new Color(10, 10, 90))) {
+            Student student = studentRepository.save(new Student(null, "Студент", 13));
+            upload(student.getId(), createImage(color));
+            awaitPreview(student.getId());
+            studentIds.add(student.getId());
+        }
+        // превью старого размера, которые нужно пересоздать
+        avatarPreviewRepository.findAll().forEach(preview -> {
+            preview.setData(new byte[]{1});
+            avatarPreviewRepository.save(preview);
+        });
+
+        // прерванный запуск успел обработать первого студента
+        Long firstAvatarId = avatarRepository.findByStudentId(studentIds.get(0)).orElseThrow().getId();
+        // контрольная точка лежит рядом с хранилищем, а не в нём, где её убрала бы сверка хранилища
+        Path checkpoint = Path.of(avatarBlobStore.root() + "-state", "preview-regeneration.checkpoint");
+        Files.createDirectories(checkpoint.getParent());
+        Files.writeString(checkpoint, firstAvatarId.toString());
+
+        ResponseEntity<JsonNode> started = testRestTemplate.postForEntity(
+                getAddress() + "/previews/regeneration?resume=true", null, JsonNode.class);
+        assertThat(started.getStatusCode()).isEqualTo(HttpStatus.ACCEPTED);
+        assertThat(started.getBody().get("total").asLong()).isEqualTo(2);
+        JsonNode finished = awaitRegeneration();
+        assertThat(finished.get("state").asText()).isEqualTo("FINISHED");
+        assertThat(finished.get("processed").asLong()).isEqualTo(2);
+        assertThat(finished.get("failed").asLong()).isZero();
+        assertThat(checkpoint).doesNotExist();
+        assertThat(previewData(studentIds.get(0))).containsExactly(1);
+        assertThat(ImageIO.read(new ByteArrayInputStream(previewData(studentIds.get(1)))).getWidth()).isEqualTo(100);
+
+        testRestTemplate.postForEntity(getAddress() + "/previews/regeneration?resume=false", null, JsonNode.class);
+        assertThat(awaitRegeneration().get("processed").asLong()).isEqualTo(3);
+        for (Long studentId : studentIds) {
+            assertThat(ImageIO.read(new ByteArrayInputStream(previewData(studentId))).getWidth()).isEqualTo(100);
+        }
+    }
+
+    @Test
+    @DisplayName("POST /avatar/import - импорт аватаров из zip-архива с отчётом по записям")
+    void importAvatarsFromZipTest() throws IOException {
+        Student first = studentRepository.save(new Student(null, "Седрик", 17));
+        Student second = studentRepository.save(new Student(null, "Чжоу", 16));
+        Student notImage = studentRepository.save(new Student(null, "Захария", 15));
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(archive)) {
+            addZipEntry(zip, "photos/" + first.getId() + ".png", createImage(Color.PINK));
+            addZipEntry(zip, second.getId() + ".png", createImage(Color.PINK));
+            addZipEntry(zip, notImage.getId() + ".png", "не картинка".getBytes());
+            addZipEntry(zip, "readme.txt", "описание".getBytes());
+            addZipEntry(zip, "999999.png", createImage(Color.GRAY));
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType("application/zip"));
+
+        ResponseEntity<JsonNode> response = testRestTemplate.postForEntity(getAddress() + "/import",
+                new HttpEntity<>(archive.toByteArray(), headers), JsonNode.class);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        JsonNode report = response.getBody();
+        assertThat(report.get("total").asInt()).isEqualTo(5);
+        assertThat(report.get("imported").asInt()).isEqualTo(2);
+        assertThat(report.get("failed").asInt()).isEqualTo(3);
+        assertThat(report.get("results").get(0).get("status").asText()).isEqualTo("IMPORTED");
+        assertThat(report.get("results").get(2).get("status").asText()).isEqualTo("FAILED");
+
+        List<Avatar> avatars = avatarRepository.findAll();
+        assertThat(avatars).hasSize(2);
+        assertThat(avatars.get(0).getContentHash()).isEqualTo(avatars.get(1).getContentHash());
+        // файл студента, которого нет, не остаётся в хранилище
+        try (var files = Files.list(avatarBlobStore.root())) {
+            assertThat(files.filter(file -> file.getFileName().toString().endsWith(".tmp"))).isEmpty();
+        }
+    }
+
+    @Test
+    @DisplayName("POST /avatar/import - запись, которая распаковывается больше лимита загрузки, не распаковывается")
+    void importOversizedEntryTest() throws IOException {
+        Student student = studentRepository.save(new Student(null, "Эрни", 16));
+        Student bomb = studentRepository.save(new Student(null, "Ханна", 16));
+
+        // нули сжимаются в сотни раз: в запросе килобайт, после распаковки больше лимита
+        byte[] zeros = new byte[600 * 1024];
+        zeros[0] = (byte) 0x89;
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(archive)) {
+            addZipEntry(zip, bomb.getId() + ".png", zeros);
+            addZipEntry(zip, student.getId() + ".png", createImage(Color.ORANGE));
+        }
+        assertThat(archive.size()).isLessThan(16 * 1024);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType("application/zip"));
+
+        ResponseEntity<JsonNode> response = testRestTemplate.postForEntity(getAddress() + "/import",
+                new HttpEntity<>(archive.toByteArray(), headers), JsonNode.class);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        JsonNode results = response.getBody().get("results");
+        assertThat(results.get(0).get("status").asText()).isEqualTo("FAILED");
+        assertThat(results.get(0).get("message").asText()).startsWith("Файл больше допустимого размера");
+        assertThat(results.get(1).get("status").asText()).isEqualTo("IMPORTED");
+        assertThat(avatarRepository.findByStudentId(bomb.getId())).isEmpty();
+        try (var files = Files.list(avatarBlobStore.root())) {
+            assertThat(files.filter(file -> file.getFileName().toString().endsWith(".tmp"))).isEmpty();
+        }
+    }
+
+    @Test
+    @DisplayName("POST /avatar/import - файл, отброшенный в первой пачке, остаётся для следующей")
+    void importSharedContentAcrossBatchesTest() throws IOException {
+        Student student = studentRepository.save(new Student(null, "Оливер", 17));
+        byte[] image = createImage(new Color(119, 136, 153));
+        byte[] orphan = createImage(new Color(153, 136, 119));
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(archive)) {
+            addZipEntry(zip, "999999.png", image);
+            addZipEntry(zip, "999998.png", orphan);
+            // записи без id студента занимают место в пачке, так что последняя запись попадает в другую пачку
+            for (int i = 0; i < 60; i++) {
+                addZipEntry(zip, "notes-" + i + ".txt", "описание".getBytes());
+            }
+            addZipEntry(zip, student.getId() + ".png", image);
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType("application/zip"));
+
+        ResponseEntity<JsonNode> response = testRestTemplate.postForEntity(getAddress() + "/import",
+                new HttpEntity<>(archive.toByteArray(), headers), JsonNode.class);
+
+        assertThat(response.getBody().get("imported").asInt()).isEqualTo(1);
+        String hash = avatarRepository.findByStudentId(student.getId()).orElseThrow().getContentHash();
+        assertThat(avatarBlobStore.exists(hash)).isTrue();
+        assertThat(testRestTemplate.getForEntity(getAddress() + "/" + student.getId() + "/avatar", byte[].class)
+                .getBody()).isEqualTo(image);
+        // содержимое, на которое так никто и не сослался, удаляется после импорта
+        assertThat(avatarBlobStore.exists(sha256(orphan))).isFalse();
+    }
+
+    @Test
+    @DisplayName("GET /avatar/export - tar с оригиналами, манифестом и инкрементальной выгрузкой")
+    void exportAvatarsTest() throws Exception {
+        Student first = studentRepository.save(new Student(null, "Оливер", 17));
+        Student second = studentRepository.save(new Student(null, "Кэти", 15));
+        byte[] firstImage = createImage(Color.DARK_GRAY);
+        upload(first.getId(), firstImage);
+        upload(second.getId(), createImage(Color.LIGHT_GRAY));
+
+        Map<String, byte[]> full = readTar(testRestTemplate.getForEntity(getAddress() + "/export", byte[].class));
+        assertThat(full).containsOnlyKeys("avatars/" + first.getId() + ".png", "avatars/" + second.getId() + ".png",
+                "manifest.ndjson", "export.json");
+        assertThat(full.get("avatars/" + first.getId() + ".png")).isEqualTo(firstImage);
+        assertThat(new String(full.get("manifest.ndjson")).lines()).hasSize(2);
+
+        JsonNode summary = new ObjectMapper().readTree(full.get("export.json"));
+        assertThat(summary.get("count").asInt()).isEqualTo(2);
+        Map<String, byte[]> afterId = readTar(testRestTemplate.getForEntity(
+                getAddress() + "/export?sinceId=" + summary.get("lastId").asLong(), byte[].class));
+        assertThat(afterId).containsOnlyKeys("manifest.ndjson", "export.json");
+
+        upload(first.getId(), createImage(Color.WHITE));
+        Map<String, byte[]> changed = readTar(testRestTemplate.getForEntity(
+                getAddress() + "/export?since=" + summary.get("exportedAt").asText(), byte[].class));
+        assertThat(changed).containsOnlyKeys("avatars/" + first.getId() + ".png", "manifest.ndjson", "export.json");
+    }
+
+    @Test
+    @DisplayName("Сверка хранилища - файлы без ссылок уходят в карантин и удаляются после выдержки")
+    void reconcilerQuarantinesAndDeletesOrphansTest() throws IOException {
+        Student student = studentRepository.save(new Student(null, "Ли", 16));
+        upload(student.getId(), createImage(Color.BLACK));
+        Path referenced = Path.of(avatarRepository.findByStudentId(student.getId()).orElseThrow().getFilePath());
+        Path orphan = Files.write(avatarBlobStore.root().resolve("f".repeat(64)), createImage(Color.BLACK));
+        Path legacyOrphan = Files.write(avatarBlobStore.root().resolve("legacy-orphan.jpg"), new byte[]{1, 2, 3});
+        Path fresh = Files.write(avatarBlobStore.root().resolve("e".repeat(64)), new byte[]{1});
+        Path shardedOrphan = avatarBlobStore.resolve("d".repeat(64));
+        Files.createDirectories(shardedOrphan.getParent());
+        Files.write(shardedOrphan, new byte[]{1});
+        FileTime dayAgo = FileTime.from(Instant.now().minus(Duration.ofDays(1)));
+        for (Path file : List.of(referenced, orphan, legacyOrphan, shardedOrphan)) {
+            Files.setLastModifiedTime(file, dayAgo);
+        }
+
+        for (int i = 0; i < 257; i++) {
+            avatarStoreReconciler.reconcile();
+        }
+
+        Path quarantine = avatarBlobStore.root().resolve("quarantine");
+        assertThat(referenced).exists();
+        assertThat(fresh).exists();
+        assertThat(orphan).doesNotExist();
+        assertThat(legacyOrphan).doesNotExist();
+        assertThat(shardedOrphan).doesNotExist();
+        assertThat(quarantine.resolve(orphan.getFileName())).exists();
+        assertThat(quarantine.resolve(shardedOrphan.getFileName())).exists();
+        assertThat(quarantine.resolve(legacyOrphan.getFileName())).exists();
+
+        FileTime twoDaysAgo = FileTime.from(Instant.now().minus(Duration.ofDays(2)));
+        Files.setLastModifiedTime(quarantine.resolve(orphan.getFileName()), twoDaysAgo);
+        avatarStoreReconciler.reconcile();
+
+        assertThat(quarantine.resolve(orphan.getFileName())).doesNotExist();
+        assertThat(quarantine.resolve(legacyOrphan.getFileName())).exists();
+        Files.delete(fresh);
+        Files.delete(quarantine.resolve(legacyOrphan.getFileName()));
+        Files.delete(quarantine.resolve(shardedOrphan.getFileName()));
+    }
+
+    @Test
+    @DisplayName("Миграция хранилища - файлы из плоской раскладки переносятся в ab/cd/<hash>")
+    void storeMigrationMovesFlatFilesTest() throws IOException {
+        Student hashed = studentRepository.save(new Student(null, "Эрни", 15));
+        Student legacy = studentRepository.save(new Student(null, "Ханна", 15));
+        byte[] image = createImage(Color.GREEN.darker());
+        upload(hashed.getId(), image);
+
+        // строка с хэшем, но файлом в корне, как до разбиения на каталоги
+        Avatar flat = avatarRepository.findByStudentId(hashed.getId()).orElseThrow();
+        Path sharded = Path.of(flat.getFilePath());
+        Path flatPath = avatarBlobStore.root().resolve(flat.getContentHash());
+        Files.move(sharded, flatPath, StandardCopyOption.REPLACE_EXISTING);
+        flat.setFilePath(flatPath.toString());
+        avatarRepository.save(flat);
+
+        // строка самого старого формата: файл <id>.png и никакого хэша
+        Path legacyPath = Files.write(avatarBlobStore.root().resolve(legacy.getId() + ".png"), createImage(Color.PINK));
+        avatarRepository.save(new Avatar(null, legacyPath.toString(), Files.size(legacyPath), "image/png", legacy));
+
+        avatarStoreMigration.migrateBatch();
+        avatarStoreMigration.migrateBatch();
+
+        Avatar migrated = avatarRepository.findByStudentId(hashed.getId()).orElseThrow();
+        assertThat(Path.of(migrated.getFilePath())).isEqualTo(sharded).exists();
+        Avatar adopted = avatarRepository.findByStudentId(legacy.getId()).orElseThrow();
+        assertThat(adopted.getContentHash()).isNotNull();
+        assertThat(Path.of(adopted.getFilePath())).isEqualTo(avatarBlobStore.resolve(adopted.getContentHash()));
+        assertThat(adopted.getPreviewStatus()).isIn(PreviewStatus.PENDING, PreviewStatus.READY);
+
+        ResponseEntity<byte[]> download = testRestTemplate.getForEntity(
+                getAddress() + "/" + hashed.getId() + "/avatar", byte[].class);
+        assertThat(download.getBody()).isEqualTo(image);
+        // старые пути остаются до истечения выдержки, чтобы не оборвать начатые выгрузки
+        assertThat(flatPath).exists();
+        Files.delete(flatPath);
+        Files.delete(legacyPath);
+    }
+
+    @Test
+    @DisplayName("GET /avatar/List-avatars - список без содержимого превью")
+    void getAvatarsTest() throws IOException {
+        Student student = studentRepository.save(new Student(null, "Джинни", 11));
+        byte[] image = createImage(Color.ORANGE);
+        upload(student.getId(), image);
+
+        ResponseEntity<String> response = testRestTemplate.getForEntity(
+                getAddress() + "/List-avatars?page=0&size=10", String.class);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getBody())
+                .contains("\"studentId\":" + student.getId())
+                .contains("\"fileSize\":" + image.length)
+                .doesNotContain("\"data\"");
+    }
+
+    @Test
+    @DisplayName("GET /avatar/list - обход всех аватаров по курсору")
+    void getAvatarsByCursorTest() throws IOException {
+        List<Long> studentIds = new ArrayList<>();
+        for (Color color : List.of(Color.RED, Color.GREEN, Color.BLUE)) {
+            Student student = studentRepository.save(new Student(null, "Студент", 12));
+            upload(student.getId(), createImage(color));
+            studentIds.add(student.getId());
+        }
+
+        List<Long> listed = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            String url = getAddress() + "/list?size=2" + (cursor == null ? "" : "&cursor=" + cursor);
+            ResponseEntity<JsonNode> response = testRestTemplate.getForEntity(url, JsonNode.class);
+            assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+            JsonNode body = response.getBody();
+            for (JsonNode item : body.get("items")) {
+                listed.add(item.get("studentId").asLong());
+                assertThat(item.get("previewUrl").asText())
+                        .isEqualTo("/avatar/" + item.get("studentId").asLong() + "/avatar/preview");
+                assertThat(item.has("data")).isFalse();
+            }
+            cursor = body.get("nextCursor").isNull() ? null : body.get("nextCursor").asText();
+            pages++;
+        } while (cursor != null);
+
+        assertThat(pages).isEqualTo(2);
+        assertThat(listed).containsExactlyElementsOf(studentIds);
+        assertThat(testRestTemplate.getForEntity(getAddress() + "/list?cursor=!!", String.class).getStatusCode())
+                .isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    @DisplayName("GET /avatar/{id}/similar - перекодированная копия находится, другое изображение нет")
+    void findSimilarAvatarsTest() throws Exception {
+        Student original = studentRepository.save(new Student(null, "Полумна", 14));
+        Student copy = studentRepository.save(new Student(null, "Ксенофилиус", 40));
+        Student other = studentRepository.save(new Student(null, "Невилл", 14));
+        BufferedImage image = createPattern(false);
+        upload(original.getId(), toBytes(image, "png"));
+        upload(copy.getId(), toBytes(resize(image, 120, 90), "jpg"));
+        upload(other.getId(), toBytes(createPattern(true), "png"));
+
+        // хэш считается конвейером превью, а не при загрузке
+        awaitPerceptualHash(copy.getId());
+        awaitPerceptualHash(other.getId());
+        ResponseEntity<JsonNode> response = testRestTemplate.getForEntity(
+                getAddress() + "/" + original.getId() + "/similar?maxDistance=8", JsonNode.class);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        List<Long> similar = new ArrayList<>();
+        response.getBody().forEach(item -> similar.add(item.get("studentId").asLong()));
+        assertThat(similar).contains(copy.getId()).doesNotContain(original.getId(), other.getId());
+        assertThat(testRestTemplate.getForEntity(getAddress() + "/" + original.getId() + "/similar?maxDistance=65",
+                String.class).getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(testRestTemplate.getForEntity(getAddress() + "/" + (other.getId() + 1000) + "/similar",
+                String.class).getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+    }
+
+    @Test
+    @DisplayName("Заполнение перцептивных хэшей - аватары без хэша получают его в фоне")
+    void backfillPerceptualHashTest() throws Exception {
+        Student first = studentRepository.save(new Student(null, "Седрик", 17));
+        Student second = studentRepository.save(new Student(null, "Чжоу", 16));
+        byte[] image = toBytes(createPattern(false), "png");
+        upload(first.getId(), image);
+        upload(second.getId(), image);
+        // как у аватаров, загруженных до появления хэша
+        for (Long studentId : List.of(first.getId(), second.getId())) {
+            awaitPerceptualHash(studentId);
+            Avatar avatar = avatarRepository.findByStudentId(studentId).orElseThrow();
+            avatar.setPerceptualHash(null);
+            avatarRepository.save(avatar);
+            avatarSimilarityIndex.remove(studentId);
+        }
+
+        assertThat(avatarHashBackfill.backfillBatch()).isEqualTo(2);
+
+        Avatar filled = avatarRepository.findByStudentId(first.getId()).orElseThrow();
+        assertThat(filled.getPerceptualHash()).isNotNull();
+        assertThat(avatarSimilarityIndex.get(second.getId())).contains(filled.getPerceptualHash());
+        assertThat(avatarService.findSimilar(first.getId(), 0))
+                .extracting(AvatarSimilarItem::studentId)
+                .contains(second.getId())
+                .doesNotContain(first.getId());
+    }
+
+    @Test
+    @DisplayName("GET /avatar/{id}/avatar - медленные клиенты не держат соединения пула")
+    void slowDownloadsDoNotHoldConnectionsTest() throws Exception {
+        Student student = studentRepository.save(new Student(null, "Фред", 13));
+        // шум больше лимита загрузки в тестах, поэтому файл кладётся в хранилище напрямую
+        StoredBlob blob = avatarIngestor.ingest(new ByteArrayInputStream(createNoiseImage(2048, 2048)));
+        avatarContentGuard.release(blob.hash());
+        Avatar avatar = new Avatar(null, blob.path().toString(), blob.size(), blob.mediaType(), student);
+        avatar.setContentHash(blob.hash());
+        avatar.setPreviewStatus(PreviewStatus.READY);
+        avatar.setUpdatedAt(Instant.now());
+        avatarRepository.save(avatar);
+        // вариант отдаётся из открытого канала, а не через sendfile: байты пишет сам поток запроса,
+        // и 12 МБ шума не помещаются в буферы сокетов
+        String path = "/avatar/" + student.getId() + "/avatar?w=2048";
+        byte[] expected = testRestTemplate.getForEntity("http://localhost:" + port + path, byte[].class).getBody();
+        HikariPoolMXBean pool = dataSource.unwrap(HikariDataSource.class).getHikariPoolMXBean();
+
+        int clients = 8;
+        List<SlowClient> slowClients = new ArrayList<>();
+        try {
+            for (int i = 0; i < clients; i++) {
+                slowClients.add(new SlowClient(port, path));
+            }
+            for (SlowClient client : slowClients) {
+                assertThat(client.readHeaders()).startsWith("HTTP/1.1 200");
+            }
+            // клиенты не читают тело, буферы сокетов заполнены, и все запросы стоят на записи ответа
+            awaitBlockedWriters(clients);
+
+            // во время передачи байтов ни один запрос не держит соединение, возможен только фоновый планировщик
+            assertThat(pool.getActiveConnections()).isLessThanOrEqualTo(1);
+            assertThat(testRestTemplate.getForEntity("http://localhost:" + port + "/student", String.class)
+                    .getStatusCode()).isEqualTo(HttpStatus.OK);
+
+            for (SlowClient client : slowClients) {
+                assertThat(client.readBody()).isEqualTo(expected);
+            }
+        } finally {
+            for (SlowClient client : slowClients) {
+                client.close();
+            }
+        }
+    }
+
+    private static void awaitBlockedWriters(int expected) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            long writing = Thread.getAllStackTraces().values().stream()
+                    .filter(stack -> Arrays.stream(stack)
+                            .anyMatch(frame -> frame.getClassName().endsWith("AvatarDownloadWriter")))
+                    .count();
+            if (writing >= expected) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Запросы не дошли до записи ответа медленным клиентам");
+    }
+
+    // HTTP-клиент на сокете с маленьким буфером приёма: после заголовков тело не читается,
+    // пока тест не попросит, поэтому сервер упирается в запись, как с медленным клиентом
+    private static final class SlowClient implements AutoCloseable {
+
+        private final Socket socket;
+        private final InputStream in;
+
+        private SlowClient(int port, String path) throws IOException {
+            socket = new Socket();
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("localhost", port), 5000);
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            in = socket.getInputStream();
+        }
+
+        private String readHeaders() throws IOException {
+            ByteArrayOutputStream headers = new ByteArrayOutputStream();
+            int matched = 0;
+            byte[] end = {'\r', '\n', '\r', '\n'};
+            while (matched < end.length) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException("Соединение закрыто до конца заголовков");
+                }
+                headers.write(b);
+                matched = b == end[matched] ? matched + 1 : (b == end[0] ? 1 : 0);
+            }
+            return headers.toString(StandardCharsets.US_ASCII);
+        }
+
+        private byte[] readBody() throws IOException {
+            return in.readAllBytes();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private void awaitPerceptualHash(Long studentId) throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            if (avatarRepository.findByStudentId(studentId).orElseThrow().getPerceptualHash() != null
+                    && avatarSimilarityIndex.get(studentId).isPresent()) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new AssertionError("Перцептивный хэш для студента " + studentId + " не посчитан");
+    }
+
+    private void awaitPreview(Long studentId) throws InterruptedException {
+        String url = getAddress() + "/" + studentId + "/avatar/preview";
+        for (int i = 0; i < 50 && testRestTemplate.getForEntity(url, byte[].class).getStatusCode() != HttpStatus.OK; i++) {
+            Thread.sleep(100);
+        }
+    }
+
+    private JsonNode awaitRegeneration() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            JsonNode status = testRestTemplate.getForEntity(getAddress() + "/previews/regeneration", JsonNode.class)
+                    .getBody();
+            if (!List.of("RUNNING", "STOPPING").contains(status.get("state").asText())) {
+                return status;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Перегенерация превью не завершилась");
+    }
+
+    private byte[] previewData(Long studentId) {
+        return avatarPreviewRepository.findByStudentId(studentId).orElseThrow().getData();
+    }
+
+    private Map<String, byte[]> readTar(ResponseEntity<byte[]> response) throws IOException {
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new ByteArrayInputStream(response.getBody()))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                entries.put(entry.getName(), tar.readAllBytes());
+            }
+        }
+        return entries;
+    }
+
+    private void addZipEntry(ZipOutputStream zip, String name, byte[] data) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    // HttpURLConnection, на котором работает TestRestTemplate, не умеет PATCH
+    private HttpResponse<String> patchChunk(String url, long offset, byte[] chunk) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .header("Upload-Offset", String.valueOf(offset))
+                .header(HttpHeaders.CONTENT_TYPE, "application/offset+octet-stream")
+                .method("PATCH", HttpRequest.BodyPublishers.ofByteArray(chunk))
+                .build();
+        return HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private ResponseEntity<String> upload(Long studentId, byte[] image) {
+        MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
+        body.add("avatar", new ByteArrayResource(image) {
+            @Override
+            public String getFilename() {
+                return "avatar.png";
+            }
+        });
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        return testRestTemplate.postForEntity(getAddress() + "/" + studentId + "/avatar",
+                new HttpEntity<>(body, headers), String.class);
+    }
+
+    // шум почти не сжимается: размер PNG близок к 3 байтам на пиксель
+    private byte[] createNoiseImage(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", baos);
+        return baos.toByteArray();
+    }
+
+    private byte[] createImage(Color color) throws IOException {
+        BufferedImage image = new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, 200, 150);
+        graphics.dispose();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", baos);
+        return baos.toByteArray();
+    }
+
+    // полосы разной яркости и диск: у однотонной картинки все биты хэша нулевые
+    private BufferedImage createPattern(boolean mirrored) {
+        BufferedImage image = new BufferedImage(240, 180, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        Color[] stripes = {Color.WHITE, Color.DARK_GRAY, Color.YELLOW, Color.BLACK, Color.CYAN, Color.BLUE};
+        for (int i = 0; i < stripes.length; i++) {
+            graphics.setColor(stripes[i]);
+            graphics.fillRect(i * 40, 0, 40, 180);
+        }
+        graphics.setColor(Color.RED);
+        graphics.fillOval(30, 40, 100, 100);
+        graphics.dispose();
+        if (!mirrored) {
+            return image;
+        }
+        BufferedImage flipped = new BufferedImage(240, 180, BufferedImage.TYPE_INT_RGB);
+        Graphics2D flippedGraphics = flipped.createGraphics();
+        flippedGraphics.drawImage(image, 240, 0, -240, 180, null);
+        flippedGraphics.dispose();
+        return flipped;
+    }
+
+    private BufferedImage resize(BufferedImage image, int width, int height) {
+        BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = resized.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+        return resized;
+    }
+
+    private byte[] toBytes(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(image, format, baos);
+        return baos.toByteArray();
+    }
+
+    private String listedAvatarUrl(Long studentId) {
+        JsonNode items = testRestTemplate.getForEntity(getAddress() + "/list", JsonNode.class).getBody().get("items");
+        for (JsonNode item : items) {
+            if (item.get("studentId").asLong() == studentId) {
+                return item.get("avatarUrl").asText();
+            }
+        }
+        throw new AssertionError("Аватар студента " + studentId + " не найден в списке");
+    }
+
+    private static byte[] readFile(String path) {
+        try {
+            return Files.readAllBytes(Path.of(path));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String getAddress() {
+        return "http://localhost:" + port + "/avatar";
+    }
+}
@@ -9,6 +9,7 @@ import org.springframework.boot.test.web.server.LocalServerPort;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.*;
 import org.springframework.test.context.ActiveProfiles;
+import ru.hogwarts.school.dto.StudentStats;
 import ru.hogwarts.school.model.Faculty;
 import ru.hogwarts.school.model.Student;
 import ru.hogwarts.school.repository.FacultyRepository;
@@ -16,6 +17,7 @@ import ru.hogwarts.school.repository.StudentRepository;
 
 import java.net.URI;
 import java.util.List;
+import java.util.Map;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 
@@ -261,6 +263,97 @@ class StudentControllerTestRest {
         assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
     }
 
+    @DisplayName("Поиск студентов по сочетанию фильтров с постраничной выдачей")
+    @Test
+    public void searchStudentsTest() {
+        Faculty faculty = facultyRepository.save(new Faculty(null, "Когтевран", "Синий"));
+        for (Student student : List.of(new Student(null, "Падма", 15), new Student(null, "Полумна", 14),
+                new Student(null, "Пенелопа", 17), new Student(null, "Чжоу", 16))) {
+            student.setFaculty(faculty);
+            studentRepository.save(student);
+        }
+        studentRepository.save(new Student(null, "Парвати", 15));
+
+        ResponseEntity<Map<String, Object>> response = testRestTemplate.exchange(
+                getAddress() + "/search?name=п&minAge=14&maxAge=16&facultyId=" + faculty.getId() + "&size=1",
+                HttpMethod.GET, null, new ParameterizedTypeReference<Map<String, Object>>() {
+                }
+        );
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        List<?> content = (List<?>) response.getBody().get("content");
+        Assertions.assertThat(content)
+                .<Object>extracting(student -> ((Map<?, ?>) student).get("name"))
+                .containsExactly("Падма");
+        Assertions.assertThat(response.getBody()).containsEntry("totalElements", 2)
+                .containsEntry("totalPages", 2)
+                .containsEntry("page", 0)
+                .containsEntry("size", 1);
+
+        ResponseEntity<StudentStats> stats = testRestTemplate.getForEntity(
+                getAddress() + "/search/stats?name=П", StudentStats.class);
+
+        assertThat(stats.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(stats.getBody()).isEqualTo(new StudentStats(4, 15.25, 14, 17));
+    }
+
+    @DisplayName("Ошибка поиска при минимальном возрасте больше максимального")
+    @Test
+    public void searchStudentsInvalidRangeTest() {
+        ResponseEntity<String> response = testRestTemplate.getForEntity(
+                getAddress() + "/search?minAge=17&maxAge=11", String.class);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @DisplayName("Имена на букву А и средний возраст считаются в базе")
+    @Test
+    public void namesWithAAndAverageAgeTest() {
+        studentRepository.save(new Student(null, "Ханна", 16));
+        studentRepository.save(new Student(null, "анджелина", 17));
+        studentRepository.save(new Student(null, "Алисия", 15));
+
+        ResponseEntity<List<String>> names = testRestTemplate.exchange(
+                getAddress() + "/Students/names-with-A", HttpMethod.GET, null,
+                new ParameterizedTypeReference<List<String>>() {
+                }
+        );
+        ResponseEntity<Double> average = testRestTemplate.getForEntity(
+                getAddress() + "/students/average-age", Double.class);
+
+        Assertions.assertThat(names.getBody()).containsExactly("АЛИСИЯ", "АНДЖЕЛИНА");
+        assertThat(average.getBody()).isEqualTo(16.0);
+    }
+
+    @DisplayName("Потоковая выгрузка студентов в NDJSON и CSV")
+    @Test
+    public void exportStudentsTest() {
+        Faculty faculty = facultyRepository.save(new Faculty(null, "Слизерин", "Зелёный"));
+        Student draco = new Student(null, "Драко", 11);
+        draco.setFaculty(faculty);
+        studentRepository.save(draco);
+        Student other = studentRepository.save(new Student(null, "Малфой, \"младший\"", 12));
+
+        ResponseEntity<String> ndjson = testRestTemplate.getForEntity(getAddress() + "/export", String.class);
+
+        assertThat(ndjson.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(ndjson.getHeaders().getContentType().isCompatibleWith(MediaType.parseMediaType("application/x-ndjson")))
+                .isTrue();
+        Assertions.assertThat(ndjson.getBody().split("\n")).containsExactly(
+                "{\"id\":" + draco.getId() + ",\"name\":\"Драко\",\"age\":11,\"facultyId\":" + faculty.getId() + "}",
+                "{\"id\":" + other.getId() + ",\"name\":\"Малфой, \\\"младший\\\"\",\"age\":12,\"facultyId\":null}");
+
+        ResponseEntity<String> csv = testRestTemplate.getForEntity(getAddress() + "/export?format=csv", String.class);
+
+        assertThat(csv.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(csv.getBody()).isEqualTo("id,name,age,faculty_id\r\n"
+                + draco.getId() + ",Драко,11," + faculty.getId() + "\r\n"
+                + other.getId() + ",\"Малфой, \"\"младший\"\"\",12,\r\n");
+
+        assertThat(testRestTemplate.getForEntity(getAddress() + "/export?format=xml", String.class).getStatusCode())
+                .isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
     private String getAddress() {
         return "http://localhost:" + port + "/student";
     }
@@ -14,6 +14,7 @@ import ru.hogwarts.school.model.Faculty;
 import ru.hogwarts.school.model.Student;
 import ru.hogwarts.school.repository.AvatarRepository;
 import ru.hogwarts.school.repository.StudentRepository;
+import ru.hogwarts.school.service.AvatarService;
 import ru.hogwarts.school.service.StudentService;
 
 import java.util.Collections;
@@ -42,6 +43,9 @@ public class StudentControllerTestWebMvc {
     @MockBean
     private AvatarRepository avatarRepository;
 
+    @MockBean
+    private AvatarService avatarService;
+
     @SpyBean
     private StudentService studentService;
 
@@ -0,0 +1,93 @@
+package ru.hogwarts.school.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AvatarImageResizerTest {
+
+    @ParameterizedTest
+    @EnumSource(AvatarImageResizer.Algorithm.class)
+    @DisplayName("Каждый алгоритм даёт запрошенный размер и сохраняет цвет однотонного изображения")
+    void resizeKeepsSizeAndColorTest(AvatarImageResizer.Algorithm algorithm) {
+        BufferedImage source = solid(800, 600, BufferedImage.TYPE_INT_RGB, new Color(40, 120, 200));
+
+        BufferedImage result = AvatarImageResizer.resize(source, 100, 75, algorithm);
+
+        assertThat(result.getWidth()).isEqualTo(100);
+        assertThat(result.getHeight()).isEqualTo(75);
+        assertThat(result.getType()).isEqualTo(BufferedImage.TYPE_INT_RGB);
+        assertThat(result.getRGB(50, 37)).isEqualTo(new Color(40, 120, 200).getRGB());
+    }
+
+    @ParameterizedTest
+    @EnumSource(AvatarImageResizer.Algorithm.class)
+    @DisplayName("Прозрачность исходника сохраняется в результате")
+    void resizeKeepsAlphaTest(AvatarImageResizer.Algorithm algorithm) {
+        BufferedImage source = solid(400, 400, BufferedImage.TYPE_INT_ARGB, new Color(0, 0, 0, 0));
+
+        BufferedImage result = AvatarImageResizer.resize(source, 50, 50, algorithm);
+
+        assertThat(result.getType()).isEqualTo(BufferedImage.TYPE_INT_ARGB);
+        assertThat(result.getRGB(25, 25) >>> 24).isZero();
+    }
+
+    @Test
+    @DisplayName("Палитровое изображение приводится к INT_RGB")
+    void indexedSourceIsConvertedTest() {
+        BufferedImage source = solid(300, 200, BufferedImage.TYPE_BYTE_INDEXED, Color.RED);
+
+        assertThat(AvatarImageResizer.targetType(source)).isEqualTo(BufferedImage.TYPE_INT_RGB);
+        assertThat(AvatarImageResizer.resize(source, 30, 20, AvatarImageResizer.Algorithm.PROGRESSIVE_BILINEAR)
+                .getRGB(15, 10)).isEqualTo(Color.RED.getRGB());
+    }
+
+    @Test
+    @DisplayName("Параллельные уменьшения больших изображений не делят промежуточные растры")
+    void concurrentProgressiveResizeTest() throws Exception {
+        // первый шаг больше порога пула и создаётся на вызов, следующие берутся из пула
+        int width = 2400;
+        int height = 1800;
+        assertThat((long) width / 2 * (height / 2)).isGreaterThan(AvatarImageResizer.MAX_SCRATCH_PIXELS);
+        int threads = AvatarImageResizer.SCRATCH_POOL_SIZE * 2;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < threads * 2; i++) {
+                Color color = new Color(i * 10, 255 - i * 10, 100);
+                BufferedImage source = solid(width, height, BufferedImage.TYPE_INT_RGB, color);
+                results.add(executor.submit(() -> {
+                    BufferedImage result = AvatarImageResizer.resize(source, 100, 75,
+                            AvatarImageResizer.Algorithm.PROGRESSIVE_BILINEAR);
+                    return result.getRGB(0, 0) == color.getRGB() && result.getRGB(99, 74) == color.getRGB();
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertThat(result.get()).isTrue();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static BufferedImage solid(int width, int height, int type, Color color) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        return image;
+    }
+}